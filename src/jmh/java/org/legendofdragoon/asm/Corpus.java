@@ -0,0 +1,145 @@
+package org.legendofdragoon.asm;
+
+import org.legendofdragoon.asm.mips.Ops;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.IntPredicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Deterministic instruction streams for the per-ISA benchmarks. Every corpus is built from a fixed seed so runs are
+ * comparable with the stored baseline.
+ *
+ * <ul>
+ *   <li>{@code random} - random encodings, filtered by the caller to ones that decode and translate</li>
+ *   <li>{@code mixed} - runs copied from the MIPS listing in {@code input.txt}, so the instruction mix, delay slots and
+ *   branch density match real compiler output. ARM and Thumb have no sample listing, so they reuse the sample's
+ *   sequence of {@link Kind}s and fill each one with an encoding of the same kind.</li>
+ * </ul>
+ */
+public final class Corpus {
+  public static final String RANDOM = "random";
+  public static final String MIXED = "mixed";
+
+  /** Rough instruction classes shared by all three ISAs */
+  public enum Kind {
+    ALU,
+    LOAD,
+    STORE,
+    BRANCH,
+    CALL,
+    RETURN,
+    OTHER,
+  }
+
+  private static int[] sample;
+
+  private Corpus() { }
+
+  /** @return The instruction words in the sample listing, read from the {@code corpus.input} system property or {@code input.txt} */
+  public static synchronized int[] sample() {
+    if(sample == null) {
+      final byte[] listing;
+      try {
+        listing = Files.readAllBytes(Path.of(System.getProperty("corpus.input", "input.txt")));
+      } catch(final IOException e) {
+        throw new UncheckedIOException("Sample listing not found, set -Dcorpus.input", e);
+      }
+
+      final InstructionBuffer instructions = new InstructionBuffer();
+      new HexDumpScanner(4, 4).scan(ByteBuffer.wrap(listing), (address, word) -> instructions.add(address, word, 0));
+
+      sample = new int[instructions.size()];
+      for(int i = 0; i < sample.length; i++) {
+        sample[i] = instructions.word(i);
+      }
+    }
+
+    return sample;
+  }
+
+  /** @return {@code count} sample words, copied in runs of 8 to 64 instructions from random offsets */
+  public static int[] sampleRuns(final int count, final long seed) {
+    final int[] sample = sample();
+    final Random random = new Random(seed);
+    final int[] words = new int[count];
+
+    int i = 0;
+    while(i < count) {
+      final int start = random.nextInt(sample.length);
+      final int length = Math.min(8 + random.nextInt(57), count - i);
+
+      for(int j = 0; j < length; j++) {
+        words[i++] = sample[(start + j) % sample.length];
+      }
+    }
+
+    return words;
+  }
+
+  /** @return The kinds of {@code count} sample words, copied in runs the same way as {@link #sampleRuns} */
+  public static Kind[] sampleKinds(final int count, final long seed) {
+    final int[] words = sampleRuns(count, seed);
+    final Kind[] kinds = new Kind[count];
+
+    for(int i = 0; i < count; i++) {
+      kinds[i] = kind(words[i]);
+    }
+
+    return kinds;
+  }
+
+  private static Kind kind(final int word) {
+    final Ops op = Ops.decode(word);
+
+    return switch(op) {
+      case SLL, SRL, SRA, SLLV, SRLV, SRAV, MFHI, MTHI, MFLO, MTLO, MULT, MULTU, DIV, DIVU, ADD, ADDU, SUB, SUBU, AND, OR, XOR, NOR, SLT, SLTU,
+        ADDI, ADDIU, SLTI, SLTIU, ANDI, ORI, XORI, LUI -> Kind.ALU;
+      case LB, LH, LWL, LW, LBU, LHU, LWR, LWC2 -> Kind.LOAD;
+      case SB, SH, SWL, SW, SWR, SWC2 -> Kind.STORE;
+      case BCONDZ, J, BEQ, BNE, BLEZ, BGTZ -> Kind.BRANCH;
+      case JAL, JALR -> Kind.CALL;
+      // A JR that isn't through RA is a jump table
+      case JR -> (word >>> 21 & 0x1f) == 31 ? Kind.RETURN : Kind.BRANCH;
+      default -> Kind.OTHER;
+    };
+  }
+
+  /** Draws from {@code generator} until a word passes {@code accept} */
+  public static int draw(final Random random, final ToIntFunction<Random> generator, final IntPredicate accept) {
+    int word;
+    do {
+      word = generator.applyAsInt(random);
+    } while(!accept.test(word));
+
+    return word;
+  }
+
+  /**
+   * Renders {@code words} as a Ghidra-style listing starting at {@code base}. Words with a non-zero upper halfword are
+   * written as four bytes, the rest as two when {@code halfwords} is set.
+   */
+  public static String dump(final int base, final int[] words, final boolean halfwords) {
+    final StringBuilder builder = new StringBuilder(words.length * 64);
+
+    int address = base;
+    for(final int word : words) {
+      final int size = halfwords && (word & 0xffff_0000) == 0 ? 2 : 4;
+
+      builder.append("      ::").append("%08x".formatted(address));
+      for(int b = 0; b < size; b++) {
+        builder.append(' ').append("%02x".formatted(word >>> b * 8 & 0xff)).append(' ');
+      }
+
+      builder.append("   op\n");
+      address += size;
+    }
+
+    return builder.toString();
+  }
+}
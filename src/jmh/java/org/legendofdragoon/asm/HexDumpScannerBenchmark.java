@@ -0,0 +1,118 @@
+package org.legendofdragoon.asm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Compares {@link HexDumpScanner} against the regex parsing it replaced */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HexDumpScannerBenchmark {
+  private static final Pattern regex = Pattern.compile("\\s+?(?:\\w*::)?([\\da-f]{8})\\s+([\\da-f]{2})\\s+?([\\da-f]{2})\\s+?([\\da-f]{2})\\s+?([\\da-f]{2}).*", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+  private static final Pattern thumbRegex = Pattern.compile("\\s+?(?:\\w*::)?([\\da-f]{8})\\s+((?:[\\da-f]{2}\\s+){1,4}).*", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+  private static final Pattern spaces = Pattern.compile("\\s+");
+
+  @Param({"100000"})
+  public int lines;
+
+  private String wordDump;
+  private byte[] wordDumpBytes;
+  private String halfwordDump;
+  private byte[] halfwordDumpBytes;
+
+  private final HexDumpScanner wordScanner = new HexDumpScanner(4, 4);
+  private final HexDumpScanner halfwordScanner = new HexDumpScanner(1, 4);
+
+  @Setup
+  public void setup() {
+    this.wordDump = dump(this.lines, 4, 0x1234);
+    this.wordDumpBytes = this.wordDump.getBytes(StandardCharsets.ISO_8859_1);
+    this.halfwordDump = dump(this.lines, 2, 0x5678);
+    this.halfwordDumpBytes = this.halfwordDump.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /** Builds a Ghidra-style listing with the occasional comment line, seeded so every run sees the same input */
+  static String dump(final int lines, final int width, final long seed) {
+    final Random random = new Random(seed);
+    final StringBuilder builder = new StringBuilder(lines * 80);
+
+    int address = 0x8010_0000;
+    for(int i = 0; i < lines; i++) {
+      if(random.nextInt(16) == 0) {
+        builder.append("                             LAB_").append(Integer.toHexString(address)).append("                                    XREF[1]:     8010c2f8(j)\n");
+      }
+
+      builder.append("      ::").append("%08x".formatted(address));
+      for(int b = 0; b < width; b++) {
+        builder.append(' ').append("%02x".formatted(random.nextInt(0x100))).append(' ');
+      }
+
+      builder.append("   addiu      sp,sp,-0x20\n");
+      address += width;
+    }
+
+    return builder.toString();
+  }
+
+  @Benchmark
+  public void regexWords(final Blackhole blackhole) {
+    final Matcher matcher = regex.matcher(this.wordDump);
+
+    while(matcher.find()) {
+      blackhole.consume(Integer.parseUnsignedInt(matcher.group(1), 16));
+      blackhole.consume(Integer.parseUnsignedInt(matcher.group(5) + matcher.group(4) + matcher.group(3) + matcher.group(2), 16));
+    }
+  }
+
+  @Benchmark
+  public void scannerWords(final Blackhole blackhole) {
+    this.wordScanner.scan(ByteBuffer.wrap(this.wordDumpBytes), (address, word) -> {
+      blackhole.consume(address);
+      blackhole.consume(word);
+    });
+  }
+
+  @Benchmark
+  public void regexHalfwords(final Blackhole blackhole) {
+    final Matcher matcher = thumbRegex.matcher(this.halfwordDump);
+
+    while(matcher.find()) {
+      final String[] parts = spaces.split(matcher.group(2));
+      final StringBuilder commandStr = new StringBuilder();
+      for(int i = parts.length - 1; i >= 0; i--) {
+        commandStr.append(parts[i]);
+      }
+
+      blackhole.consume(Integer.parseUnsignedInt(matcher.group(1), 16));
+      blackhole.consume(Integer.parseUnsignedInt(commandStr.toString(), 16));
+    }
+  }
+
+  @Benchmark
+  public void scannerHalfwords(final Blackhole blackhole) {
+    this.halfwordScanner.scan(ByteBuffer.wrap(this.halfwordDumpBytes), (address, word) -> {
+      blackhole.consume(address);
+      blackhole.consume(word);
+    });
+  }
+}
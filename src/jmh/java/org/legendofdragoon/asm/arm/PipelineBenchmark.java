@@ -0,0 +1,133 @@
+package org.legendofdragoon.asm.arm;
+
+import org.legendofdragoon.asm.Corpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Times each stage of ARM translation - parsing a listing, decoding ops and translating - on the same corpus */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipelineBenchmark {
+  private static final int BASE = 0x0800_0000;
+
+  /** MOV r0, r0 */
+  private static final int NOP = 0xe1a0_0000;
+  /** BX lr */
+  private static final int RETURN = 0xe12f_ff1e;
+
+  @Param({Corpus.RANDOM, Corpus.MIXED})
+  public String corpus;
+
+  @Param({"20000"})
+  public int count;
+
+  private int[] words;
+  private String dump;
+  private Asm asm;
+  /** Reused between invocations, like an output buffer would be */
+  private final StringBuilder text = new StringBuilder();
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(0x1234);
+    this.words = new int[this.count];
+
+    if(Corpus.MIXED.equals(this.corpus)) {
+      final Corpus.Kind[] kinds = Corpus.sampleKinds(this.count, 0x1234);
+
+      for(int i = 0; i < this.count; i++) {
+        this.words[i] = generate(kinds[i], random);
+      }
+    } else {
+      for(int i = 0; i < this.count; i++) {
+        this.words[i] = Corpus.draw(random, PipelineBenchmark::random, PipelineBenchmark::isValid);
+      }
+    }
+
+    this.dump = Corpus.dump(BASE, this.words, false);
+    this.asm = Asm.parse(this.dump);
+  }
+
+  @Benchmark
+  public Asm parse() {
+    return Asm.parse(this.dump);
+  }
+
+  @Benchmark
+  public void decode(final Blackhole blackhole) {
+    for(final int word : this.words) {
+      blackhole.consume(Ops.get(word));
+    }
+  }
+
+  @Benchmark
+  public StringBuilder translate() throws IOException {
+    this.text.setLength(0);
+    new Translator().translate(this.asm, this.text);
+    return this.text;
+  }
+
+  /** Mostly unconditional, like compiled code */
+  private static int random(final Random random) {
+    final int word = random.nextInt();
+    return random.nextInt(4) != 0 ? word & 0x0fff_ffff | 0xe000_0000 : word;
+  }
+
+  /** A short branch, either direction */
+  private static int branch(final Random random, final int op, final int condition) {
+    return condition << 28 | op | random.nextInt(0x80) - 0x40 & 0xff_ffff;
+  }
+
+  private static int generate(final Corpus.Kind kind, final Random random) {
+    return switch(kind) {
+      case BRANCH -> branch(random, 0x0a00_0000, random.nextInt(0xf));
+      case CALL -> branch(random, 0x0b00_0000, 0xe);
+      case RETURN -> RETURN;
+      case OTHER -> NOP;
+      default -> Corpus.draw(random, PipelineBenchmark::random, word -> kind(word) == kind && isValid(word));
+    };
+  }
+
+  private static Corpus.Kind kind(final int word) {
+    final boolean isLoad = (word >>> 20 & 0x1) != 0;
+
+    return switch(Ops.get(word)) {
+      case TRANS_REG_10, TRANS_IMM_10, TRANS_IMM_9, TRANS_REG_9, BLOCK_TRANS -> isLoad ? Corpus.Kind.LOAD : Corpus.Kind.STORE;
+      case B -> Corpus.Kind.BRANCH;
+      case BL -> Corpus.Kind.CALL;
+      case BX, BLX, SWI, TRANS_SWAP_12, UNKNOWN -> Corpus.Kind.OTHER;
+      default -> Corpus.Kind.ALU;
+    };
+  }
+
+  private static boolean isValid(final int word) {
+    if(word >>> 28 == 0xf || Ops.get(word) == Ops.UNKNOWN) {
+      return false;
+    }
+
+    try {
+      new Translator().translate(Asm.parse(Corpus.dump(BASE, new int[] {word}, false)));
+      return true;
+    } catch(final RuntimeException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package org.legendofdragoon.asm.mips;
+
+import org.legendofdragoon.asm.Corpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Times each stage of MIPS translation - parsing a listing, decoding ops and translating - on the same corpus */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipelineBenchmark {
+  private static final int BASE = 0x8010_0000;
+
+  @Param({Corpus.RANDOM, Corpus.MIXED})
+  public String corpus;
+
+  @Param({"20000"})
+  public int count;
+
+  private int[] words;
+  private String dump;
+  private Asm asm;
+  /** Reused between invocations, like an output buffer would be */
+  private final StringBuilder text = new StringBuilder();
+
+  @Setup
+  public void setup() {
+    this.words = Corpus.MIXED.equals(this.corpus) ? Corpus.sampleRuns(this.count, 0x1234) : random(this.count, 0x1234);
+    this.dump = Corpus.dump(BASE, this.words, false);
+    this.asm = Asm.parse(this.dump);
+  }
+
+  @Benchmark
+  public Asm parse() {
+    return Asm.parse(this.dump);
+  }
+
+  @Benchmark
+  public void decode(final Blackhole blackhole) {
+    for(final int word : this.words) {
+      blackhole.consume(Ops.decode(word));
+    }
+  }
+
+  @Benchmark
+  public StringBuilder translate() throws IOException {
+    this.text.setLength(0);
+    new Translator().translate(this.asm, this.text);
+    return this.text;
+  }
+
+  private static int[] random(final int count, final long seed) {
+    final Random random = new Random(seed);
+    final int[] words = new int[count];
+
+    for(int i = 0; i < count; i++) {
+      words[i] = Corpus.draw(random, Random::nextInt, word -> Ops.decode(word) != Ops.UNKNOWN && translates(word));
+    }
+
+    return words;
+  }
+
+  private static boolean translates(final int word) {
+    try {
+      new Translator().translate(Asm.parse(Corpus.dump(BASE, new int[] {word}, false)));
+      return true;
+    } catch(final RuntimeException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package org.legendofdragoon.asm.thumb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Compares the {@link Ops#get} lookup table against the mask/compare chain it is generated from */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OpsBenchmark {
+  @Param({"100000"})
+  public int count;
+
+  private int[] commands;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(0x1234);
+    this.commands = new int[this.count];
+
+    for(int i = 0; i < this.commands.length; i++) {
+      int command;
+      do {
+        command = random.nextInt(0x1_0000);
+      } while(Ops.classify(command) == null);
+
+      this.commands[i] = command;
+    }
+  }
+
+  @Benchmark
+  public void chain(final Blackhole blackhole) {
+    for(final int command : this.commands) {
+      blackhole.consume(Ops.classify(command));
+    }
+  }
+
+  @Benchmark
+  public void table(final Blackhole blackhole) {
+    for(final int command : this.commands) {
+      blackhole.consume(Ops.get(command));
+    }
+  }
+}
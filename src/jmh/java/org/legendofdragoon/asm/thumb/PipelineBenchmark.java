@@ -0,0 +1,139 @@
+package org.legendofdragoon.asm.thumb;
+
+import org.legendofdragoon.asm.Corpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Times each stage of Thumb translation - parsing a listing, decoding ops and translating - on the same corpus */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipelineBenchmark {
+  private static final int BASE = 0x0800_0000;
+
+  /** MOV r8, r8 */
+  private static final int NOP = 0x46c0;
+  /** BX lr */
+  private static final int RETURN = 0x4770;
+
+  @Param({Corpus.RANDOM, Corpus.MIXED})
+  public String corpus;
+
+  @Param({"20000"})
+  public int count;
+
+  private int[] words;
+  private String dump;
+  private Asm asm;
+  /** Reused between invocations, like an output buffer would be */
+  private final StringBuilder text = new StringBuilder();
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(0x1234);
+    this.words = new int[this.count];
+
+    if(Corpus.MIXED.equals(this.corpus)) {
+      final Corpus.Kind[] kinds = Corpus.sampleKinds(this.count, 0x1234);
+
+      for(int i = 0; i < this.count; i++) {
+        this.words[i] = generate(kinds[i], random);
+      }
+    } else {
+      for(int i = 0; i < this.count; i++) {
+        this.words[i] = Corpus.draw(random, PipelineBenchmark::random, PipelineBenchmark::isValid);
+      }
+    }
+
+    this.dump = Corpus.dump(BASE, this.words, true);
+    this.asm = Asm.parse(this.dump);
+  }
+
+  @Benchmark
+  public Asm parse() {
+    return Asm.parse(this.dump);
+  }
+
+  @Benchmark
+  public void decode(final Blackhole blackhole) {
+    for(final int word : this.words) {
+      blackhole.consume(Ops.get(word));
+    }
+  }
+
+  @Benchmark
+  public StringBuilder translate() throws IOException {
+    this.text.setLength(0);
+    new Translator().translate(this.asm, this.text);
+    return this.text;
+  }
+
+  /** A halfword, or now and then a BL/BLX pair */
+  private static int random(final Random random) {
+    if(random.nextInt(20) == 0) {
+      return call(random, random.nextBoolean());
+    }
+
+    return random.nextInt(0x1_0000);
+  }
+
+  private static int call(final Random random, final boolean exchange) {
+    return 0xf000 | random.nextInt(0x800) | (exchange ? 0xe800 : 0xf800) << 16 | random.nextInt(0x800) << 16;
+  }
+
+  /** A short conditional or unconditional branch, either direction */
+  private static int branch(final Random random) {
+    if(random.nextBoolean()) {
+      return 0xe000 | random.nextInt(0x80) - 0x40 & 0x7ff;
+    }
+
+    return 0xd000 | random.nextInt(0xe) << 8 | random.nextInt(0x80) - 0x40 & 0xff;
+  }
+
+  private static int generate(final Corpus.Kind kind, final Random random) {
+    return switch(kind) {
+      case BRANCH -> branch(random);
+      case CALL -> call(random, false);
+      case RETURN -> RETURN;
+      case OTHER -> NOP;
+      default -> Corpus.draw(random, PipelineBenchmark::random, word -> isValid(word) && kind(word) == kind);
+    };
+  }
+
+  private static Corpus.Kind kind(final int word) {
+    return switch(Ops.get(word)) {
+      case LDRPC, LDR_REG, LDRB_REG, LDSB_REG, LDRH_REG, LDSH_REG, LDR_IMM, LDRB_IMM, LDRH_IMM, LDR_SP, POP, LDMIA -> Corpus.Kind.LOAD;
+      case STR_REG, STRB_REG, STRH_REG, STR_IMM, STRB_IMM, STRH_IMM, STR_SP, PUSH, STMIA -> Corpus.Kind.STORE;
+      case BEQ, BNE, BCS, BCC, BMI, BPL, BVS, BVC, BHI, BLS, BGE, BLT, BGT, BLE, B -> Corpus.Kind.BRANCH;
+      case BL, BLX -> Corpus.Kind.CALL;
+      case BX, SWI -> Corpus.Kind.OTHER;
+      default -> Corpus.Kind.ALU;
+    };
+  }
+
+  private static boolean isValid(final int word) {
+    try {
+      new Translator().translate(Asm.parse(Corpus.dump(BASE, new int[] {word}, true)));
+      return true;
+    } catch(final RuntimeException e) {
+      return false;
+    }
+  }
+}
@@ -5,8 +5,8 @@ import org.legendofdragoon.asm.arm.Asm;
 import org.legendofdragoon.asm.arm.Translator;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 
 public final class Arm {
   static {
@@ -17,20 +17,28 @@ public final class Arm {
   private Arm() { }
 
   public static void main(final String[] args) throws IOException {
-    final String input = Files.readString(Paths.get("input.txt"));
+    Driver.run(Options.parse(args), "arm", Translator.VERSION, Arm::translate);
+  }
 
-    final Asm asm = Asm.parse(input);
+  static InstructionBuffer translate(final Options options, final Path input, final TranslationMemo memo, final Appendable out) throws IOException {
+    final Asm asm;
+    try(final FileChannel channel = FileChannel.open(input)) {
+      if(options.parallelism > 1) {
+        asm = Asm.parseParallel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), options.parallelism, options.chunkSize);
+      } else {
+        asm = Asm.parse(channel);
+      }
+    }
 
     if(asm.commands.isEmpty()) {
-      System.err.println("No code found");
-      return;
+      return null;
     }
 
-    System.out.println("Disassembly for code starting at " + Long.toHexString(asm.commands.get(0).address));
+    out.append("Disassembly for code starting at ").append(Long.toHexString(asm.commands.get(0).address)).append('\n');
 
-    final Translator translator = new Translator();
-    for(final String line : translator.translate(asm)) {
-      System.out.println(line);
-    }
+    final Translator translator = new Translator(options);
+    translator.translate(asm, memo, out);
+
+    return asm.instructions;
   }
 }
@@ -0,0 +1,190 @@
+package org.legendofdragoon.asm;
+
+/**
+ * Writes generated Java straight into a reusable {@link StringBuilder}. Every token has a typed method, so numbers are
+ * written as digits without going through format strings or temporary Strings, and a whole translation shares one
+ * buffer. Lines are separated with {@link #nl}.
+ *
+ * <p>Inside {@link #openIf} or {@link #openBlock} and the matching {@link #closeBlock} every line is indented. Line
+ * breaks are held back until more text follows, so a block never ends with blank lines.</p>
+ */
+public final class CodeEmitter {
+  /** A register as it is written in generated code */
+  public interface Register {
+    String code();
+  }
+
+  private static final String INDENT = "  ";
+
+  private final StringBuilder out;
+  /** Labels are zero-padded to this many digits */
+  private final int labelDigits;
+
+  private int depth;
+  /** Line breaks inside a block that haven't been written yet */
+  private int pendingLines;
+
+  public CodeEmitter(final StringBuilder out, final int labelDigits) {
+    this.out = out;
+    this.labelDigits = labelDigits;
+  }
+
+  public StringBuilder buffer() {
+    return this.out;
+  }
+
+  /** @return The number of characters written to the buffer so far */
+  public int length() {
+    return this.out.length();
+  }
+
+  /** Appends {@code text}, which must not contain line breaks */
+  public CodeEmitter text(final String text) {
+    this.flushLines();
+    this.out.append(text);
+    return this;
+  }
+
+  /** Appends {@code text}, which may span several lines, indenting each of them inside a block */
+  public CodeEmitter lines(final String text) {
+    int start = 0;
+
+    for(int end; (end = text.indexOf('\n', start)) != -1; start = end + 1) {
+      this.flushLines();
+      this.out.append(text, start, end);
+      this.nl();
+    }
+
+    this.flushLines();
+    this.out.append(text, start, text.length());
+    return this;
+  }
+
+  public CodeEmitter text(final char c) {
+    this.flushLines();
+    this.out.append(c);
+    return this;
+  }
+
+  public CodeEmitter nl() {
+    if(this.depth != 0) {
+      this.pendingLines++;
+    } else {
+      this.out.append('\n');
+    }
+
+    return this;
+  }
+
+  /** Ends a statement */
+  public CodeEmitter stmt() {
+    return this.text(';');
+  }
+
+  public CodeEmitter reg(final Register register) {
+    return this.text(register.code());
+  }
+
+  public CodeEmitter dec(final long value) {
+    this.flushLines();
+    this.out.append(value);
+    return this;
+  }
+
+  public CodeEmitter bool(final boolean value) {
+    this.flushLines();
+    this.out.append(value);
+    return this;
+  }
+
+  /** {@code 0x} followed by the unsigned hex digits of {@code value} */
+  public CodeEmitter hex(final int value) {
+    return this.hex(Integer.toUnsignedLong(value), 0);
+  }
+
+  public CodeEmitter hex(final int value, final int minDigits) {
+    return this.hex(Integer.toUnsignedLong(value), minDigits);
+  }
+
+  /** {@code 0x} followed by the unsigned hex digits of {@code value}, zero-padded to {@code minDigits} */
+  public CodeEmitter hex(final long value, final int minDigits) {
+    return this.text("0x").digits(value, minDigits);
+  }
+
+  /** {@code 0x} or {@code -0x} followed by the hex digits of the magnitude of {@code value} */
+  public CodeEmitter signedHex(final int value) {
+    if(value < 0) {
+      return this.text('-').hex(-(long)value, 0);
+    }
+
+    return this.hex(value, 0);
+  }
+
+  /** The unsigned hex digits of {@code value} with no prefix, zero-padded to {@code minDigits} */
+  public CodeEmitter digits(final int value, final int minDigits) {
+    return this.digits(Integer.toUnsignedLong(value), minDigits);
+  }
+
+  public CodeEmitter digits(final long value, final int minDigits) {
+    this.flushLines();
+
+    final int count = Math.max(minDigits, Math.max(1, (67 - Long.numberOfLeadingZeros(value)) / 4));
+    for(int shift = (count - 1) * 4; shift >= 0; shift -= 4) {
+      this.out.append(Character.forDigit(shift < 64 ? (int)(value >>> shift & 0xf) : 0, 16));
+    }
+
+    return this;
+  }
+
+  /** A {@code LAB_} reference to {@code address} */
+  public CodeEmitter label(final int address) {
+    return this.label(Integer.toUnsignedLong(address));
+  }
+
+  public CodeEmitter label(final long address) {
+    return this.text("LAB_").digits(address, this.labelDigits);
+  }
+
+  /** Starts {@code if(condition) { // comment} and indents everything up to the matching {@link #closeIf} */
+  public CodeEmitter openIf(final String condition, final String comment) {
+    this.text("if(").text(condition).text(") { // ").text(comment);
+    return this.enterBlock();
+  }
+
+  /** Starts {@code if(condition) {} and indents everything up to the matching {@link #closeIf}. Blocks may be nested. */
+  public CodeEmitter openIf(final String condition) {
+    return this.text("if(").text(condition).text(')').openBlock();
+  }
+
+  public CodeEmitter closeIf() {
+    return this.closeBlock();
+  }
+
+  /** Ends the line with {@code {} and indents everything up to the matching {@link #closeBlock} */
+  public CodeEmitter openBlock() {
+    return this.text(" {").enterBlock();
+  }
+
+  public CodeEmitter closeBlock() {
+    this.pendingLines = 0;
+    this.depth--;
+    return this.nl().text('}');
+  }
+
+  private CodeEmitter enterBlock() {
+    this.depth++;
+    this.pendingLines++;
+    this.flushLines();
+    return this;
+  }
+
+  private void flushLines() {
+    for(; this.pendingLines > 0; this.pendingLines--) {
+      this.out.append('\n');
+
+      for(int i = 0; i < this.depth; i++) {
+        this.out.append(INDENT);
+      }
+    }
+  }
+}
@@ -0,0 +1,630 @@
+package org.legendofdragoon.asm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Control flow graph over a run of {@link LineSlots}, written back out as structured Java instead of {@code LAB_x;}
+ * gotos. Basic blocks start at labelled lines and after lines that branch, and edges come from the jumps the
+ * translator recorded with {@link LineSlots#jump}/{@link LineSlots#branch}.
+ *
+ * <p>Reducible graphs are written with the dominator tree method from Ramsey's "Beyond Relooper": each loop header
+ * becomes {@code LAB_x: while(true) { ... }} and jumps back to it {@code continue LAB_x}, each block with more than one
+ * forward predecessor is preceded by {@code LAB_x: { ... }} that's left with {@code break LAB_x}, and any other block is
+ * written inline where it's branched to. Conditional branches become {@code if}/{@code else}. A {@code break} or
+ * {@code continue} to where control would end up anyway is left out.</p>
+ *
+ * <p>Any other graph can be written with {@link #dispatch} as a {@code switch} in a loop instead.</p>
+ *
+ * <p>Falling off the end of the run goes to an empty exit block. Jumps out of the run become tail calls when they go to
+ * a function's entry point and there are methods to call, and are otherwise left as they are and carry on to the exit
+ * block. Getting there from inside a loop or labelled block takes a {@code break} out of the outermost loop, or out of
+ * a {@code LAB_x: { ... }} around everything where there's no loop to leave.</p>
+ */
+final class ControlFlow {
+  /** Deeper nesting than this is written flat instead, it's unreadable and recursion has to stop somewhere */
+  private static final int MAX_DEPTH = 200;
+
+  private final LineSlots lines;
+  private final CodeEmitter code;
+  /** Return type of the method being written, null if jumps out of the run can't be tail calls */
+  private final String returnType;
+
+  private int from;
+  private int to;
+
+  // Blocks are numbered in address order, the exit block comes last
+  private int count;
+  private int exit;
+  /** First and last slot of each block */
+  private int[] firstSlot;
+  private int[] lastSlot;
+  /** Successor when the block's jump or branch is taken, -1 if it has none */
+  private int[] taken;
+  /** Successor when the block falls through, -1 if it doesn't */
+  private int[] next;
+  /** Whether the last line's jump is written by the structure rather than as its own text */
+  private boolean[] structural;
+
+  /** Reverse postorder number of each block, -1 if it's unreachable */
+  private int[] order;
+  private int[] idom;
+  private boolean[] loopHeader;
+  private boolean[] merge;
+  /** Dominator tree children that are merge blocks, latest first */
+  private int[][] mergeChildren;
+
+  private int depth;
+  /** Set once nesting has gone past {@link #MAX_DEPTH}, after which nothing more is written */
+  private boolean tooDeep;
+  /** The loop whose end is the end of the run, -1 outside it */
+  private int outerLoop = -1;
+  /** Whether something broke out of the block around everything, which is only written once it's needed */
+  private boolean endBlock;
+
+  ControlFlow(final LineSlots lines, final CodeEmitter code, final String returnType) {
+    this.lines = lines;
+    this.code = code;
+    this.returnType = returnType;
+  }
+
+  /**
+   * Writes slots {@code from} (inclusive) to {@code to} (exclusive) to the emitter as structured code
+   *
+   * @return False if the graph can't be structured - it's irreducible, has blocks that can't be reached from the first
+   *         one, or nests too deeply. Nothing useful has been written in that case.
+   */
+  boolean write(final int from, final int to) {
+    this.findBlocks(from, to);
+    this.number();
+
+    for(int block = 0; block < this.exit; block++) {
+      if(this.order[block] == -1) {
+        return false;
+      }
+    }
+
+    this.findDominators();
+
+    if(!this.analyseEdges()) {
+      return false;
+    }
+
+    this.buildTree();
+
+    final int start = this.code.length();
+    this.tree(0, -1);
+
+    // Written again inside the block that was broken out of
+    if(this.endBlock && !this.tooDeep) {
+      this.code.buffer().setLength(start);
+      this.label(this.exit).text(':').openBlock();
+      this.tree(0, -1);
+      this.code.closeBlock().nl();
+    }
+
+    return !this.tooDeep;
+  }
+
+  /**
+   * Writes slots {@code from} (inclusive) to {@code to} (exclusive) to the emitter as
+   * {@code for(int pc = 0; ; ) switch(pc) { ... }}, which works whatever shape the graph is. A block gets a case if
+   * it's jumped to or can't be reached by falling through, and cases are numbered from 0 in address order so that javac
+   * makes a {@code tableswitch}. Jumps set {@code pc} and {@code continue}, everything else falls through.
+   */
+  void dispatch(final int from, final int to) {
+    this.findBlocks(from, to);
+
+    final int[] cases = new int[this.count];
+    Arrays.fill(cases, -1);
+    cases[0] = 0;
+
+    for(int block = 0; block < this.exit; block++) {
+      if(this.taken[block] != -1) {
+        cases[this.taken[block]] = 0;
+      }
+
+      if(this.next[block] == -1) {
+        cases[block + 1] = 0;
+      }
+    }
+
+    int caseCount = 0;
+    for(int block = 0; block < this.exit; block++) {
+      if(cases[block] != -1) {
+        cases[block] = caseCount++;
+      }
+    }
+
+    this.code.text("for(int pc = 0; ; )").openBlock();
+    this.code.text("switch(pc)").openBlock();
+
+    for(int block = 0; block < this.exit; block++) {
+      if(cases[block] != -1) {
+        if(block != 0) {
+          this.code.closeBlock().nl();
+        }
+
+        this.code.text("case ").dec(cases[block]).text(':').openBlock();
+      }
+
+      this.lines(block);
+
+      final int taken = this.taken[block];
+      if(taken != -1) {
+        if(this.next[block] != -1) {
+          this.code.openIf(this.lines.flow(this.lastSlot[block]).condition);
+          this.code.text("pc = ").dec(cases[taken]).stmt().nl().text("continue").stmt();
+          this.code.closeBlock().nl();
+        } else {
+          this.code.text("pc = ").dec(cases[taken]).stmt().nl().text("continue").stmt().nl();
+        }
+      }
+    }
+
+    this.code.closeBlock().nl();
+    this.code.closeBlock().nl().nl();
+    this.code.text("break").stmt();
+    this.code.closeBlock().nl();
+  }
+
+  private void findBlocks(final int from, final int to) {
+    this.from = from;
+    this.to = to;
+    final int[] blockAt = new int[to - from];
+    final List<int[]> blocks = new ArrayList<>();
+    boolean ended = true;
+
+    for(int slot = from; slot < to; slot++) {
+      blockAt[slot - from] = -1;
+
+      if(this.lines.line(slot) == null) {
+        continue;
+      }
+
+      if(ended || this.lines.isLabelled(slot)) {
+        blocks.add(new int[] {slot, slot});
+      }
+
+      blockAt[slot - from] = blocks.size() - 1;
+      blocks.get(blocks.size() - 1)[1] = slot;
+
+      final LineSlots.Flow flow = this.lines.flow(slot);
+      ended = flow != null && (flow.kind != LineSlots.Flow.Kind.BRANCH || this.target(flow, from, to) != -1);
+    }
+
+    this.count = blocks.size() + 1;
+    this.exit = blocks.size();
+    this.firstSlot = new int[this.count];
+    this.lastSlot = new int[this.count];
+    this.taken = new int[this.count];
+    this.next = new int[this.count];
+    this.structural = new boolean[this.count];
+
+    for(int block = 0; block < this.exit; block++) {
+      this.firstSlot[block] = blocks.get(block)[0];
+      this.lastSlot[block] = blocks.get(block)[1];
+      this.taken[block] = -1;
+      this.next[block] = block + 1;
+
+      final LineSlots.Flow flow = this.lines.flow(this.lastSlot[block]);
+      if(flow == null) {
+        continue;
+      }
+
+      final int target = this.target(flow, from, to);
+
+      switch(flow.kind) {
+        case JUMP -> {
+          this.next[block] = -1;
+
+          if(target != -1) {
+            this.taken[block] = blockAt[target - from];
+            this.structural[block] = true;
+          }
+        }
+
+        case BRANCH -> {
+          if(target != -1) {
+            this.taken[block] = blockAt[target - from];
+            this.structural[block] = true;
+          }
+        }
+
+        case RETURN -> this.next[block] = -1;
+      }
+    }
+
+    // Where control goes after falling off the end
+    this.firstSlot[this.exit] = to;
+    this.lastSlot[this.exit] = to - 1;
+    this.taken[this.exit] = -1;
+    this.next[this.exit] = -1;
+  }
+
+  /** @return The slot {@code flow} jumps to if it starts a block in the run, otherwise -1 */
+  private int target(final LineSlots.Flow flow, final int from, final int to) {
+    final int slot = this.lines.index(flow.target);
+    return slot >= from && slot < to && this.lines.line(slot) != null ? slot : -1;
+  }
+
+  /** Numbers the blocks in reverse postorder from the first one */
+  private void number() {
+    this.order = new int[this.count];
+    Arrays.fill(this.order, -1);
+
+    final int[] postorder = new int[this.count];
+    int visited = 0;
+
+    // Iterative depth first search, stack entries are a block and how many of its successors have been pushed
+    final int[] stack = new int[this.count];
+    final int[] progress = new int[this.count];
+    final boolean[] seen = new boolean[this.count];
+    int top = 0;
+    stack[0] = 0;
+    seen[0] = true;
+
+    while(top >= 0) {
+      final int block = stack[top];
+      final int successor = progress[top] == 0 ? this.taken[block] : progress[top] == 1 ? this.next[block] : -2;
+
+      if(successor == -2) {
+        postorder[visited++] = block;
+        top--;
+        continue;
+      }
+
+      progress[top]++;
+
+      if(successor != -1 && !seen[successor]) {
+        seen[successor] = true;
+        top++;
+        stack[top] = successor;
+        progress[top] = 0;
+      }
+    }
+
+    for(int i = 0; i < visited; i++) {
+      this.order[postorder[i]] = visited - 1 - i;
+    }
+  }
+
+  /** Cooper, Harvey and Kennedy's iterative algorithm */
+  private void findDominators() {
+    final int[] byOrder = new int[this.count];
+    int reachable = 0;
+
+    for(int block = 0; block < this.count; block++) {
+      if(this.order[block] != -1) {
+        byOrder[this.order[block]] = block;
+        reachable++;
+      }
+    }
+
+    final int[][] predecessors = this.predecessors();
+    this.idom = new int[this.count];
+    Arrays.fill(this.idom, -1);
+    this.idom[0] = 0;
+
+    for(boolean changed = true; changed; ) {
+      changed = false;
+
+      for(int i = 1; i < reachable; i++) {
+        final int block = byOrder[i];
+        int dominator = -1;
+
+        for(final int predecessor : predecessors[block]) {
+          if(this.idom[predecessor] != -1) {
+            dominator = dominator == -1 ? predecessor : this.intersect(predecessor, dominator);
+          }
+        }
+
+        if(this.idom[block] != dominator) {
+          this.idom[block] = dominator;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  private int intersect(int a, int b) {
+    while(a != b) {
+      while(this.order[a] > this.order[b]) {
+        a = this.idom[a];
+      }
+
+      while(this.order[b] > this.order[a]) {
+        b = this.idom[b];
+      }
+    }
+
+    return a;
+  }
+
+  private boolean dominates(final int dominator, int block) {
+    while(block != dominator && block != 0) {
+      block = this.idom[block];
+    }
+
+    return block == dominator;
+  }
+
+  /** Reachable predecessors of each block, once per edge */
+  private int[][] predecessors() {
+    final int[] counts = new int[this.count];
+
+    for(int block = 0; block < this.count; block++) {
+      if(this.order[block] != -1) {
+        if(this.taken[block] != -1) {
+          counts[this.taken[block]]++;
+        }
+
+        if(this.next[block] != -1) {
+          counts[this.next[block]]++;
+        }
+      }
+    }
+
+    final int[][] predecessors = new int[this.count][];
+    for(int block = 0; block < this.count; block++) {
+      predecessors[block] = new int[counts[block]];
+      counts[block] = 0;
+    }
+
+    for(int block = 0; block < this.count; block++) {
+      if(this.order[block] != -1) {
+        if(this.taken[block] != -1) {
+          predecessors[this.taken[block]][counts[this.taken[block]]++] = block;
+        }
+
+        if(this.next[block] != -1) {
+          predecessors[this.next[block]][counts[this.next[block]]++] = block;
+        }
+      }
+    }
+
+    return predecessors;
+  }
+
+  /**
+   * Finds loop headers (targets of back edges) and merge blocks (two or more forward edges in)
+   *
+   * @return False if a back edge goes to a block that doesn't dominate its source, i.e. the graph is irreducible
+   */
+  private boolean analyseEdges() {
+    this.loopHeader = new boolean[this.count];
+    this.merge = new boolean[this.count];
+    final int[] forward = new int[this.count];
+
+    for(int block = 0; block < this.count; block++) {
+      if(this.order[block] == -1) {
+        continue;
+      }
+
+      for(final int successor : new int[] {this.taken[block], this.next[block]}) {
+        if(successor == -1) {
+          continue;
+        }
+
+        if(this.isBackward(block, successor)) {
+          if(!this.dominates(successor, block)) {
+            return false;
+          }
+
+          this.loopHeader[successor] = true;
+        } else {
+          forward[successor]++;
+        }
+      }
+    }
+
+    // The exit block is reached with a break of its own, see jump
+    for(int block = 0; block < this.exit; block++) {
+      this.merge[block] = forward[block] > 1;
+    }
+
+    return true;
+  }
+
+  private boolean isBackward(final int source, final int target) {
+    return this.order[target] <= this.order[source];
+  }
+
+  private void buildTree() {
+    final List<List<Integer>> children = new ArrayList<>();
+    for(int block = 0; block < this.count; block++) {
+      children.add(new ArrayList<>());
+    }
+
+    for(int block = 1; block < this.count; block++) {
+      if(this.order[block] != -1 && this.merge[block]) {
+        children.get(this.idom[block]).add(block);
+      }
+    }
+
+    this.mergeChildren = new int[this.count][];
+    for(int block = 0; block < this.count; block++) {
+      this.mergeChildren[block] = children.get(block).stream()
+        .sorted((a, b) -> Integer.compare(this.order[b], this.order[a]))
+        .mapToInt(Integer::intValue)
+        .toArray();
+    }
+  }
+
+  /**
+   * Writes {@code block} and everything it dominates
+   *
+   * @param follow The block control reaches by running off the end of the code written here, or -1 for the exit block
+   */
+  private void tree(final int block, final int follow) {
+    if(this.tooDeep || this.depth == MAX_DEPTH) {
+      this.tooDeep = true;
+      return;
+    }
+
+    this.depth++;
+
+    if(this.loopHeader[block]) {
+      final boolean outer = follow == -1;
+      if(outer) {
+        this.outerLoop = block;
+      }
+
+      this.label(block).text(": while(true)").openBlock();
+      this.within(block, 0, block);
+      this.code.closeBlock().nl();
+
+      if(outer) {
+        this.outerLoop = -1;
+      }
+    } else {
+      this.within(block, 0, follow);
+    }
+
+    this.depth--;
+  }
+
+  /** Writes {@code block} inside a labelled block for each of its merge children from {@code child} on */
+  private void within(final int block, final int child, final int follow) {
+    final int[] children = this.mergeChildren[block];
+
+    if(child == children.length) {
+      this.body(block, follow);
+      return;
+    }
+
+    this.label(children[child]).text(':').openBlock();
+    this.within(block, child + 1, children[child]);
+    this.code.closeBlock().nl();
+    this.tree(children[child], follow);
+  }
+
+  /** Writes the code of {@code block} followed by wherever it goes next */
+  private void body(final int block, final int follow) {
+    this.lines(block);
+
+    final int taken = this.taken[block];
+    final int next = this.next[block];
+
+    if(taken != -1 && next != -1) {
+      final String condition = this.lines.flow(this.lastSlot[block]).condition;
+
+      if(this.isJump(block, taken)) {
+        this.code.openIf(condition);
+        this.jump(block, taken);
+        this.code.closeBlock().nl();
+        this.branch(block, next, follow);
+      } else {
+        this.code.openIf(condition);
+        this.branch(block, taken, follow);
+        this.code.closeBlock().text(" else").openBlock();
+        this.branch(block, next, follow);
+        this.code.closeBlock().nl();
+      }
+    } else if(taken != -1) {
+      this.branch(block, taken, follow);
+    } else if(next != -1) {
+      this.branch(block, next, follow);
+    } else if(block != this.exit && !this.leaves(block)) {
+      this.branch(block, this.exit, follow);
+    }
+  }
+
+  /** @return Whether {@code block} ends by returning, either on its own or with a tail call */
+  private boolean leaves(final int block) {
+    final LineSlots.Flow flow = this.lines.flow(this.lastSlot[block]);
+    return flow != null && (flow.kind == LineSlots.Flow.Kind.RETURN || this.isTailCall(flow));
+  }
+
+  /** Writes the lines of {@code block}, leaving out the jump at the end if it's written by the structure */
+  private void lines(final int block) {
+    for(int slot = this.firstSlot[block]; slot <= this.lastSlot[block]; slot++) {
+      final String line = this.lines.line(slot);
+
+      if(line == null) {
+        continue;
+      }
+
+      if(this.lines.isLabelled(slot)) {
+        this.code.text("//").label(this.lines.address(slot)).nl();
+      }
+
+      final LineSlots.Flow flow = this.lines.flow(slot);
+      final boolean tailCall = this.isTailCall(flow);
+      final String text = slot == this.lastSlot[block] && this.structural[block] || tailCall ? flow.body : line;
+      if(!text.isEmpty() && !this.lines.isFolded(slot)) {
+        this.code.lines(text).nl();
+      }
+
+      if(tailCall) {
+        this.tailCall(flow);
+      }
+    }
+  }
+
+  /** @return Whether {@code flow} leaves the run for the start of a function that has its own method */
+  private boolean isTailCall(final LineSlots.Flow flow) {
+    if(this.returnType == null || flow == null || flow.kind == LineSlots.Flow.Kind.RETURN) {
+      return false;
+    }
+
+    final int slot = this.lines.index(flow.target);
+    return slot != -1 && (slot < this.from || slot >= this.to) && this.lines.line(slot) != null && this.lines.isEntry(slot);
+  }
+
+  private void tailCall(final LineSlots.Flow flow) {
+    if(flow.kind == LineSlots.Flow.Kind.BRANCH) {
+      this.code.openIf(flow.condition);
+    }
+
+    final String method = this.lines.methodName(flow.target, 0).toString();
+    if("void".equals(this.returnType)) {
+      this.code.text(method).text("()").stmt().nl().text("return").stmt();
+    } else {
+      this.code.text("return ").text(method).text("()").stmt();
+    }
+
+    if(flow.kind == LineSlots.Flow.Kind.BRANCH) {
+      this.code.closeBlock();
+    }
+
+    this.code.nl();
+  }
+
+  /** @return Whether going from {@code source} to {@code target} is a {@code break} or {@code continue} */
+  private boolean isJump(final int source, final int target) {
+    return this.isBackward(source, target) || this.merge[target] || target == this.exit;
+  }
+
+  private void branch(final int source, final int target, final int follow) {
+    if(target == follow && this.isJump(source, target) || target == this.exit && follow == -1) {
+      return;
+    }
+
+    if(this.isJump(source, target)) {
+      this.jump(source, target);
+    } else {
+      this.tree(target, follow);
+    }
+  }
+
+  /** Writes the {@code continue} or {@code break} that takes control from {@code source} to {@code target} */
+  private void jump(final int source, final int target) {
+    if(target == this.exit) {
+      this.endBlock |= this.outerLoop == -1;
+      this.code.text("break ");
+      this.label(this.outerLoop != -1 ? this.outerLoop : this.exit).stmt().nl();
+    } else if(this.isBackward(source, target)) {
+      this.code.text("continue ");
+      this.label(target).stmt().nl();
+    } else {
+      this.code.text("break ");
+      this.label(target).stmt().nl();
+    }
+  }
+
+  private CodeEmitter label(final int block) {
+    return this.code.label(this.lines.address(this.firstSlot[block]));
+  }
+}
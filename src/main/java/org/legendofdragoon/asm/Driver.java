@@ -0,0 +1,208 @@
+package org.legendofdragoon.asm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Shared command line flow for the {@link Mips}, {@link Arm} and {@link Thumb} frontends. A single input is translated
+ * to stdout. A directory or glob is translated in batch mode: every matching file is handed to a work-stealing pool and
+ * written to its own output file, so one JVM can get through thousands of small dumps.
+ */
+public final class Driver {
+  @FunctionalInterface
+  public interface Frontend {
+    /**
+     * Writes the translation of {@code input} to {@code out}
+     *
+     * @param memo Earlier results to reuse in incremental mode, otherwise null
+     * @return The translated instructions, or null if {@code input} contains no code, in which case nothing is written
+     */
+    InstructionBuffer translate(Options options, Path input, TranslationMemo memo, Appendable out) throws IOException;
+  }
+
+  private static final String OUTPUT_EXTENSION = ".out";
+
+  private Driver() { }
+
+  public static void run(final Options options, final String architecture, final int version, final Frontend frontend) throws IOException {
+    final TranslationCache cache = options.cache != null ? new TranslationCache(options.cache, options.cacheSize) : null;
+
+    if(isBatch(options.input)) {
+      batch(options, architecture, version, frontend, cache);
+      return;
+    }
+
+    final Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+    if(!translate(options, options.input, architecture, version, frontend, cache, out)) {
+      System.err.println("No code found");
+    }
+
+    out.flush();
+  }
+
+  /** @return False if {@code input} contains no code, in which case nothing is written to {@code out} */
+  private static boolean translate(final Options options, final Path input, final String architecture, final int version, final Frontend frontend, final TranslationCache cache, final Appendable out) throws IOException {
+    final String key = cache != null ? TranslationCache.key(architecture, version, options.variant(), input) : null;
+
+    if(cache != null && cache.stream(key, out)) {
+      return true;
+    }
+
+    // Output is streamed straight to out unless it also has to be cached
+    final StringBuilder text = cache != null ? new StringBuilder() : null;
+    final Appendable sink = text != null ? text : out;
+
+    final InstructionBuffer instructions;
+    if(options.incremental != null) {
+      instructions = translateIncremental(options, input, architecture, version, frontend, sink);
+    } else {
+      instructions = frontend.translate(options, input, null, sink);
+    }
+
+    if(instructions == null) {
+      return false;
+    }
+
+    if(text != null) {
+      out.append(text);
+      cache.put(key, text);
+    }
+
+    return true;
+  }
+
+  /** Reuses the per-instruction results stored by the last incremental run over {@code input}, then stores the new ones */
+  private static InstructionBuffer translateIncremental(final Options options, final Path input, final String architecture, final int version, final Frontend frontend, final Appendable out) throws IOException {
+    final String header = architecture + '\0' + version + '\0' + options.variant() + '\0' + input.toAbsolutePath().normalize();
+    final Path file = Files.createDirectories(options.incremental).resolve(Integer.toHexString(header.hashCode()) + ".memo");
+
+    final TranslationMemo memo = TranslationMemo.load(file, header);
+    final InstructionBuffer instructions = frontend.translate(options, input, memo, out);
+
+    if(instructions != null) {
+      memo.save(file, header);
+      System.err.println("Reused " + memo.hits() + " instructions, translated " + memo.misses() + " for " + input);
+    }
+
+    return instructions;
+  }
+
+  private static boolean isBatch(final Path input) {
+    return Files.isDirectory(input) || isGlob(input.toString());
+  }
+
+  private static boolean isGlob(final String path) {
+    for(int i = 0; i < path.length(); i++) {
+      switch(path.charAt(i)) {
+        case '*', '?', '[', '{' -> {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  private static void batch(final Options options, final String architecture, final int version, final Frontend frontend, final TranslationCache cache) throws IOException {
+    final Path root = root(options.input);
+    final List<Path> inputs = inputs(options.input, root);
+    final Path outputRoot = options.output != null ? options.output : root;
+
+    final long start = System.nanoTime();
+    final ForkJoinPool pool = new ForkJoinPool(options.jobs);
+
+    final List<ForkJoinTask<Boolean>> tasks = new ArrayList<>(inputs.size());
+    try {
+      for(final Path input : inputs) {
+        final Path output = outputRoot.resolve(root.relativize(input).toString() + OUTPUT_EXTENSION);
+
+        tasks.add(pool.submit(() -> {
+          Files.createDirectories(output.toAbsolutePath().getParent());
+
+          final boolean found;
+          try(final Writer out = Files.newBufferedWriter(output)) {
+            found = translate(options, input, architecture, version, frontend, cache, out);
+          } catch(final IOException | RuntimeException e) {
+            Files.deleteIfExists(output);
+            throw e;
+          }
+
+          if(!found) {
+            Files.delete(output);
+          }
+
+          return found;
+        }));
+      }
+
+      int translated = 0;
+      int empty = 0;
+      int failed = 0;
+      for(int i = 0; i < tasks.size(); i++) {
+        try {
+          if(tasks.get(i).get()) {
+            translated++;
+          } else {
+            empty++;
+          }
+        } catch(final ExecutionException e) {
+          failed++;
+          System.err.println("Failed to translate " + inputs.get(i) + ": " + e.getCause());
+        } catch(final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted", e);
+        }
+      }
+
+      System.out.printf("Translated %d of %d files into %s (%d without code, %d failed) in %d ms%n", translated, inputs.size(), outputRoot.toAbsolutePath().normalize(), empty, failed, (System.nanoTime() - start) / 1_000_000);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** @return The directory that batch inputs and their outputs are resolved against */
+  private static Path root(final Path input) {
+    if(Files.isDirectory(input)) {
+      return input;
+    }
+
+    // The deepest directory before the first glob character
+    Path root = input.isAbsolute() ? input.getRoot() : Paths.get("");
+    for(final Path name : input) {
+      if(isGlob(name.toString())) {
+        break;
+      }
+
+      root = root.resolve(name);
+    }
+
+    return root;
+  }
+
+  private static List<Path> inputs(final Path input, final Path root) throws IOException {
+    final PathMatcher matcher = Files.isDirectory(input) ? path -> true : FileSystems.getDefault().getPathMatcher("glob:" + input);
+
+    try(final Stream<Path> files = Files.walk(root)) {
+      return files
+        .filter(Files::isRegularFile)
+        .filter(path -> !path.toString().endsWith(OUTPUT_EXTENSION))
+        .filter(matcher::matches)
+        .sorted()
+        .collect(Collectors.toList());
+    }
+  }
+}
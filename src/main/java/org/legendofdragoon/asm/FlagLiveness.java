@@ -0,0 +1,158 @@
+package org.legendofdragoon.asm;
+
+import java.util.BitSet;
+
+/**
+ * Backward liveness of the ARM NZCV flags, shared by the ARM and Thumb translators. Each instruction is described by an
+ * {@link #effect} - the flags it may write, the flags it always writes, the flags it reads, and how control leaves it.
+ * Branches to instructions in the same input are followed, and all flags are assumed to be read wherever else control
+ * can go.
+ */
+public final class FlagLiveness {
+  public static final int N = 0b1000;
+  public static final int Z = 0b0100;
+  public static final int C = 0b0010;
+  public static final int V = 0b0001;
+  public static final int NZ = N | Z;
+  public static final int NZC = N | Z | C;
+  public static final int NZCV = N | Z | C | V;
+
+  /** Flags read by each condition code, AL and NV read none */
+  private static final int[] CONDITION_FLAGS = {Z, Z, C, C, N, N, V, V, C | Z, C | Z, N | V, N | V, Z | N | V, Z | N | V, 0, 0};
+
+  /** Branches out of the input, calls, returns, SWIs, writes to PC and anything else after which all flags may be read */
+  public static final int TRANSFER = 1 << 12;
+  /** Control never carries on to the next instruction, e.g. an unconditional branch */
+  public static final int ENDS = 1 << 13;
+
+  /** @return The flags read by condition code {@code condition} */
+  public static int conditionFlags(final int condition) {
+    return CONDITION_FLAGS[condition];
+  }
+
+  /**
+   * @param mayWrite  Flags the instruction may change
+   * @param mustWrite Flags the instruction always overwrites, a subset of {@code mayWrite}
+   * @param read      Flags the instruction reads
+   */
+  public static int effect(final int mayWrite, final int mustWrite, final int read) {
+    return mayWrite | mustWrite << 4 | read << 8;
+  }
+
+  /** The effect of an instruction that always overwrites {@code flags} and reads none */
+  public static int writes(final int flags) {
+    return effect(flags, flags, 0);
+  }
+
+  /**
+   * Java for condition code {@code condition} tested straight after a compare, using its operands instead of the flags
+   *
+   * @param operator {@code -} for CMP, {@code +} for CMN or {@code &} for TST
+   * @return The condition, or null if it reads a flag that has no simple form for this compare
+   */
+  public static String compare(final char operator, final String left, final String right, final int condition) {
+    if(operator == '-') {
+      return switch(condition) {
+        case 0x0 -> left + " == " + right;
+        case 0x1 -> left + " != " + right;
+        case 0x2 -> "Integer.compareUnsigned(" + left + ", " + right + ") >= 0";
+        case 0x3 -> "Integer.compareUnsigned(" + left + ", " + right + ") < 0";
+        case 0x4 -> left + " - " + right + " < 0";
+        case 0x5 -> left + " - " + right + " >= 0";
+        case 0x8 -> "Integer.compareUnsigned(" + left + ", " + right + ") > 0";
+        case 0x9 -> "Integer.compareUnsigned(" + left + ", " + right + ") <= 0";
+        case 0xa -> left + " >= " + right;
+        case 0xb -> left + " < " + right;
+        case 0xc -> left + " > " + right;
+        case 0xd -> left + " <= " + right;
+        default -> null;
+      };
+    }
+
+    // CMN and TST only have the N and Z flags in plain Java
+    final String result = operator == '+' ? left + " + " + right : '(' + left + " & " + right + ')';
+    return switch(condition) {
+      case 0x0 -> result + " == 0";
+      case 0x1 -> result + " != 0";
+      case 0x4 -> result + " < 0";
+      case 0x5 -> result + " >= 0";
+      default -> null;
+    };
+  }
+
+  private final int[] effects;
+  /** The flags that may be read after each instruction, before anything overwrites them */
+  private final int[] liveOut;
+  /** Instructions something in the input branches to */
+  private final BitSet targeted = new BitSet();
+
+  /**
+   * @param effects The {@link #effect} of each instruction in address order, optionally with {@link #TRANSFER} and
+   *                {@link #ENDS}
+   * @param targets The index of the instruction each instruction branches or calls to, or -1 if it doesn't or the
+   *                target isn't in the input
+   */
+  public FlagLiveness(final int[] effects, final int[] targets) {
+    this.effects = effects;
+    this.liveOut = new int[effects.length];
+
+    for(final int target : targets) {
+      if(target != -1) {
+        this.targeted.set(target);
+      }
+    }
+
+    // Live flags only ever grow, so this settles once every loop has been walked enough times
+    final int[] liveIn = new int[effects.length];
+    boolean changed = true;
+    while(changed) {
+      changed = false;
+
+      for(int i = effects.length - 1; i >= 0; i--) {
+        final int effect = effects[i];
+        int live = 0;
+
+        if((effect & TRANSFER) != 0 || (effect & ENDS) == 0 && i == effects.length - 1) {
+          live = NZCV;
+        } else if((effect & ENDS) == 0) {
+          live = liveIn[i + 1];
+        }
+
+        if(targets[i] != -1) {
+          live |= liveIn[targets[i]];
+        }
+
+        this.liveOut[i] = live;
+
+        final int in = live & ~(effect >>> 4 & 0xf) | effect >>> 8 & 0xf;
+        if(in != liveIn[i]) {
+          liveIn[i] = in;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /** @return Whether instruction {@code i} writes flags and none of them are read before being overwritten */
+  public boolean unused(final int i) {
+    final int mayWrite = this.effects[i] & 0xf;
+    return mayWrite != 0 && (mayWrite & this.liveOut[i]) == 0;
+  }
+
+  /**
+   * @param condition The condition code of instruction {@code i + 1}
+   * @return Whether the flags instruction {@code i} writes are only read by the condition of instruction {@code i + 1},
+   *         so it can test the operands of instruction {@code i} directly. Flags read any other way, like the carry
+   *         into ADC or RRX, need instruction {@code i} to have run.
+   */
+  public boolean readOnlyByNext(final int i, final int condition) {
+    final int mayWrite = this.effects[i] & 0xf;
+    return
+      i + 1 < this.effects.length &&
+      mayWrite != 0 &&
+      (this.effects[i] & (TRANSFER | ENDS)) == 0 &&
+      !this.targeted.get(i + 1) &&
+      (this.effects[i + 1] >>> 8 & 0xf & ~conditionFlags(condition) & mayWrite) == 0 &&
+      (this.liveOut[i + 1] & mayWrite) == 0;
+  }
+}
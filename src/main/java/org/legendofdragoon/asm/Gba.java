@@ -0,0 +1,68 @@
+package org.legendofdragoon.asm;
+
+import org.apache.logging.log4j.core.config.plugins.util.PluginManager;
+import org.legendofdragoon.asm.gba.Region;
+import org.legendofdragoon.asm.gba.Rom;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+public final class Gba {
+  static {
+    System.setProperty("log4j.skipJansi", "false");
+    PluginManager.addPackage("org.legendofdragoon.asm");
+  }
+
+  private Gba() { }
+
+  public static void main(final String[] args) throws IOException {
+    final Options options = Options.parse(args);
+
+    final Rom rom = Rom.load(options.input);
+    final List<Region> regions = rom.regions();
+
+    final Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+    final org.legendofdragoon.asm.thumb.Translator thumb = new org.legendofdragoon.asm.thumb.Translator(options);
+    final org.legendofdragoon.asm.arm.Translator arm = new org.legendofdragoon.asm.arm.Translator(options);
+
+    // Each region is translated here first so one that fails doesn't leave partial output
+    final StringBuilder text = new StringBuilder();
+
+    boolean found = false;
+    for(final Region region : regions) {
+      final int start = (int)Math.max(region.start, options.start);
+      final int end = (int)Math.min(region.end, options.end);
+
+      if(start >= end) {
+        continue;
+      }
+
+      found = true;
+
+      text.setLength(0);
+      try {
+        if(region.thumb) {
+          thumb.translate(org.legendofdragoon.asm.thumb.Asm.parse(rom.data, Rom.BASE, start, end), text);
+        } else {
+          arm.translate(org.legendofdragoon.asm.arm.Asm.parse(rom.data, Rom.BASE, start, end), text);
+        }
+      } catch(final RuntimeException e) {
+        out.flush();
+        System.err.println("Failed to translate " + (region.thumb ? "Thumb" : "ARM") + " code at " + Integer.toHexString(start) + ": " + e.getMessage());
+        continue;
+      }
+
+      out.append("Disassembly for ").append(region.thumb ? "Thumb" : "ARM").append(" code starting at ").append(Integer.toHexString(start)).append('\n');
+      out.append(text).append('\n');
+    }
+
+    out.flush();
+
+    if(!found) {
+      System.err.println("No code found");
+    }
+  }
+}
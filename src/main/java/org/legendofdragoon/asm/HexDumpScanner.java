@@ -0,0 +1,206 @@
+package org.legendofdragoon.asm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Byte-level scanner for Ghidra-style hex dump lines, e.g.
+ * <pre>      ::8010c2c8 e0  ff  bd  27    addiu      sp,sp,-0x20</pre>
+ * Each line may start with whitespace and an optional {@code label::} prefix, followed by an 8-digit hex address and
+ * the instruction bytes in memory order. The bytes are assembled into a little-endian word without creating any
+ * intermediate strings.
+ */
+public final class HexDumpScanner {
+  @FunctionalInterface
+  public interface Handler {
+    void accept(int address, int word);
+  }
+
+  private static final int WINDOW_SIZE = 0x10000;
+
+  private static final byte[] HEX = new byte[0x100];
+
+  static {
+    Arrays.fill(HEX, (byte)-1);
+
+    for(int i = 0; i < 10; i++) {
+      HEX['0' + i] = (byte)i;
+    }
+
+    for(int i = 0; i < 6; i++) {
+      HEX['a' + i] = (byte)(0xa + i);
+      HEX['A' + i] = (byte)(0xa + i);
+    }
+  }
+
+  private final int minBytes;
+  private final int maxBytes;
+
+  /**
+   * @param minBytes The minimum number of instruction bytes a line must have
+   * @param maxBytes The maximum number of instruction bytes to read from a line. If equal to {@code minBytes}, the
+   *                 last byte doesn't need to be followed by whitespace.
+   */
+  public HexDumpScanner(final int minBytes, final int maxBytes) {
+    if(minBytes < 1 || maxBytes > 4 || minBytes > maxBytes) {
+      throw new IllegalArgumentException("Invalid byte count " + minBytes + ".." + maxBytes);
+    }
+
+    this.minBytes = minBytes;
+    this.maxBytes = maxBytes;
+  }
+
+  public void scan(final ByteBuffer data, final Handler handler) {
+    final int limit = data.limit();
+    int pos = data.position();
+
+    while(pos < limit) {
+      final int end = lineEnd(data, pos, limit);
+      this.scanLine(data, pos, end, handler);
+      pos = end + 1;
+    }
+  }
+
+  /** Reads {@code channel} through a fixed-size window, so memory use doesn't depend on the size of the dump */
+  public void scan(final ReadableByteChannel channel, final Handler handler) throws IOException {
+    final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+    boolean skipping = false;
+    boolean eof = false;
+
+    while(!eof) {
+      eof = channel.read(window) == -1;
+      window.flip();
+
+      int pos = 0;
+      final int limit = window.limit();
+
+      // The rest of an overlong line whose start has already been scanned
+      if(skipping) {
+        final int end = lineEnd(window, pos, limit);
+
+        if(end == limit) {
+          window.clear();
+          continue;
+        }
+
+        skipping = false;
+        pos = end + 1;
+      }
+
+      while(pos < limit) {
+        final int end = lineEnd(window, pos, limit);
+
+        if(end == limit && !eof) {
+          if(pos == 0 && limit == window.capacity()) {
+            // Line doesn't fit in the window, the start is all we need
+            this.scanLine(window, pos, end, handler);
+            skipping = true;
+            pos = limit;
+          }
+
+          break;
+        }
+
+        this.scanLine(window, pos, end, handler);
+        pos = end + 1;
+      }
+
+      window.position(Math.min(pos, limit));
+      window.compact();
+    }
+  }
+
+  private static int lineEnd(final ByteBuffer data, final int start, final int limit) {
+    for(int i = start; i < limit; i++) {
+      if(data.get(i) == '\n') {
+        return i;
+      }
+    }
+
+    return limit;
+  }
+
+  private void scanLine(final ByteBuffer data, final int start, final int end, final Handler handler) {
+    int pos = skipWhitespace(data, start, end);
+
+    // Optional label:: prefix
+    int word = pos;
+    while(word < end && isWordChar(data.get(word))) {
+      word++;
+    }
+
+    if(word + 1 < end && data.get(word) == ':' && data.get(word + 1) == ':') {
+      pos = word + 2;
+    }
+
+    // Address
+    if(pos + 8 > end) {
+      return;
+    }
+
+    int address = 0;
+    for(int i = 0; i < 8; i++) {
+      final int digit = HEX[data.get(pos++) & 0xff];
+
+      if(digit == -1) {
+        return;
+      }
+
+      address = address << 4 | digit;
+    }
+
+    if(pos == end || !isWhitespace(data.get(pos))) {
+      return;
+    }
+
+    // Instruction bytes, little-endian
+    int command = 0;
+    int count = 0;
+
+    while(count < this.maxBytes) {
+      final int next = skipWhitespace(data, pos, end);
+
+      if(next == pos || next + 2 > end) {
+        break;
+      }
+
+      final int hi = HEX[data.get(next) & 0xff];
+      final int lo = HEX[data.get(next + 1) & 0xff];
+
+      if(hi == -1 || lo == -1) {
+        break;
+      }
+
+      final boolean lastFixed = this.minBytes == this.maxBytes && count == this.maxBytes - 1;
+      if(!lastFixed && next + 2 < end && !isWhitespace(data.get(next + 2))) {
+        break;
+      }
+
+      command |= (hi << 4 | lo) << count * 8;
+      count++;
+      pos = next + 2;
+    }
+
+    if(count >= this.minBytes) {
+      handler.accept(address, command);
+    }
+  }
+
+  private static int skipWhitespace(final ByteBuffer data, int pos, final int end) {
+    while(pos < end && isWhitespace(data.get(pos))) {
+      pos++;
+    }
+
+    return pos;
+  }
+
+  private static boolean isWhitespace(final byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0xb;
+  }
+
+  private static boolean isWordChar(final byte b) {
+    return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '_';
+  }
+}
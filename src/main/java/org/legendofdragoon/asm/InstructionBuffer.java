@@ -0,0 +1,94 @@
+package org.legendofdragoon.asm;
+
+import java.util.Arrays;
+
+/**
+ * Decoded instructions stored as parallel primitive arrays (address, raw word, op ordinal) rather than one object per
+ * instruction. Indices follow insertion order, which is address order for everything the parsers produce.
+ */
+public final class InstructionBuffer {
+  private int[] addresses;
+  private int[] words;
+  private int[] ops;
+  private int size;
+
+  public InstructionBuffer() {
+    this(0x400);
+  }
+
+  public InstructionBuffer(final int capacity) {
+    this.addresses = new int[Math.max(capacity, 0x10)];
+    this.words = new int[this.addresses.length];
+    this.ops = new int[this.addresses.length];
+  }
+
+  public void add(final int address, final int word, final int op) {
+    if(this.size == this.addresses.length) {
+      this.grow(this.size * 2);
+    }
+
+    this.addresses[this.size] = address;
+    this.words[this.size] = word;
+    this.ops[this.size] = op;
+    this.size++;
+  }
+
+  /** Appends every instruction in {@code other} after the ones already in this buffer */
+  public void addAll(final InstructionBuffer other) {
+    if(this.size + other.size > this.addresses.length) {
+      this.grow(Math.max(this.size * 2, this.size + other.size));
+    }
+
+    System.arraycopy(other.addresses, 0, this.addresses, this.size, other.size);
+    System.arraycopy(other.words, 0, this.words, this.size, other.size);
+    System.arraycopy(other.ops, 0, this.ops, this.size, other.size);
+    this.size += other.size;
+  }
+
+  private void grow(final int capacity) {
+    this.addresses = Arrays.copyOf(this.addresses, capacity);
+    this.words = Arrays.copyOf(this.words, capacity);
+    this.ops = Arrays.copyOf(this.ops, capacity);
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  public int address(final int index) {
+    return this.addresses[index];
+  }
+
+  public int word(final int index) {
+    return this.words[index];
+  }
+
+  public int op(final int index) {
+    return this.ops[index];
+  }
+
+  /** @return The index of the instruction at {@code address}, or -1 if there isn't one. Addresses must be in order. */
+  public int indexOf(final int address) {
+    int low = 0;
+    int high = this.size - 1;
+
+    while(low <= high) {
+      final int mid = low + high >>> 1;
+      final int compare = Integer.compareUnsigned(this.addresses[mid], address);
+
+      if(compare < 0) {
+        low = mid + 1;
+      } else if(compare > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+}
@@ -0,0 +1,99 @@
+package org.legendofdragoon.asm;
+
+/**
+ * Generated code for lazily evaluated ARM flags, shared by the ARM and Thumb translators. Instead of setting NZCV, a
+ * flag-setting instruction stores its result in {@code lastResult} and, if it's an addition or subtraction, its
+ * operands in {@code lastA} and {@code lastB} and its kind in {@code lastOp}. N and Z always come from
+ * {@code lastResult}. C and V are worked out from the operands of the last addition or subtraction, or read from the
+ * CPSR after anything else, since logical operations leave them alone.
+ *
+ * <p>The variables are written like the registers and live wherever they do, so they carry across calls between
+ * translated functions. The CPSR only holds the real flags after {@link #materialise}, which the translators write
+ * before anything that reads or writes the CPSR itself - SWIs, calls through {@code MEMORY.call}, PSR access and
+ * instructions still translated with a CPU call that uses the flags. {@link #reload} picks them up again after.</p>
+ */
+public final class LazyFlags {
+  private LazyFlags() { }
+
+  /** {@code lastOp}: C and V are in the CPSR */
+  public static final int CPSR = 0;
+  /** {@code lastOp}: C and V are from {@code lastA + lastB} */
+  public static final int ADD = 1;
+  /** {@code lastOp}: C and V are from {@code lastA - lastB} */
+  public static final int SUB = 2;
+
+  private static final String N = "lastResult < 0";
+  private static final String NOT_N = "lastResult >= 0";
+  private static final String Z = "lastResult == 0";
+  private static final String NOT_Z = "lastResult != 0";
+  private static final String C = "(lastOp == " + ADD + " ? Integer.compareUnsigned(lastA + lastB, lastA) < 0 : lastOp == " + SUB + " ? Integer.compareUnsigned(lastA, lastB) >= 0 : CPU.cpsr().getCarry())";
+  private static final String V = "(lastOp == " + ADD + " ? ((lastA ^ (lastA + lastB)) & (lastB ^ (lastA + lastB))) < 0 : lastOp == " + SUB + " ? ((lastA ^ lastB) & (lastA ^ (lastA - lastB))) < 0 : CPU.cpsr().getOverflow())";
+
+  /** Java for condition codes 0x0-0xd, reading only the flags each one needs */
+  private static final String[] CONDITIONS = {
+    Z,
+    NOT_Z,
+    C,
+    '!' + C,
+    N,
+    NOT_N,
+    V,
+    '!' + V,
+    C + " && " + NOT_Z,
+    '!' + C + " || " + Z,
+    '(' + N + ") == " + V,
+    '(' + N + ") != " + V,
+    NOT_Z + " && (" + N + ") == " + V,
+    Z + " || (" + N + ") != " + V,
+  };
+
+  /** @return Java for condition code {@code condition} */
+  public static String condition(final int condition) {
+    return CONDITIONS[condition];
+  }
+
+  /**
+   * {@code dest = lastResult = a + b} or {@code a - b}, keeping the operands for C and V
+   *
+   * @param op   {@link #ADD} or {@link #SUB}
+   * @param dest Null for compares
+   */
+  public static CodeEmitter arithmetic(final CodeEmitter code, final int op, final CodeEmitter.Register dest, final String a, final String b) {
+    code.text("lastA = ").text(a).stmt().nl();
+    code.text("lastB = ").text(b).stmt().nl();
+
+    if(dest != null) {
+      code.reg(dest).text(" = ");
+    }
+
+    code.text("lastResult = lastA ").text(op == ADD ? "+" : "-").text(" lastB").stmt().nl();
+    return code.text("lastOp = ").dec(op).stmt();
+  }
+
+  /**
+   * {@code dest = lastResult = expression}, for operations that only set N and Z
+   *
+   * @param dest Null for TST
+   */
+  public static CodeEmitter logical(final CodeEmitter code, final CodeEmitter.Register dest, final String expression) {
+    if(dest != null) {
+      code.reg(dest).text(" = ");
+    }
+
+    return code.text("lastResult = ").text(expression).stmt();
+  }
+
+  /** Writes the lazy flags to the CPSR */
+  public static CodeEmitter materialise(final CodeEmitter code) {
+    code.text("CPU.setNFlag(").text(N).text(')').stmt().nl();
+    code.text("CPU.setZFlag(").text(Z).text(')').stmt().nl();
+    code.text("CPU.setCFlag(").text(C).text(')').stmt().nl();
+    return code.text("CPU.setVFlag(").text(V).text(')').stmt();
+  }
+
+  /** Picks the flags up from the CPSR again. N and Z are never both set by arithmetic, so Z wins if they are. */
+  public static CodeEmitter reload(final CodeEmitter code) {
+    code.text("lastResult = CPU.cpsr().getZero() ? 0 : CPU.cpsr().getNegative() ? -1 : 1").stmt().nl();
+    return code.text("lastOp = ").dec(CPSR).stmt();
+  }
+}
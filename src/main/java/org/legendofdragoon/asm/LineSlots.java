@@ -0,0 +1,569 @@
+package org.legendofdragoon.asm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Output lines of a translation, in one array slot per possible instruction address from the lowest translated address
+ * to the highest ({@code (address - first) / stride}). Branch targets are marked in a {@link BitSet} over the same
+ * slots, so the output is put together in a single pass without boxing addresses or copying lines to prepend labels.
+ * Lines are always written in address order.
+ *
+ * <p>When the instructions are spread too thinly over their range for a slot per address, or don't line up on the
+ * stride, there is one slot per instruction instead, found by binary search in their sorted addresses.</p>
+ *
+ * <p>Targets that don't land on a line - outside the translated range, or on an address whose line was merged into
+ * another one - are written as bare labels after the code, in address order.</p>
+ *
+ * <p>Slots marked with {@link #fold} belong to instructions written as part of another one. They keep their label and
+ * how control leaves them, but no line is written for them.</p>
+ *
+ * <p>{@link #write(Appendable, Options, String)} can wrap the lines in one method per function instead, using the entry
+ * points and returns marked by the translator, so that HotSpot compiles them rather than interpreting one huge block,
+ * and can turn the jumps between them into structured code.</p>
+ */
+public final class LineSlots {
+  private static final String INDENT = "  ";
+  /** A slot per address is used unless it takes more than this many slots per instruction */
+  private static final int MAX_SLOTS_PER_INSTRUCTION = 8;
+
+  /** A line that doesn't just carry on to the next one, see {@link #jump}, {@link #branch} and {@link #exit} */
+  static final class Flow {
+    enum Kind {
+      JUMP,
+      BRANCH,
+      RETURN,
+    }
+
+    final Kind kind;
+    final String body;
+    final String condition;
+    final long target;
+
+    private Flow(final Kind kind, final String body, final String condition, final long target) {
+      this.kind = kind;
+      this.body = body;
+      this.condition = condition;
+      this.target = target;
+    }
+  }
+
+  private final long first;
+  private final int stride;
+  /** Sorted address of each slot, or null if slots are found from {@link #first} and {@link #stride} */
+  private final long[] addresses;
+  private final String[] lines;
+  private final BitSet labelled;
+  private final BitSet entries;
+  private final BitSet returns;
+  private final BitSet folded;
+
+  /** Every label in the order it was marked, so callers can find out which ones an instruction added */
+  private long[] labels = new long[0x40];
+  private int labelCount;
+
+  /** How control leaves each line, only recorded for structured output */
+  private Flow[] flows;
+
+  private final StringBuilder scratch = new StringBuilder();
+  private final CodeEmitter code;
+  private final int labelDigits;
+
+  private final StringBuilder structuredText = new StringBuilder();
+
+  /**
+   * @param first       Unsigned address of the first instruction
+   * @param last        Unsigned address of the last instruction
+   * @param stride      Instruction alignment in bytes
+   * @param labelDigits Labels are zero-padded to this many digits
+   */
+  public LineSlots(final long first, final long last, final int stride, final int labelDigits) {
+    this(first, stride, null, Math.toIntExact((last - first) / stride + 1), labelDigits);
+  }
+
+  /** @param addresses The sorted, distinct address of each slot */
+  public LineSlots(final long[] addresses, final int labelDigits) {
+    this(0, 1, addresses, addresses.length, labelDigits);
+  }
+
+  private LineSlots(final long first, final int stride, final long[] addresses, final int count, final int labelDigits) {
+    this.first = first;
+    this.stride = stride;
+    this.addresses = addresses;
+    this.lines = new String[count];
+    this.labelled = new BitSet(this.lines.length);
+    this.entries = new BitSet(this.lines.length);
+    this.returns = new BitSet(this.lines.length);
+    this.folded = new BitSet(this.lines.length);
+    this.code = new CodeEmitter(this.scratch, labelDigits);
+    this.labelDigits = labelDigits;
+  }
+
+  /** Slots for the instructions in {@code instructions}, which may be in any order */
+  public static LineSlots of(final InstructionBuffer instructions, final int stride, final int labelDigits) {
+    if(instructions.isEmpty()) {
+      return new LineSlots(new long[0], labelDigits);
+    }
+
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for(int i = 0; i < instructions.size(); i++) {
+      final long address = Integer.toUnsignedLong(instructions.address(i));
+      min = Math.min(min, address);
+      max = Math.max(max, address);
+    }
+
+    boolean dense = (max - min) / stride < (long)instructions.size() * MAX_SLOTS_PER_INSTRUCTION;
+    for(int i = 0; dense && i < instructions.size(); i++) {
+      dense = (Integer.toUnsignedLong(instructions.address(i)) - min) % stride == 0;
+    }
+
+    if(dense) {
+      return new LineSlots(min, max, stride, labelDigits);
+    }
+
+    final long[] addresses = new long[instructions.size()];
+    for(int i = 0; i < addresses.length; i++) {
+      addresses[i] = Integer.toUnsignedLong(instructions.address(i));
+    }
+
+    Arrays.sort(addresses);
+    return new LineSlots(Arrays.stream(addresses).distinct().toArray(), labelDigits);
+  }
+
+  /** @return The slot for {@code address}, or -1 if it doesn't have one */
+  int index(final long address) {
+    if(this.addresses != null) {
+      final int index = Arrays.binarySearch(this.addresses, address);
+      return index >= 0 ? index : -1;
+    }
+
+    final long offset = address - this.first;
+
+    if(offset < 0 || offset % this.stride != 0 || offset / this.stride >= this.lines.length) {
+      return -1;
+    }
+
+    return (int)(offset / this.stride);
+  }
+
+  long address(final int index) {
+    return this.addresses != null ? this.addresses[index] : this.first + (long)index * this.stride;
+  }
+
+  String line(final int index) {
+    return this.lines[index];
+  }
+
+  /** @return Whether the line in slot {@code index} was marked with {@link #function} */
+  boolean isEntry(final int index) {
+    return this.entries.get(index);
+  }
+
+  boolean isLabelled(final int index) {
+    return this.labelled.get(index);
+  }
+
+  /** @return Whether the line in slot {@code index} was marked with {@link #fold} */
+  boolean isFolded(final int index) {
+    return this.folded.get(index);
+  }
+
+  /** @return How control leaves the line in slot {@code index}, or null if it just carries on to the next one */
+  Flow flow(final int index) {
+    return this.flows != null ? this.flows[index] : null;
+  }
+
+  public void put(final long address, final String line) {
+    this.lines[this.index(address)] = line;
+  }
+
+  /** @return The line at {@code address}, or null if there isn't one */
+  public String get(final long address) {
+    final int index = this.index(address);
+    return index != -1 ? this.lines[index] : null;
+  }
+
+  /** Marks {@code address} as a branch target */
+  public void label(final int address) {
+    this.label(Integer.toUnsignedLong(address));
+  }
+
+  public void label(final long address) {
+    final int index = this.index(address);
+
+    if(index != -1) {
+      this.labelled.set(index);
+    }
+
+    if(this.labelCount == this.labels.length) {
+      this.labels = Arrays.copyOf(this.labels, this.labelCount * 2);
+    }
+
+    this.labels[this.labelCount++] = address;
+  }
+
+  /** Marks {@code address} as the start of a function, e.g. a call target or a prologue. Ignored outside the range. */
+  public void function(final long address) {
+    final int index = this.index(address);
+
+    if(index != -1) {
+      this.entries.set(index);
+    }
+  }
+
+  /** Marks the line at {@code address} as an unconditional return from its function */
+  public void functionReturn(final long address) {
+    final int index = this.index(address);
+
+    if(index != -1) {
+      this.returns.set(index);
+    }
+  }
+
+  /** Marks the instruction at {@code address} as written as part of another one, e.g. a compare fused into a branch */
+  public void fold(final long address) {
+    this.folded.set(this.index(address));
+  }
+
+  /**
+   * Records that the line at {@code address} ends by jumping to {@code target}
+   *
+   * @param body The line without the jump, written in its place if the jump becomes part of the structure
+   */
+  public void jump(final long address, final String body, final long target) {
+    this.flow(address, new Flow(Flow.Kind.JUMP, body, null, target));
+  }
+
+  /**
+   * Records that the line at {@code address} ends by jumping to {@code target} if {@code condition} holds
+   *
+   * @param body The line without the branch, written in its place if the branch becomes part of the structure
+   */
+  public void branch(final long address, final String body, final String condition, final long target) {
+    this.flow(address, new Flow(Flow.Kind.BRANCH, body, condition, target));
+  }
+
+  /** Records that the line at {@code address} always ends with a {@code return} statement */
+  public void exit(final long address) {
+    this.flow(address, new Flow(Flow.Kind.RETURN, null, null, 0));
+  }
+
+  private void flow(final long address, final Flow flow) {
+    if(this.flows == null) {
+      this.flows = new Flow[this.lines.length];
+    }
+
+    this.flows[this.index(address)] = flow;
+  }
+
+  /** @return The number of times {@link #label} has been called */
+  public int labelCount() {
+    return this.labelCount;
+  }
+
+  /** @return The distinct labels marked since {@link #labelCount} returned {@code from}, as 32-bit addresses */
+  public int[] labelsSince(final int from) {
+    if(from == this.labelCount) {
+      return TranslationMemo.NO_LABELS;
+    }
+
+    return Arrays.stream(this.labels, from, this.labelCount).distinct().mapToInt(address -> (int)address).toArray();
+  }
+
+  /** Writes every line, each preceded by its label if it has one and followed by {@code \n} */
+  public void write(final Appendable out) throws IOException {
+    this.writeLines(out, 0, this.lines.length);
+    this.writeOrphans(out);
+  }
+
+  /**
+   * Writes every line laid out the way {@code options} asks. With {@link Options#structured} each function's jumps
+   * recorded by the translator become structured code wherever {@link ControlFlow} can manage it, and with
+   * {@link Options#dispatch} any function that isn't structured becomes a dispatch loop. The rest is written like
+   * {@link #write(Appendable)}.
+   *
+   * <p>With {@link Options#functions} each function gets a method. A function starts at the first line, at each line
+   * marked with {@link #function}, and at the line after a return unless something branches to it. When a function's
+   * estimated bytecode would go past {@link Options#methodLimit} the rest of it moves into a helper method, which the
+   * part before tail-calls. Structured functions are only kept if they fit in one method.</p>
+   *
+   * @param returnType Return type of the methods, {@code void} makes the tail calls plain statements
+   */
+  public void write(final Appendable out, final Options options, final String returnType) throws IOException {
+    final int[] starts = options.functions || options.controlFlow() ? this.functionStarts() : new int[] {0};
+
+    for(int i = 0; i < starts.length; i++) {
+      final int from = starts[i];
+      final int to = i + 1 < starts.length ? starts[i + 1] : this.lines.length;
+      final CharSequence structured = options.controlFlow() ? this.structured(from, to, options, options.functions ? returnType : null) : null;
+
+      if(!options.functions) {
+        if(structured != null) {
+          out.append(structured).append('\n');
+        } else {
+          this.writeLines(out, from, to);
+        }
+
+        continue;
+      }
+
+      if(i != 0) {
+        out.append('\n');
+      }
+
+      if(structured != null && estimateBytecode(structured) <= options.methodLimit) {
+        this.openMethod(out, returnType, this.address(from), 0);
+        indent(out, structured);
+        out.append("}\n");
+      } else {
+        this.writeMethods(out, from, to, options.methodLimit, returnType);
+      }
+    }
+
+    this.writeOrphans(out);
+  }
+
+  private void writeLines(final Appendable out, final int from, final int to) throws IOException {
+    for(int i = from; i < to; i++) {
+      if(this.lines[i] == null) {
+        continue;
+      }
+
+      if(this.labelled.get(i)) {
+        out.append(this.labelLine(this.address(i))).append('\n');
+      }
+
+      if(!this.folded.get(i)) {
+        out.append(this.lines[i]).append('\n');
+      }
+    }
+  }
+
+  private void writeOrphans(final Appendable out) throws IOException {
+    for(final long address : this.orphans()) {
+      out.append(this.labelLine(address)).append('\n');
+    }
+  }
+
+  /** @return The slot of the first line of each function */
+  private int[] functionStarts() {
+    final BitSet starts = new BitSet(this.lines.length);
+    boolean open = false;
+    boolean afterReturn = false;
+
+    for(int i = 0; i < this.lines.length; i++) {
+      if(this.lines[i] == null) {
+        continue;
+      }
+
+      if(!open || this.entries.get(i) || afterReturn && !this.labelled.get(i)) {
+        starts.set(i);
+        open = true;
+      }
+
+      afterReturn = this.returns.get(i);
+    }
+
+    // A jump into the middle of another function would have to stay a goto, so the functions between are joined.
+    // Jumps to an entry point are tail calls and entry points always keep their own function.
+    for(boolean joined = true; joined && this.flows != null; ) {
+      joined = false;
+
+      for(int i = 0; i < this.flows.length; i++) {
+        final Flow flow = this.flows[i];
+        final int target = flow != null && flow.kind != Flow.Kind.RETURN ? this.index(flow.target) : -1;
+
+        if(target == -1 || this.lines[target] == null || this.entries.get(target)) {
+          continue;
+        }
+
+        final int high = Math.max(i, target);
+        for(int start = starts.nextSetBit(Math.min(i, target) + 1); start != -1 && start <= high; start = starts.nextSetBit(start + 1)) {
+          if(!this.entries.get(start)) {
+            starts.clear(start);
+            joined = true;
+          }
+        }
+      }
+    }
+
+    return starts.stream().toArray();
+  }
+
+  /** Writes the function in slots {@code from} to {@code to} as a method, split into helpers past {@code methodLimit} */
+  private void writeMethods(final Appendable out, final int from, final int to, final int methodLimit, final String returnType) throws IOException {
+    final long function = this.address(from);
+    int part = 0;
+    int size = 0;
+
+    this.openMethod(out, returnType, function, part);
+
+    for(int i = from; i < to; i++) {
+      if(this.lines[i] == null) {
+        continue;
+      }
+
+      final int estimate = estimateBytecode(this.lines[i]);
+
+      if(size != 0 && size + estimate > methodLimit) {
+        part++;
+        size = 0;
+        out.append(INDENT).append("void".equals(returnType) ? "" : "return ").append(this.methodName(function, part)).append("();\n}\n\n");
+        this.openMethod(out, returnType, function, part);
+      }
+
+      if(this.labelled.get(i)) {
+        indent(out, this.labelLine(this.address(i)));
+      }
+
+      if(!this.folded.get(i)) {
+        indent(out, this.lines[i]);
+      }
+      size += estimate;
+    }
+
+    out.append("}\n");
+  }
+
+  /**
+   * @param returnType Return type of the function's method for tail calls, null if there are no methods to call
+   * @return Slots {@code from} to {@code to} as structured code or a dispatch loop, whichever {@code options} allows,
+   *         without the final line break. Null if neither can be written.
+   */
+  private CharSequence structured(final int from, final int to, final Options options, final String returnType) {
+    this.structuredText.setLength(0);
+
+    // A new emitter each time, one that gave up part way through is left inside its blocks
+    if(!options.structured || !new ControlFlow(this, new CodeEmitter(this.structuredText, this.labelDigits), returnType).write(from, to)) {
+      if(!options.dispatch) {
+        return null;
+      }
+
+      this.structuredText.setLength(0);
+      new ControlFlow(this, new CodeEmitter(this.structuredText, this.labelDigits), returnType).dispatch(from, to);
+    }
+
+    // Drop the last line break
+    if(this.structuredText.length() != 0 && this.structuredText.charAt(this.structuredText.length() - 1) == '\n') {
+      this.structuredText.setLength(this.structuredText.length() - 1);
+    }
+
+    trimBlankLines(this.structuredText);
+    return this.structuredText;
+  }
+
+  /** Empties lines that are only indentation, which the emitter leaves for blank lines inside blocks */
+  private static void trimBlankLines(final StringBuilder text) {
+    int out = 0;
+    int lineStart = 0;
+    boolean blank = true;
+
+    for(int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+
+      if(c == '\n') {
+        if(blank) {
+          out = lineStart;
+        }
+
+        text.setCharAt(out++, c);
+        lineStart = out;
+        blank = true;
+      } else {
+        text.setCharAt(out++, c);
+        blank &= c == ' ';
+      }
+    }
+
+    text.setLength(blank ? lineStart : out);
+  }
+
+  /** @return One entry per line, each preceded by its label if it has one */
+  public List<String> toList() {
+    final List<String> list = new ArrayList<>(this.lines.length);
+
+    for(int i = 0; i < this.lines.length; i++) {
+      if(this.lines[i] == null) {
+        continue;
+      }
+
+      if(this.labelled.get(i)) {
+        final String label = this.labelLine(this.address(i)).toString();
+        list.add(this.folded.get(i) ? label : label + '\n' + this.lines[i]);
+      } else if(!this.folded.get(i)) {
+        list.add(this.lines[i]);
+      }
+    }
+
+    for(final long address : this.orphans()) {
+      list.add(this.labelLine(address).toString());
+    }
+
+    return list;
+  }
+
+  /** @return Labels without a line to go in front of, sorted */
+  private long[] orphans() {
+    return Arrays.stream(this.labels, 0, this.labelCount)
+      .filter(address -> {
+        final int index = this.index(address);
+        return index == -1 || this.lines[index] == null;
+      })
+      .sorted()
+      .distinct()
+      .toArray();
+  }
+
+  private void openMethod(final Appendable out, final String returnType, final long function, final int part) throws IOException {
+    out.append("public ").append(returnType).append(' ').append(this.methodName(function, part)).append("() {\n");
+  }
+
+  /** @return {@code FUN_<address>} for the function itself, followed by {@code _<part>} for its helpers */
+  CharSequence methodName(final long function, final int part) {
+    this.scratch.setLength(0);
+    this.code.text("FUN_").digits(function, this.labelDigits);
+
+    if(part != 0) {
+      this.code.text('_').dec(part);
+    }
+
+    return this.scratch;
+  }
+
+  /**
+   * A rough size for the bytecode of a line. The translators write short statements that are mostly loads, stores and
+   * calls, which come to about a byte of bytecode for every two characters of source, so this errs on the large side.
+   */
+  private static int estimateBytecode(final CharSequence line) {
+    return line.length() / 2;
+  }
+
+  /** Writes {@code text} followed by {@code \n}, with every line indented by one level except blank ones */
+  private static void indent(final Appendable out, final CharSequence text) throws IOException {
+    boolean lineStart = true;
+
+    for(int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+
+      if(lineStart && c != '\n') {
+        out.append(INDENT);
+      }
+
+      out.append(c);
+      lineStart = c == '\n';
+    }
+
+    out.append('\n');
+  }
+
+  /** @return A blank line followed by a label comment, in a buffer that's reused by the next call */
+  private CharSequence labelLine(final long address) {
+    this.scratch.setLength(0);
+    this.code.nl().text("//").label(address);
+    return this.scratch;
+  }
+}
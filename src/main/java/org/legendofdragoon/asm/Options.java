@@ -0,0 +1,149 @@
+package org.legendofdragoon.asm;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public final class Options {
+  /** Hex dump or binary image to translate, or a directory or glob of them to translate in batch mode */
+  public Path input = Paths.get("input.txt");
+  /** Treat the input as a binary image (PSX-EXE or raw RAM/overlay) instead of a hex dump */
+  public boolean binary;
+  /** Load address of a raw binary image, -1 to use the default for the architecture */
+  public long base = -1;
+  /** First address to translate (inclusive) */
+  public long start;
+  /** Last address to translate (exclusive) */
+  public long end = 0x1_0000_0000L;
+  /** Number of threads used to parse hex dumps, 1 streams the dump on the calling thread */
+  public int parallelism = 1;
+  /** Approximate number of bytes of hex dump handed to each parser task */
+  public int chunkSize = 0x10_0000;
+  /** Number of files translated at once in batch mode */
+  public int jobs = Runtime.getRuntime().availableProcessors();
+  /** Directory batch mode writes its output files to, null to write them next to the inputs */
+  public Path output;
+  /** Directory of per-input state for incremental re-translation, null translates every instruction every time */
+  public Path incremental;
+  /** Directory of the translation cache, null disables caching */
+  public Path cache;
+  /** Size in bytes the translation cache is trimmed back to */
+  public long cacheSize = 0x1000_0000L;
+  /** Write a method per detected function instead of one flat block */
+  public boolean functions;
+  /** Estimated bytecode size functions are split at, HotSpot won't compile methods over 8000 bytes by default */
+  public int methodLimit = 8000;
+  /** Recover loops and ifs from the jumps between lines instead of writing {@code LAB_x;} gotos, where it's possible */
+  public boolean structured;
+  /** Write code that can't be structured as a {@code switch} over its blocks in a loop instead of {@code LAB_x;} gotos */
+  public boolean dispatch;
+  /** Write ARM and Thumb arithmetic whose flags are never read as plain Java instead of calls that set them */
+  public boolean flagLiveness;
+  /**
+   * Test ARM and Thumb compares straight from their operands in the condition after them, where only it reads the
+   * flags, and MIPS set-less-than straight from its operands in the BEQ or BNE after it
+   */
+  public boolean fuseCompares;
+  /** Test the condition of a run of ARM instructions with the same condition once, around all of them */
+  public boolean groupConditions;
+  /** Record the operands of ARM and Thumb flag-setting instructions and work out the flags only where they're read */
+  public boolean lazyFlags;
+
+  public static Options parse(final String[] args) {
+    final Options options = new Options();
+
+    for(final String arg : args) {
+      if(!arg.startsWith("--")) {
+        options.input = Paths.get(arg);
+        continue;
+      }
+
+      final int equals = arg.indexOf('=');
+      final String key = equals == -1 ? arg.substring(2) : arg.substring(2, equals);
+      final String value = equals == -1 ? null : arg.substring(equals + 1);
+
+      switch(key) {
+        case "binary" -> options.binary = true;
+        case "base" -> options.base = hex(arg, value);
+        case "start" -> options.start = hex(arg, value);
+        case "end" -> options.end = hex(arg, value);
+        case "parallelism" -> options.parallelism = value != null && value.equals("max") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(required(arg, value));
+        case "chunk-size" -> options.chunkSize = Integer.parseInt(required(arg, value));
+        case "jobs" -> options.jobs = Integer.parseInt(required(arg, value));
+        case "output" -> options.output = Paths.get(required(arg, value));
+        case "incremental" -> options.incremental = Paths.get(value != null ? value : ".asm-incremental");
+        case "cache" -> options.cache = Paths.get(value != null ? value : ".asm-cache");
+        case "cache-size" -> options.cacheSize = Long.parseLong(required(arg, value));
+        case "functions" -> options.functions = true;
+        case "method-limit" -> options.methodLimit = Integer.parseInt(required(arg, value));
+        case "structured" -> options.structured = true;
+        case "dispatch" -> options.dispatch = true;
+        case "flag-liveness" -> options.flagLiveness = true;
+        case "fuse-compares" -> options.fuseCompares = true;
+        case "group-conditions" -> options.groupConditions = true;
+        case "lazy-flags" -> options.lazyFlags = true;
+        default -> throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+
+    return options;
+  }
+
+  /** @return Whether the translators need to record the jumps between lines, see {@link LineSlots#jump} */
+  public boolean controlFlow() {
+    return this.structured || this.dispatch;
+  }
+
+  /** @return Whether the ARM and Thumb translators need {@link FlagLiveness} */
+  public boolean flagAnalysis() {
+    return this.flagLiveness || this.fuseCompares;
+  }
+
+  /** @return The options that affect translation output, in a form suitable for a cache key */
+  public String variant() {
+    final StringBuilder variant = new StringBuilder(this.binary ? "binary " + Long.toHexString(this.base) + ' ' + Long.toHexString(this.start) + ' ' + Long.toHexString(this.end) : "text");
+
+    if(this.functions) {
+      variant.append(" functions ").append(this.methodLimit);
+    }
+
+    if(this.structured) {
+      variant.append(" structured");
+    }
+
+    if(this.dispatch) {
+      variant.append(" dispatch");
+    }
+
+    if(this.flagLiveness) {
+      variant.append(" flag-liveness");
+    }
+
+    if(this.fuseCompares) {
+      variant.append(" fuse-compares");
+    }
+
+    if(this.groupConditions) {
+      variant.append(" group-conditions");
+    }
+
+    if(this.lazyFlags) {
+      variant.append(" lazy-flags");
+    }
+
+    return variant.toString();
+  }
+
+  private static String required(final String arg, final String value) {
+    if(value == null) {
+      throw new IllegalArgumentException("Missing value for " + arg);
+    }
+
+    return value;
+  }
+
+  private static long hex(final String arg, final String value) {
+    final String digits = required(arg, value);
+    final String stripped = digits.startsWith("0x") || digits.startsWith("0X") ? digits.substring(2) : digits;
+    return Long.parseLong(stripped.replace("_", ""), 16);
+  }
+}
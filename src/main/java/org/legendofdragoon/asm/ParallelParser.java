@@ -0,0 +1,84 @@
+package org.legendofdragoon.asm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses a hex dump on a {@link ForkJoinPool}. The input is cut into chunks at line boundaries, each chunk is scanned
+ * and decoded into its own {@link InstructionBuffer}, and the buffers are joined back together in input order.
+ */
+public final class ParallelParser {
+  @FunctionalInterface
+  public interface Decoder {
+    /** @return The op ordinal for {@code word} */
+    int decode(int address, int word);
+  }
+
+  private final HexDumpScanner scanner;
+  private final Decoder decoder;
+
+  public ParallelParser(final HexDumpScanner scanner, final Decoder decoder) {
+    this.scanner = scanner;
+    this.decoder = decoder;
+  }
+
+  public InstructionBuffer parse(final ByteBuffer data, final int parallelism, final int chunkSize) {
+    if(parallelism < 1 || chunkSize < 1) {
+      throw new IllegalArgumentException("Invalid parallelism " + parallelism + " or chunk size " + chunkSize);
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+    try {
+      final List<ForkJoinTask<InstructionBuffer>> chunks = new ArrayList<>();
+
+      final int limit = data.limit();
+      int start = data.position();
+      while(start < limit) {
+        final int end = chunkEnd(data, start, chunkSize);
+        final ByteBuffer chunk = data.slice(start, end - start);
+        chunks.add(pool.submit(() -> this.parseChunk(chunk)));
+        start = end;
+      }
+
+      final List<InstructionBuffer> buffers = new ArrayList<>(chunks.size());
+      int size = 0;
+      for(final ForkJoinTask<InstructionBuffer> chunk : chunks) {
+        final InstructionBuffer buffer = chunk.join();
+        buffers.add(buffer);
+        size += buffer.size();
+      }
+
+      final InstructionBuffer instructions = new InstructionBuffer(size);
+      for(final InstructionBuffer buffer : buffers) {
+        instructions.addAll(buffer);
+      }
+
+      return instructions;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private InstructionBuffer parseChunk(final ByteBuffer chunk) {
+    final InstructionBuffer instructions = new InstructionBuffer(chunk.remaining() / 40);
+    this.scanner.scan(chunk, (address, word) -> instructions.add(address, word, this.decoder.decode(address, word)));
+    return instructions;
+  }
+
+  /** @return The index just past the first newline that ends a chunk of at least {@code chunkSize} bytes, or the limit */
+  private static int chunkEnd(final ByteBuffer data, final int start, final int chunkSize) {
+    final int limit = data.limit();
+
+    for(int i = (int)Math.min((long)start + chunkSize - 1, limit); i < limit; i++) {
+      if(data.get(i) == '\n') {
+        return i + 1;
+      }
+    }
+
+    return limit;
+  }
+}
@@ -0,0 +1,180 @@
+package org.legendofdragoon.asm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Persistent cache of translation output. Entries are keyed by a SHA-256 of the input bytes, the architecture, the
+ * translator version and any options that change the output, so an entry never needs to be invalidated - a changed
+ * input or translator simply produces a different key. Each entry is one deflated file holding the output text. An
+ * entry that can't be read back whole is deleted and treated as missing. The directory is kept under a size limit by
+ * evicting the least recently used entries, tracked through file modification times.
+ */
+public final class TranslationCache {
+  /** Changed whenever the entry layout changes, entries with a different magic are treated as missing */
+  private static final int MAGIC = 0x4c4f4433; // LOD3
+  private static final String EXTENSION = ".bin";
+
+  private final Path directory;
+  private final long maxSize;
+
+  public TranslationCache(final Path directory, final long maxSize) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.maxSize = maxSize;
+  }
+
+  public static String key(final String architecture, final int version, final String variant, final Path input) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch(final NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+
+    digest.update((architecture + '\0' + version + '\0' + variant + '\0').getBytes(StandardCharsets.UTF_8));
+
+    try(final FileChannel channel = FileChannel.open(input)) {
+      final ByteBuffer buffer = ByteBuffer.allocate(0x10000);
+
+      while(channel.read(buffer) != -1) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+
+    final StringBuilder key = new StringBuilder();
+    for(final byte b : digest.digest()) {
+      key.append(Character.forDigit(b >>> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+
+    return key.toString();
+  }
+
+  /**
+   * Writes the cached output for {@code key} to {@code out}. A truncated or corrupt entry is deleted.
+   *
+   * @return False if there is no usable entry for {@code key}
+   */
+  public boolean stream(final String key, final Appendable out) throws IOException {
+    final Path file = this.file(key);
+    final byte[] bytes;
+
+    try(final DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(Files.newInputStream(file))))) {
+      // Written by an older version
+      if(in.readInt() != MAGIC) {
+        return false;
+      }
+
+      // Read in chunks so a corrupt length can't allocate more than the entry holds
+      final int length = in.readInt();
+      bytes = in.readNBytes(Math.max(0, length));
+
+      // Reading to the end makes the inflater check the stream's checksum
+      if(bytes.length != length || in.read() != -1) {
+        throw new IOException("Corrupt cache entry " + file);
+      }
+    } catch(final NoSuchFileException e) {
+      return false;
+    } catch(final IOException e) {
+      // Cut short by a full disk or a killed process, or damaged since
+      Files.deleteIfExists(file);
+      return false;
+    }
+
+    out.append(new String(bytes, StandardCharsets.UTF_8));
+    this.touch(file);
+    return true;
+  }
+
+  /** Stores an entry and evicts old entries if the cache has grown past its size limit */
+  public void put(final String key, final CharSequence text) throws IOException {
+    // Written under a unique name and moved into place so readers never see a partial entry
+    final Path temp = Files.createTempFile(this.directory, key, ".tmp");
+
+    try {
+      try(final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(Files.newOutputStream(temp))))) {
+        out.writeInt(MAGIC);
+
+        final byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+
+      Files.move(temp, this.file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+
+    this.evict();
+  }
+
+  private synchronized void evict() throws IOException {
+    final Map<Path, FileTime> times = new HashMap<>();
+    long size = 0;
+
+    try(final Stream<Path> files = Files.list(this.directory)) {
+      for(final Path file : (Iterable<Path>)files::iterator) {
+        if(!file.getFileName().toString().endsWith(EXTENSION)) {
+          continue;
+        }
+
+        try {
+          size += Files.size(file);
+          times.put(file, Files.getLastModifiedTime(file));
+        } catch(final NoSuchFileException ignored) {
+          // Evicted by another process
+        }
+      }
+    }
+
+    if(size <= this.maxSize) {
+      return;
+    }
+
+    final List<Path> entries = new ArrayList<>(times.keySet());
+    entries.sort(Comparator.comparing(times::get));
+
+    for(int i = 0; i < entries.size() && size > this.maxSize; i++) {
+      try {
+        size -= Files.size(entries.get(i));
+        Files.delete(entries.get(i));
+      } catch(final NoSuchFileException ignored) {
+        // Evicted by another process
+      }
+    }
+  }
+
+  private Path file(final String key) {
+    return this.directory.resolve(key + EXTENSION);
+  }
+
+  private void touch(final Path file) throws IOException {
+    try {
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch(final NoSuchFileException ignored) {
+      // Evicted since it was read, nothing to keep fresh
+    }
+  }
+}
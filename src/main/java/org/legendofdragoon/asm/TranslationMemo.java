@@ -0,0 +1,210 @@
+package org.legendofdragoon.asm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Per-address translation results kept between runs for incremental re-translation. Each translated instruction is
+ * stored with its raw word, output line and everything else it contributed (labels, registers, variables). A later
+ * run only re-translates instructions whose word changed and rebuilds the merged output - labels included - from the
+ * stored and fresh entries.
+ */
+public final class TranslationMemo {
+  private static final int MAGIC = 0x4c4f444d; // LODM
+
+  public static final int[] NO_LABELS = new int[0];
+  public static final String[] NO_VARS = new String[0];
+
+  public static final class Entry {
+    public final int word;
+    public final String line;
+    /** Bit set of register ordinals used by the line */
+    public final long registers;
+    public final int[] labels;
+    public final String[] extraVars;
+    /** Translator-specific flags, e.g. the MIPS branch type */
+    public final int flags;
+
+    public Entry(final int word, final String line, final long registers, final int[] labels, final String[] extraVars, final int flags) {
+      this.word = word;
+      this.line = line;
+      this.registers = registers;
+      this.labels = labels;
+      this.extraVars = extraVars;
+      this.flags = flags;
+    }
+  }
+
+  private Map<Integer, Entry> previous = new HashMap<>();
+  private Map<Integer, Entry> entries = new HashMap<>();
+  private long context;
+  private int hits;
+  private int misses;
+
+  /**
+   * Starts a new run. Entries from the last run that aren't looked up or replaced during this one are dropped.
+   *
+   * @param context Anything other than the instruction word that translations depend on. If it differs from the last
+   *                run, every instruction is translated again.
+   */
+  public void begin(final long context) {
+    this.previous = this.context == context ? this.entries : new HashMap<>();
+    this.entries = new HashMap<>(this.previous.size());
+    this.context = context;
+    this.hits = 0;
+    this.misses = 0;
+  }
+
+  /** @return The stored entry for {@code address} if its word is still {@code word}, otherwise null */
+  public Entry get(final int address, final int word) {
+    final Entry entry = this.previous.get(address);
+    return this.hit(address, entry != null && entry.word == word ? entry : null);
+  }
+
+  /**
+   * Like {@link #get(int, int)} for translations that also depend on the instructions around them, which the
+   * translator sums up in {@link Entry#flags}. The entry is only returned if it was stored with the same flags.
+   */
+  public Entry get(final int address, final int word, final int flags) {
+    return this.get(address, word, flags, ~0);
+  }
+
+  /** Like {@link #get(int, int, int)} when only the {@code mask} bits of {@link Entry#flags} depend on the instructions around it */
+  public Entry get(final int address, final int word, final int flags, final int mask) {
+    final Entry entry = this.previous.get(address);
+    return this.hit(address, entry != null && entry.word == word && (entry.flags & mask) == flags ? entry : null);
+  }
+
+  /** Counts a line as translated again without looking it up, for lines that can't be reused this run. Returns null. */
+  public Entry miss() {
+    this.misses++;
+    return null;
+  }
+
+  private Entry hit(final int address, final Entry entry) {
+    if(entry == null) {
+      this.misses++;
+      return null;
+    }
+
+    this.entries.put(address, entry);
+    this.hits++;
+    return entry;
+  }
+
+  public void put(final int address, final Entry entry) {
+    this.entries.put(address, entry);
+  }
+
+  /** @return The number of instructions reused in the current run */
+  public int hits() {
+    return this.hits;
+  }
+
+  /** @return The number of instructions translated again in the current run */
+  public int misses() {
+    return this.misses;
+  }
+
+  /**
+   * @param header Identifies what the memo was built from (architecture, translator version, input). A stored memo
+   *               with a different header is ignored.
+   * @return The memo stored in {@code file}, or an empty memo if there is none
+   */
+  public static TranslationMemo load(final Path file, final String header) throws IOException {
+    final TranslationMemo memo = new TranslationMemo();
+
+    try(final DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(Files.newInputStream(file))))) {
+      if(in.readInt() != MAGIC || !readString(in).equals(header)) {
+        return memo;
+      }
+
+      memo.context = in.readLong();
+
+      final int count = in.readInt();
+      for(int i = 0; i < count; i++) {
+        final int address = in.readInt();
+        final int word = in.readInt();
+        final String line = readString(in);
+        final long registers = in.readLong();
+
+        final int[] labels = new int[in.readInt()];
+        for(int j = 0; j < labels.length; j++) {
+          labels[j] = in.readInt();
+        }
+
+        final String[] extraVars = new String[in.readInt()];
+        for(int j = 0; j < extraVars.length; j++) {
+          extraVars[j] = readString(in);
+        }
+
+        memo.entries.put(address, new Entry(word, line, registers, labels, extraVars, in.readInt()));
+      }
+    } catch(final NoSuchFileException e) {
+      return memo;
+    }
+
+    return memo;
+  }
+
+  public void save(final Path file, final String header) throws IOException {
+    final Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+
+    try {
+      try(final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(Files.newOutputStream(temp))))) {
+        out.writeInt(MAGIC);
+        writeString(out, header);
+        out.writeLong(this.context);
+        out.writeInt(this.entries.size());
+
+        for(final Map.Entry<Integer, Entry> mapping : this.entries.entrySet()) {
+          final Entry entry = mapping.getValue();
+          out.writeInt(mapping.getKey());
+          out.writeInt(entry.word);
+          writeString(out, entry.line);
+          out.writeLong(entry.registers);
+
+          out.writeInt(entry.labels.length);
+          for(final int label : entry.labels) {
+            out.writeInt(label);
+          }
+
+          out.writeInt(entry.extraVars.length);
+          for(final String var : entry.extraVars) {
+            writeString(out, var);
+          }
+
+          out.writeInt(entry.flags);
+        }
+      }
+
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static String readString(final DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeString(final DataOutputStream out, final String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -1,36 +1,102 @@
 package org.legendofdragoon.asm.arm;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import org.legendofdragoon.asm.HexDumpScanner;
+import org.legendofdragoon.asm.InstructionBuffer;
+import org.legendofdragoon.asm.ParallelParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
 
 public final class Asm {
-  private static final Pattern regex = Pattern.compile("\\s+?(?:\\w*::)?([\\da-f]{8})\\s+([\\da-f]{2})\\s+?([\\da-f]{2})\\s+?([\\da-f]{2})\\s+?([\\da-f]{2}).*", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+  private static final HexDumpScanner scanner = new HexDumpScanner(4, 4);
+  private static final ParallelParser parallelParser = new ParallelParser(scanner, (address, command) -> Ops.get(command).ordinal());
 
   public static Asm parse(final String asm) {
-    final List<Command> commands = new ArrayList<>();
+    final InstructionBuffer instructions = new InstructionBuffer();
+    scanner.scan(ByteBuffer.wrap(asm.getBytes(StandardCharsets.ISO_8859_1)), (address, command) -> instructions.add(address, command, Ops.get(command).ordinal()));
+    return new Asm(instructions);
+  }
+
+  public static Asm parse(final ReadableByteChannel channel) throws IOException {
+    final InstructionBuffer instructions = new InstructionBuffer();
+    scanner.scan(channel, (address, command) -> instructions.add(address, command, Ops.get(command).ordinal()));
+    return new Asm(instructions);
+  }
 
-    final Matcher matcher = regex.matcher(asm);
+  /** Parses a hex dump in chunks of about {@code chunkSize} bytes, split at line boundaries, on {@code parallelism} threads */
+  public static Asm parseParallel(final ByteBuffer data, final int parallelism, final int chunkSize) {
+    return new Asm(parallelParser.parse(data, parallelism, chunkSize));
+  }
 
-    while(matcher.find()) {
-      final int address = Integer.parseUnsignedInt(matcher.group(1), 16);
-      final int command = Integer.parseUnsignedInt(matcher.group(5) + matcher.group(4) + matcher.group(3) + matcher.group(2), 16);
+  /** Parses a hex dump line by line, handing each command to {@code consumer} as soon as it is decoded */
+  public static void parse(final ReadableByteChannel channel, final Consumer<Command> consumer) throws IOException {
+    scanner.scan(channel, (address, command) -> consumer.accept(new Command(address, command, Ops.get(command))));
+  }
 
-      try {
-        commands.add(new Command(address, command));
-      } catch(final IllegalArgumentException e) {
-        throw new RuntimeException(e.getMessage() + " at " + Integer.toHexString(address), e);
-      }
+  /**
+   * Decodes little-endian ARM words from {@code data}, where the first byte of the buffer is at {@code baseAddress}.
+   * Only words in [{@code start}, {@code end}) are decoded.
+   */
+  public static Asm parse(final ByteBuffer data, final int baseAddress, final int start, final int end) {
+    data.order(ByteOrder.LITTLE_ENDIAN);
+
+    final int first = Math.max(start, baseAddress) + 3 & ~0x3;
+    final int last = Math.min(end, baseAddress + data.limit()) & ~0x3;
+
+    final InstructionBuffer instructions = new InstructionBuffer(Math.max(0, (last - first) / 4));
+
+    for(int address = first; address < last; address += 4) {
+      final int command = data.getInt(address - baseAddress);
+      instructions.add(address, command, Ops.get(command).ordinal());
     }
 
-    return new Asm(commands);
+    return new Asm(instructions);
   }
 
+  public final InstructionBuffer instructions;
+  /** {@link Command} view over {@link #instructions}, commands are created on access */
   public final List<Command> commands;
+  /** {@link Operands} of each instruction, decoded once up front */
+  public final long[] operands;
 
-  private Asm(final List<Command> commands) {
-    this.commands = Collections.unmodifiableList(commands);
+  private Asm(final InstructionBuffer instructions) {
+    this.instructions = instructions;
+    this.commands = new CommandList(instructions);
+    this.operands = new long[instructions.size()];
+
+    for(int i = 0; i < instructions.size(); i++) {
+      this.operands[i] = Operands.decode(instructions.address(i), instructions.word(i), Ops.VALUES[instructions.op(i)]);
+    }
+  }
+
+  public Ops op(final int index) {
+    return Ops.VALUES[this.instructions.op(index)];
+  }
+
+  private static final class CommandList extends AbstractList<Command> implements RandomAccess {
+    private final InstructionBuffer instructions;
+
+    private CommandList(final InstructionBuffer instructions) {
+      this.instructions = instructions;
+    }
+
+    @Override
+    public Command get(final int index) {
+      Objects.checkIndex(index, this.instructions.size());
+      return new Command(this.instructions.address(index), this.instructions.word(index), Ops.VALUES[this.instructions.op(index)]);
+    }
+
+    @Override
+    public int size() {
+      return this.instructions.size();
+    }
   }
 }
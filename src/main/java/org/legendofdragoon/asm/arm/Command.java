@@ -6,8 +6,12 @@ public class Command {
   public final Ops op;
 
   public Command(final int address, final int command) {
+    this(address, command, Ops.get(command));
+  }
+
+  Command(final int address, final int command, final Ops op) {
     this.address = address;
     this.command = command;
-    this.op = Ops.get(command);
+    this.op = op;
   }
 }
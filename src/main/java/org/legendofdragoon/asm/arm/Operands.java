@@ -0,0 +1,68 @@
+package org.legendofdragoon.asm.arm;
+
+/**
+ * Operand fields of a decoded ARM instruction, packed into a long so a whole program's worth can sit in one array next
+ * to the {@link org.legendofdragoon.asm.InstructionBuffer}. Registers keep their positional ARM names, immediates are
+ * stored already rotated, combined or sign-extended, and branches store their target.
+ *
+ * <ul>
+ *   <li>{@link #rn} - bits 19-16</li>
+ *   <li>{@link #rd} - bits 15-12</li>
+ *   <li>{@link #rs} - bits 11-8</li>
+ *   <li>{@link #rm} - bits 3-0</li>
+ *   <li>{@link #condition} - bits 31-28</li>
+ *   <li>{@link #value} - immediate operand or offset, shift amount of a register operand, register list, SWI comment
+ *   or branch target</li>
+ * </ul>
+ */
+public final class Operands {
+  private Operands() { }
+
+  public static long decode(final int address, final int command, final Ops op) {
+    final int value = switch(op) {
+      case AND, EOR, SUB, RSB, ADD, ADC, SBC, RSC, TST, TEQ, CMP, CMN, ORR, MOV, BIC, MVN -> {
+        if((command >>> 25 & 0x1) != 0) {
+          yield Integer.rotateRight(command & 0xff, (command >>> 8 & 0xf) * 2);
+        }
+
+        yield command >>> 7 & 0x1f;
+      }
+
+      case PSR_IMM -> Integer.rotateRight(command & 0xff, (command >>> 8 & 0xf) * 2);
+      case TRANS_IMM_9 -> command & 0xfff;
+      case TRANS_REG_9 -> command >>> 7 & 0x1f;
+      case TRANS_IMM_10 -> (command >>> 8 & 0xf) << 4 | command & 0xf;
+      case BLOCK_TRANS -> command & 0xffff;
+      case B, BL -> address + 0x8 + (command << 8 >> 8) * 0x4;
+      case SWI -> command & 0xff_ffff;
+      default -> 0;
+    };
+
+    final int fields = command >>> 16 & 0xf | command >>> 8 & 0xf0 | command & 0xf00 | (command & 0xf) << 12 | command >>> 28 << 16;
+    return fields | (long)value << 32;
+  }
+
+  public static int rn(final long operands) {
+    return (int)operands & 0xf;
+  }
+
+  public static int rd(final long operands) {
+    return (int)operands >>> 4 & 0xf;
+  }
+
+  public static int rs(final long operands) {
+    return (int)operands >>> 8 & 0xf;
+  }
+
+  public static int rm(final long operands) {
+    return (int)operands >>> 12 & 0xf;
+  }
+
+  public static int condition(final long operands) {
+    return (int)operands >>> 16 & 0xf;
+  }
+
+  public static int value(final long operands) {
+    return (int)(operands >>> 32);
+  }
+}
@@ -42,8 +42,13 @@ public enum Ops {
   B,
   /** Branch and link */
   BL,
+
+  /** Any encoding that isn't a supported instruction, e.g. coprocessor ops or data mixed in with code */
+  UNKNOWN,
   ;
 
+  static final Ops[] VALUES = values();
+
   public String getOperator() {
     return switch(this) {
       case AND -> "&";
@@ -63,9 +68,47 @@ public enum Ops {
     return this == SUB || this == RSB || this == ADD || this == ADC || this == SBC || this == RSC;
   }
 
+  /** Set for table keys where bits 11-8 also affect the op (SWP and halfword transfers need them clear) */
+  private static final byte UNDECIDED = -1;
+
+  /** {@link Ops} ordinal for every {@code bits 27-20 << 4 | bits 7-4} key */
+  private static final byte[] TABLE = new byte[0x1000];
+
+  static {
+    for(int key = 0; key < TABLE.length; key++) {
+      final int command = (key & 0xff0) << 16 | (key & 0xf) << 4;
+      final Ops op = classify(command);
+
+      TABLE[key] = (byte)op.ordinal();
+      for(int bits = 0x100; bits <= 0xf00; bits += 0x100) {
+        if(classify(command | bits) != op) {
+          TABLE[key] = UNDECIDED;
+          break;
+        }
+      }
+    }
+  }
+
+  /** @return The op for {@code command}, {@link #UNKNOWN} if it isn't a supported instruction */
   public static Ops get(final int command) {
+    // BX/BLX depend on bits 19-8 as well, which the table key doesn't cover
+    if((command & 0xfffffd0) == 0x12fff10) {
+      return VALUES[BX.ordinal() + (command >>> 5 & 0x1)];
+    }
+
+    final int op = TABLE[command >>> 16 & 0xff0 | command >>> 4 & 0xf];
+
+    if(op == UNDECIDED) {
+      return classify(command);
+    }
+
+    return VALUES[op];
+  }
+
+  /** The mask/compare chain the table is generated from, the order of the tests matters */
+  private static Ops classify(final int command) {
     if((command & 0xfffffd0) == 0x12fff10) {
-      return values()[BX.ordinal() + (command >>> 5 & 0x1)];
+      return VALUES[BX.ordinal() + (command >>> 5 & 0x1)];
     }
 
     if((command & 0xfc000f0) == 0x90) {
@@ -121,17 +164,17 @@ public enum Ops {
     }
 
     if((command & 0xe000090) == 0x10) {
-      return values()[AND.ordinal() + (command >>> 21 & 0xf)];
+      return VALUES[AND.ordinal() + (command >>> 21 & 0xf)];
     }
 
     if((command & 0xe000010) == 0x0) {
-      return values()[AND.ordinal() + (command >>> 21 & 0xf)];
+      return VALUES[AND.ordinal() + (command >>> 21 & 0xf)];
     }
 
     if((command & 0xe000000) == 0x2000000) {
-      return values()[AND.ordinal() + (command >>> 21 & 0xf)];
+      return VALUES[AND.ordinal() + (command >>> 21 & 0xf)];
     }
 
-    throw new IllegalArgumentException("Unknown command %x".formatted(command));
+    return UNKNOWN;
   }
 }
@@ -1,9 +1,11 @@
 package org.legendofdragoon.asm.arm;
 
+import org.legendofdragoon.asm.CodeEmitter;
+
 import java.util.EnumSet;
 import java.util.Set;
 
-public enum Register {
+public enum Register implements CodeEmitter.Register {
   R0("r0"),
   R1("r1"),
   R2("r2"),
@@ -24,23 +26,29 @@ public enum Register {
   SPSR("spsr"),
   ;
 
+  static final Register[] VALUES = values();
+
   public final String name;
+  /** How the register is accessed in generated code */
+  private final String fullName;
 
   Register(final String name) {
     this.name = name;
+    this.fullName = this.ordinal() < 8 ? name : "CPU." + name + "().value";
   }
 
   public String fullName() {
-    if(this.ordinal() < R8.ordinal()) {
-      return this.name;
-    }
+    return this.fullName;
+  }
 
-    return "CPU." + this.name + "().value";
+  @Override
+  public String code() {
+    return this.fullName;
   }
 
   public static Set<Register> unpack(final int packed) {
     final Set<Register> registers = EnumSet.noneOf(Register.class);
-    for(final Register r : values()) {
+    for(final Register r : VALUES) {
       if((packed & 0x1 << r.ordinal()) != 0) {
         registers.add(r);
       }
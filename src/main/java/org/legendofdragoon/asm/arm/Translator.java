@@ -1,562 +1,1109 @@
 package org.legendofdragoon.asm.arm;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import org.legendofdragoon.asm.CodeEmitter;
+import org.legendofdragoon.asm.FlagLiveness;
+import org.legendofdragoon.asm.InstructionBuffer;
+import org.legendofdragoon.asm.LazyFlags;
+import org.legendofdragoon.asm.LineSlots;
+import org.legendofdragoon.asm.Options;
+import org.legendofdragoon.asm.TranslationMemo;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class Translator {
-  public List<String> translate(final Asm asm) {
-    final Map<Integer, String> lines = new LinkedHashMap<>();
-    final Set<Integer> labels = new HashSet<>();
+  /** Bumped whenever a change alters the output, so stale {@link org.legendofdragoon.asm.TranslationCache} entries are never hit */
+  public static final int VERSION = 3;
+
+  /** Java for condition codes 0x0-0xd, 0xe is always and 0xf is illegal */
+  private static final String[] CONDITIONS = {
+    "CPU.cpsr().getZero()",
+    "!CPU.cpsr().getZero()",
+    "CPU.cpsr().getCarry()",
+    "!CPU.cpsr().getCarry()",
+    "CPU.cpsr().getNegative()",
+    "!CPU.cpsr().getNegative()",
+    "CPU.cpsr().getOverflow()",
+    "!CPU.cpsr().getOverflow()",
+    "CPU.cpsr().getCarry() && !CPU.cpsr().getZero()",
+    "!CPU.cpsr().getCarry() || CPU.cpsr().getZero()",
+    "CPU.cpsr().getNegative() == CPU.cpsr().getOverflow()",
+    "CPU.cpsr().getNegative() != CPU.cpsr().getOverflow()",
+    "!CPU.cpsr().getZero() && CPU.cpsr().getOverflow()",
+    "CPU.cpsr().getZero() || !CPU.cpsr().getOverflow()",
+  };
+
+  private static final String[] CONDITION_COMMENTS = {
+    "==",
+    "!=",
+    "unsigned >=",
+    "unsigned <",
+    "negative",
+    "positive or 0",
+    "signed overflow",
+    "signed no overflow",
+    "unsigned >",
+    "unsigned <=",
+    ">=",
+    "<",
+    ">",
+    "<=",
+  };
+
+  /** CPU methods for the flag-setting data processing ops, e.g. {@code andA} for {@link Ops#AND} */
+  private static final Map<Ops, String> METHODS = new EnumMap<>(Ops.class);
+
+  static {
+    for(final Ops op : Ops.values()) {
+      METHODS.put(op, op.name().toLowerCase() + 'A');
+    }
+  }
 
-    final int firstAddress = asm.commands.get(0).address;
-    final int lastAddress = asm.commands.get(asm.commands.size() - 1).address;
+  /** {@link TranslationMemo.Entry#flags}: nothing reads the flags the instruction sets */
+  private static final int UNUSED_FLAGS = 0x1;
+  /** {@link TranslationMemo.Entry#flags}: a compare tested by the conditional instruction after it, so it has no line of its own */
+  private static final int FUSED_INTO_NEXT = 0x2;
+  /** {@link TranslationMemo.Entry#flags}: a conditional instruction testing the operands of the compare before it */
+  private static final int FUSED_WITH_PREVIOUS = 0x4;
+  /** {@link TranslationMemo.Entry#flags}: part of a run with the same condition, stored without its if */
+  private static final int GROUPED = 0x8;
 
-    for(final Command command : asm.commands) {
-      final String line = switch(command.op) {
-        case AND, EOR, SUB, RSB, ADD, ADC, SBC, RSC, TST, TEQ, CMP, CMN, ORR, MOV, BIC, MVN -> {
-          final boolean isRightImmediate = (command.command >>> 25 & 0x1) != 0;
-          final boolean setFlags = (command.command >>> 20 & 0x1) != 0;
-          final Register left = Register.values()[command.command >>> 16 & 0xf];
-          final Register dest = Register.values()[command.command >>> 12 & 0xf];
+  /** Each instruction is written here, then copied out as its line */
+  private final StringBuilder buffer = new StringBuilder();
+  private final CodeEmitter code = new CodeEmitter(this.buffer, 7);
 
-          String out = "";
+  /** Layout of the output, only used by {@link #translate(Asm, TranslationMemo, Appendable)} */
+  private final Options options;
 
-          if(dest == Register.R15_PC) {
-            out += "//TODO PC SET\n";
+  public Translator() {
+    this(new Options());
+  }
 
-            if(setFlags) {
-              out += "CPU.restorePsr();\n";
-            }
-          }
+  public Translator(final Options options) {
+    this.options = options;
+  }
 
-          final boolean hasAssignment = command.op != Ops.TST && command.op != Ops.TEQ && command.op != Ops.CMP && command.op != Ops.CMN;
-          if(isRightImmediate) {
-            if(hasAssignment) {
-              out += "%s = ".formatted(dest.fullName());
-            }
+  public List<String> translate(final Asm asm) {
+    return this.translate(asm, (TranslationMemo)null);
+  }
 
-            final int shift = (command.command >>> 8 & 0xf) * 2;
-            final int right = Integer.rotateRight(command.command & 0xff, shift);
+  /**
+   * @param memo Results of an earlier run, reused for every instruction whose word hasn't changed. Null translates
+   *             everything. The memo is updated to match this run.
+   */
+  public List<String> translate(final Asm asm, final TranslationMemo memo) {
+    return this.lines(asm, memo).toList();
+  }
 
-            if(left == Register.R15_PC) { // ADR pseudo-op
-              if(setFlags) {
-                out += "CPU.%sA(0x%x, 0x%x);".formatted(command.op.name().toLowerCase(), command.address + 0x8, right);
+  /** Writes the translation to {@code out}, ending every line with {@code \n} */
+  public void translate(final Asm asm, final Appendable out) throws IOException {
+    this.translate(asm, null, out);
+  }
 
-                if(shift != 0) {
-                  out += "%nCPU.setCFlag(%b);".formatted((right & 0x8000_0000) != 0);
-                }
-              } else {
-                out += "0x%x %s 0x%x;".formatted(command.address + 0x8, command.op.getOperator(), right);
-              }
+  /** @see #translate(Asm, TranslationMemo) */
+  public void translate(final Asm asm, final TranslationMemo memo, final Appendable out) throws IOException {
+    final LineSlots lines = this.lines(asm, memo);
 
-              yield conditional(command, out);
-            }
+    if(this.options.functions || this.options.controlFlow()) {
+      markFunctions(asm, lines);
+    }
 
-            if(setFlags) {
-              out += "CPU.%sA(%s, 0x%x);".formatted(command.op.name().toLowerCase(), left.fullName(), right);
+    lines.write(out, this.options, "int");
+  }
 
-              if(shift != 0 && (command.op == Ops.AND || command.op == Ops.EOR || command.op == Ops.TST || command.op == Ops.TEQ || command.op == Ops.ORR || command.op == Ops.MOV || command.op == Ops.BIC || command.op == Ops.MVN)) {
-                out += "%nCPU.setCFlag(%b);".formatted((right & 0x8000_0000) != 0);
-              }
-            } else {
-              out += switch(command.op) {
-                case MOV -> "0x%x;".formatted(right);
-                case BIC -> "%s & ~0x%x;".formatted(left.fullName(), right);
-                case MVN -> "~0x%x;".formatted(right);
-                case RSB -> "0x%x %s %s;".formatted(right, command.op.getOperator(), left.fullName());
-                case ADC -> "%s + 0x%x + (CPU.cpsr().getCarry() ? 1 : 0);".formatted(left.fullName(), right);
-                case SBC -> "%s - 0x%x - (CPU.cpsr().getCarry() ? 0 : 1);".formatted(left.fullName(), right);
-                case RSC -> "0x%x - %s - (CPU.cpsr().getCarry() ? 0 : 1);".formatted(right, left.fullName());
-                default -> "%s %s 0x%x;".formatted(left.fullName(), command.op.getOperator(), right);
-              };
-            }
+  /**
+   * Functions start at BL targets and at {@code STMFD sp!, {.., lr}}, and end at an unconditional {@code BX lr},
+   * {@code MOV pc, lr} or {@code LDM} that loads PC
+   */
+  private static void markFunctions(final Asm asm, final LineSlots lines) {
+    final InstructionBuffer instructions = asm.instructions;
+
+    for(int i = 0; i < instructions.size(); i++) {
+      final long address = Integer.toUnsignedLong(instructions.address(i));
+      final int command = instructions.word(i);
+      final long operands = asm.operands[i];
+      final boolean always = Operands.condition(operands) == 0xe;
 
-            yield conditional(command, out);
+      switch(asm.op(i)) {
+        case BL -> lines.function(Integer.toUnsignedLong(Operands.value(operands)));
+
+        case BX -> {
+          if(always && Operands.rm(operands) == Register.R14_LR.ordinal()) {
+            lines.functionReturn(address);
           }
+        }
 
-          final boolean isShiftImmediate = (command.command >>> 4 & 0x1) == 0;
-          final Register right = Register.values()[command.command & 0xf];
-          final int shiftType = command.command >>> 5 & 0x3;
+        // Register operand with no shift
+        case MOV -> {
+          if(always && (command & 0x0200_0ff0) == 0 && Operands.rd(operands) == Register.R15_PC.ordinal() && Operands.rm(operands) == Register.R14_LR.ordinal()) {
+            lines.functionReturn(address);
+          }
+        }
+
+        case BLOCK_TRANS -> {
+          final boolean isLoad = (command >>> 20 & 0x1) != 0;
+          final int rlist = Operands.value(operands);
 
-          if(left == Register.R15_PC) { // ADR pseudo-op
-            out += "//TODO PC SET\n";
-//            throw new RuntimeException("Not implemented, see Using R15 (PC)");
+          if(isLoad && always && (rlist & 1 << Register.R15_PC.ordinal()) != 0) {
+            lines.functionReturn(address);
+          } else if(!isLoad && always && (command >>> 21 & 0x1) != 0 && Operands.rn(operands) == Register.R13_SP.ordinal() && (rlist & 1 << Register.R14_LR.ordinal()) != 0) {
+            lines.function(address);
           }
+        }
+      }
+    }
+  }
 
-          if(isShiftImmediate) {
-            final int shift = command.command >>> 7 & 0x1f;
-            final String shifted = shift(command, setFlags, shiftType, right.fullName(), shift);
+  private LineSlots lines(final Asm asm, final TranslationMemo memo) {
+    final InstructionBuffer instructions = asm.instructions;
+    final int firstAddress = instructions.address(0);
+    final int lastAddress = instructions.address(instructions.size() - 1);
+    final LineSlots lines = LineSlots.of(instructions, 4, 7);
+    final int[] targets = new int[instructions.size()];
+    final int[] effects = this.options.flagAnalysis() || this.options.groupConditions ? flagEffects(asm, targets) : null;
+    final FlagLiveness liveness = this.options.flagAnalysis() ? new FlagLiveness(effects, targets) : null;
+    final int[] groups = this.options.groupConditions ? conditionGroups(asm, effects, targets) : null;
+
+    // Branches are only turned into labels within the translated range
+    if(memo != null) {
+      memo.begin((long)firstAddress << 32 | lastAddress & 0xffff_ffffL);
+    }
 
-            if(setFlags) {
-              if(command.op.isLogical()) {
-                switch(shiftType) {
-                  case 0x0 -> {
-                    if(shift != 0) {
-                      out += "CPU.setCFlag((%s & 0x1 << %d) != 0);".formatted(right.fullName(), 32 - shift);
-                    }
-                  }
-
-                  case 0x1, 0x2 -> {
-                    if(shift != 0) {
-                      out += "CPU.setCFlag((%s & 0x1 << %d) != 0);".formatted(right.fullName(), shift - 1);
-                    } else {
-                      out += "CPU.setCFlag((%s & 0x8000_0000) != 0);".formatted(right.fullName());
-                    }
-                  }
-
-                  case 0x3 -> {
-                    if(shift != 0) {
-                      out += "CPU.setCFlag((%s & 0x1 << %d) != 0);".formatted(right.fullName(), shift - 1);
-                    } else {
-                      out += "final boolean oldCarry%x = CPU.cpsr().getCarry();\n".formatted(command.address);
-                      out += "CPU.setCFlag((%s & 0x1) != 0);".formatted(right.fullName());
-                    }
-                  }
-                }
-
-                out += "\n";
-              }
+    boolean reused = false;
+    String condition = null;
+    int groupStart = 0;
+    int groupEnd = 0;
+    String groupCondition = null;
+
+    for(int i = 0; i < instructions.size(); i++) {
+      final int address = instructions.address(i);
+      final String fusedCondition = condition;
+
+      // A compare whose flags only the conditional instruction after it reads is tested there instead
+      condition = this.options.fuseCompares && i + 1 < instructions.size() && liveness.readOnlyByNext(i, Operands.condition(asm.operands[i + 1])) ? fusedCondition(asm, i + 1) : null;
+
+      // With lazy flags a condition tests their variables instead, unless it was fused
+      final String testCondition = fusedCondition == null && this.options.lazyFlags && Operands.condition(asm.operands[i]) < 0xe ? LazyFlags.condition(Operands.condition(asm.operands[i])) : fusedCondition;
+
+      if(groups != null && groups[i] != 0) {
+        groupStart = i;
+        groupEnd = i + groups[i];
+        groupCondition = testCondition != null ? testCondition : CONDITIONS[Operands.condition(asm.operands[i])];
+      }
+
+      // Memoised with how the flags are used, since that depends on the instructions around this one
+      final int flags =
+        (this.options.flagLiveness && liveness.unused(i) ? UNUSED_FLAGS : 0) |
+        (condition != null ? FUSED_INTO_NEXT : 0) |
+        (fusedCondition != null ? FUSED_WITH_PREVIOUS : 0) |
+        (i < groupEnd ? GROUPED : 0);
+
+      // A fused condition is written from the compare before it, so it can only be reused along with the compare
+      final TranslationMemo.Entry entry = memo == null ? null : fusedCondition != null && !reused ? memo.miss() : memo.get(address, instructions.word(i), flags);
+      reused = entry != null;
+
+      final String line;
+      if(entry != null) {
+        for(final int label : entry.labels) {
+          lines.label(label);
+        }
 
-              if(hasAssignment) {
-                out += "%s = ".formatted(dest.fullName());
-              }
+        line = entry.line;
+      } else {
+        final int labelCount = lines.labelCount();
+        this.buffer.setLength(0);
 
-              out += "CPU.%sA(%s, %s);".formatted(command.op.name().toLowerCase(), left.fullName(), shifted);
-            } else {
-              if(hasAssignment) {
-                out += "%s = ".formatted(dest.fullName());
-              }
+        if((flags & FUSED_INTO_NEXT) == 0) {
+          translateInstruction(this.code, address, instructions.word(i), asm.op(i), asm.operands[i], firstAddress, lastAddress, (flags & UNUSED_FLAGS) != 0, this.options.lazyFlags, testCondition, (flags & GROUPED) != 0, lines);
+        }
 
-              out += switch(command.op) {
-                case MOV -> "%s;".formatted(shifted);
-                case BIC -> "%s & (~%s);".formatted(left.fullName(), shifted);
-                case MVN -> "(~%s);".formatted(shifted);
-                case RSB -> "(%s) %s %s;".formatted(shifted, command.op.getOperator(), left.fullName());
-                case ADC -> "%s + (%s) + (CPU.cpsr().getCarry() ? 1 : 0);".formatted(left.fullName(), shifted);
-                case SBC -> "%s - (%s) - (CPU.cpsr().getCarry() ? 0 : 1);".formatted(left.fullName(), shifted);
-                case RSC -> "(%s) - %s - (CPU.cpsr().getCarry() ? 0 : 1);".formatted(shifted, left.fullName());
-                default -> "%s %s (%s);".formatted(left.fullName(), command.op.getOperator(), shifted);
-              };
-            }
+        line = this.buffer.toString();
 
-            yield conditional(command, out);
-          }
+        if(memo != null) {
+          memo.put(address, new TranslationMemo.Entry(instructions.word(i), line, 0, lines.labelsSince(labelCount), TranslationMemo.NO_VARS, flags));
+        }
+      }
 
-          final Register shift = Register.values()[command.command >>> 8 & 0xf];
-          final String shifted = shift(shiftType, right.fullName(), shift.fullName());
+      lines.put(Integer.toUnsignedLong(address), line);
 
-          if(setFlags) {
-            if(command.op.isLogical()) {
-              out += "if(%s != 0) {%n".formatted(shift.fullName());
-              switch(shiftType) {
-                case 0x0 -> out += "  CPU.setCFlag((%s & 0x1 << (32 - %s)) != 0);".formatted(right.fullName(), shift.fullName());
-                case 0x1, 0x2 -> out += "  CPU.setCFlag((%s & 0x1 << (%s - 1)) != 0);".formatted(right.fullName(), shift.fullName());
-                case 0x3 -> out += "  CPU.setCFlag((%s & 0x1 << ((%s & 0x1f) - 1)) != 0);".formatted(right.fullName(), shift.fullName());
-              }
-              out += "\n}\n";
-            }
+      if((flags & FUSED_INTO_NEXT) != 0) {
+        lines.fold(Integer.toUnsignedLong(address));
+      }
 
-            if(hasAssignment) {
-              out += "%s = ".formatted(dest.fullName());
-            }
+      if(i == groupEnd - 1) {
+        this.group(lines, instructions, groupStart, groupEnd, groupCondition, CONDITION_COMMENTS[Operands.condition(asm.operands[i])]);
+      }
 
-            out += "CPU.%sA(%s, %s);".formatted(command.op.name().toLowerCase(), left.fullName(), shifted);
-          } else {
-            if(hasAssignment) {
-              out += "%s = ".formatted(dest.fullName());
-            }
+      if(this.options.controlFlow()) {
+        recordFlow(lines, address, asm.op(i), asm.operands[i], firstAddress, lastAddress, testCondition);
+      }
+    }
 
-            out += switch(command.op) {
-              case MOV -> "%s;".formatted(shifted);
-              case BIC -> "%s & (~%s);".formatted(left.fullName(), shifted);
-              case MVN -> "(~%s);".formatted(shifted);
-              case RSB -> "(%s) %s %s;".formatted(shifted, command.op.getOperator(), left.fullName());
-              case ADC -> "%s + (%s) + (CPU.cpsr().getCarry() ? 1 : 0);".formatted(left.fullName(), shifted);
-              case SBC -> "%s - (%s) - (CPU.cpsr().getCarry() ? 0 : 1);".formatted(left.fullName(), shifted);
-              case RSC -> "(%s) - %s - (CPU.cpsr().getCarry() ? 0 : 1);".formatted(shifted, left.fullName());
-              default -> "%s %s (%s);".formatted(left.fullName(), command.op.getOperator(), shifted);
-            };
-          }
+    return lines;
+  }
 
-          yield conditional(command, out);
-        }
+  /**
+   * Finds runs of instructions with the same condition that can share one if. Only the last instruction in a run may
+   * change the flags the condition reads, nothing may branch into the middle of it, and none of them may branch.
+   *
+   * @return The length of the run starting at each instruction, 0 if a run of two or more doesn't start there
+   */
+  private static int[] conditionGroups(final Asm asm, final int[] effects, final int[] targets) {
+    final InstructionBuffer instructions = asm.instructions;
+    final int[] groups = new int[instructions.size()];
+    final BitSet targeted = new BitSet();
+
+    for(final int target : targets) {
+      if(target != -1) {
+        targeted.set(target);
+      }
+    }
 
-        case PSR_IMM, PSR_REG -> {
-          final boolean isImmediate = (command.command >>> 25 & 0x1) != 0;
-          final boolean isSpsr = (command.command >>> 22 & 0x1) != 0;
-          final boolean isMsr = (command.command >>> 21 & 0x1) != 0;
+    for(int i = 0; i < instructions.size(); ) {
+      final int condition = Operands.condition(asm.operands[i]);
+
+      if(!groupable(asm, effects, i)) {
+        i++;
+        continue;
+      }
+
+      int end = i + 1;
+      while(
+        end < instructions.size() &&
+        groupable(asm, effects, end) &&
+        Operands.condition(asm.operands[end]) == condition &&
+        !targeted.get(end) &&
+        instructions.address(end) == instructions.address(end - 1) + 4 &&
+        (effects[end - 1] & FlagLiveness.conditionFlags(condition)) == 0
+      ) {
+        end++;
+      }
+
+      if(end - i > 1) {
+        groups[i] = end - i;
+      }
+
+      i = end;
+    }
+
+    return groups;
+  }
+
+  /** @return Whether the instruction at {@code i} is conditional and carries on to the next instruction */
+  private static boolean groupable(final Asm asm, final int[] effects, final int i) {
+    return switch(asm.op(i)) {
+      case B, BL, BX, BLX, SWI, TRANS_SWAP_12, UNKNOWN -> false;
+      default -> Operands.condition(asm.operands[i]) < 0xe && (effects[i] & FlagLiveness.TRANSFER) == 0;
+    };
+  }
+
+  /** Writes one if around a run of instructions on the line of the first, and folds the rest into it */
+  private void group(final LineSlots lines, final InstructionBuffer instructions, final int start, final int end, final String condition, final String comment) {
+    this.buffer.setLength(0);
+    this.code.openIf(condition, comment);
+
+    for(int i = start; i < end; i++) {
+      if(i != start) {
+        this.code.nl();
+      }
+
+      this.code.lines(lines.get(Integer.toUnsignedLong(instructions.address(i))));
+    }
+
+    this.code.closeIf();
+
+    lines.put(Integer.toUnsignedLong(instructions.address(start)), this.buffer.toString());
 
-          final String psr = isSpsr ? "spsr" : "cpsr";
+    for(int i = start + 1; i < end; i++) {
+      lines.fold(Integer.toUnsignedLong(instructions.address(i)));
+    }
+  }
 
-          if(!isMsr) {
-            final Register dest = Register.values()[command.command >>> 12 & 0xf];
-            yield conditional(command, "%s = CPU.%s().get();".formatted(dest.fullName(), psr));
+  /**
+   * Tells {@code lines} how control leaves an instruction, so its branch can become part of a loop or if. Branches out
+   * of the translated range are left as they are.
+   *
+   * @param testCondition The fused or lazy condition of a conditional branch, or null if it tests the flags
+   */
+  private static void recordFlow(final LineSlots lines, final int address, final Ops op, final long operands, final int firstAddress, final int lastAddress, final String testCondition) {
+    final int condition = Operands.condition(operands);
+
+    switch(op) {
+      case B -> {
+        final int jump = Operands.value(operands);
+
+        if(jump >= firstAddress && jump <= lastAddress) {
+          if(condition < 0xe) {
+            lines.branch(Integer.toUnsignedLong(address), "", testCondition != null ? testCondition : CONDITIONS[condition], Integer.toUnsignedLong(jump));
+          } else {
+            lines.jump(Integer.toUnsignedLong(address), "", Integer.toUnsignedLong(jump));
           }
+        }
+      }
 
-          final boolean maskFlags = (command.command >>> 19 & 0x1) != 0;
-          final boolean maskStatus = (command.command >>> 18 & 0x1) != 0;
-          final boolean maskExtension = (command.command >>> 17 & 0x1) != 0;
-          final boolean maskControl = (command.command >>> 16 & 0x1) != 0;
+      case BX -> {
+        if(condition == 0xe && Operands.rm(operands) == Register.R14_LR.ordinal()) {
+          lines.exit(Integer.toUnsignedLong(address));
+        }
+      }
+    }
+  }
 
-          if(isImmediate) {
-            final int shift = (command.command >>> 8 & 0xf) * 2;
-            final int immediate = Integer.rotateRight(command.command & 0xff, shift);
-            yield conditional(command, "CPU.%s().msr(%x, %b, %b, %b, %b);".formatted(psr, immediate, maskFlags, maskStatus, maskExtension, maskControl));
+  /**
+   * How each instruction uses the flags, see {@link FlagLiveness#effect}
+   *
+   * @param targets Filled with the index of the instruction each branch or call goes to, or -1
+   */
+  private static int[] flagEffects(final Asm asm, final int[] targets) {
+    final InstructionBuffer instructions = asm.instructions;
+    final int[] effects = new int[instructions.size()];
+
+    for(int i = 0; i < effects.length; i++) {
+      final Ops op = asm.op(i);
+      final int command = instructions.word(i);
+      final long operands = asm.operands[i];
+      final boolean setFlags = (command >>> 20 & 0x1) != 0;
+      final int condition = Operands.condition(operands);
+      targets[i] = op == Ops.B || op == Ops.BL ? instructions.indexOf(Operands.value(operands)) : -1;
+      int mayWrite = 0;
+      int mustWrite = 0;
+      int read = 0;
+      boolean transfer = false;
+      boolean ends = false;
+
+      switch(op) {
+        case AND, EOR, SUB, RSB, ADD, ADC, SBC, RSC, TST, TEQ, CMP, CMN, ORR, MOV, BIC, MVN -> {
+          // RRX shifts the carry in
+          final boolean isRrx = (command >>> 25 & 0x1) == 0 && (command >>> 4 & 0x7) == 0x6 && Operands.value(operands) == 0;
+
+          if(op == Ops.ADC || op == Ops.SBC || op == Ops.RSC || isRrx) {
+            read = FlagLiveness.C;
           }
 
-          final Register src = Register.values()[command.command & 0xf];
-          yield conditional(command, "CPU.%s().msr(%s, %b, %b, %b, %b);".formatted(psr, src.fullName(), maskFlags, maskStatus, maskExtension, maskControl));
+          if(Operands.rd(operands) == Register.R15_PC.ordinal()) {
+            transfer = true;
+          } else if(setFlags) {
+            // Logical operations only change the carry when there's a shift
+            mayWrite = op.isLogical() ? FlagLiveness.NZC : FlagLiveness.NZCV;
+            mustWrite = op.isLogical() ? FlagLiveness.NZ : FlagLiveness.NZCV;
+          }
         }
 
+        // The carry is unpredictable after a multiply
         case MUL, MUL_LONG -> {
-          final int op = command.command >>> 21 & 0xf;
-          final boolean setFlags = (command.command >>> 20 & 0x1) != 0;
-          final Register destOrHi = Register.values()[command.command >>> 16 & 0xf];
-          final Register accOrLo = Register.values()[command.command >>> 12 & 0xf];
-          final Register right = Register.values()[command.command >>> 8 & 0xf];
-          final Register left = Register.values()[command.command & 0xf];
-
-          yield switch(op) {
-            case 0x0 -> {
-              String out = "%s = ".formatted(destOrHi.fullName());
+          if(setFlags) {
+            mayWrite = FlagLiveness.NZC;
+            mustWrite = FlagLiveness.NZ;
+          }
+        }
 
-              if(setFlags) {
-                out += "CPU.mulA(%s, %s);".formatted(left.fullName(), right.fullName());
-              } else {
-                out += "%s * %s;".formatted(left.fullName(), right.fullName());
-              }
+        // MRS reads the flags, MSR can change anything
+        case PSR_IMM, PSR_REG -> {
+          read = FlagLiveness.NZCV;
+          transfer = true;
+        }
 
-              yield conditional(command, out);
-            }
+        case TRANS_IMM_9, TRANS_REG_9, TRANS_IMM_10, TRANS_REG_10 -> transfer = setFlags && Operands.rd(operands) == Register.R15_PC.ordinal();
+        case BLOCK_TRANS -> transfer = (command >>> 22 & 0x1) != 0 || setFlags && (Operands.value(operands) & 1 << Register.R15_PC.ordinal()) != 0;
+        // Branches out of the translated range could go anywhere
+        case B -> {
+          transfer = targets[i] == -1;
+          ends = condition == 0xe;
+        }
 
-            case 0x4 -> {
-              if(setFlags) {
-                throw new RuntimeException("Set flags for UMULL not yet supported");
-              }
+        case BL, BX, BLX, SWI, TRANS_SWAP_12, UNKNOWN -> transfer = true;
+      }
 
-              String out = "";
-              out += "final long result%x = (%s & 0xffff_ffffL) * (%s & 0xffff_ffffL);\n".formatted(command.address, left.fullName(), right.fullName());
-              out += "%s = (int)result%x;\n".formatted(accOrLo.fullName(), command.address);
-              out += "%s = (int)(result%x >>> 32);\n".formatted(destOrHi.fullName(), command.address);
-              yield conditional(command, out);
-            }
+      // A conditional instruction might not write anything
+      if(condition < 0xe) {
+        mustWrite = 0;
+      }
 
-            case 0x6 -> {
-              if(setFlags) {
-                throw new RuntimeException("Set flags for SMULL not yet supported");
-              }
+      effects[i] = FlagLiveness.effect(mayWrite, mustWrite, read | FlagLiveness.conditionFlags(condition)) | (transfer ? FlagLiveness.TRANSFER : 0) | (ends ? FlagLiveness.ENDS : 0);
+    }
 
-              String out = "";
-              out += "final long result%x = (long)%s * %s;\n".formatted(command.address, left.fullName(), right.fullName());
-              out += "%s = (int)result%x;\n".formatted(accOrLo.fullName(), command.address);
-              out += "%s = (int)(result%x >>> 32);\n".formatted(destOrHi.fullName(), command.address);
-              yield conditional(command, out);
-            }
+    return effects;
+  }
+
+  /**
+   * @return Java for the condition of the instruction at {@code i} from the operands of the compare before it, or null
+   *         if it isn't a conditional instruction after a compare or needs a flag that can't be written that way
+   */
+  private static String fusedCondition(final Asm asm, final int i) {
+    final int condition = Operands.condition(asm.operands[i]);
+    final long operands = asm.operands[i - 1];
+    final int command = asm.instructions.word(i - 1);
+    final Ops op = asm.op(i - 1);
+
+    if(condition >= 0xe || Operands.condition(operands) != 0xe || op != Ops.CMP && op != Ops.CMN && op != Ops.TST) {
+      return null;
+    }
+
+    final Register left = Register.VALUES[Operands.rn(operands)];
+    final String right;
+    if((command >>> 25 & 0x1) != 0) {
+      right = "0x" + Integer.toHexString(Operands.value(operands));
+    } else if((command >>> 4 & 0xff) == 0 && Operands.rm(operands) != Register.R15_PC.ordinal()) {
+      right = Register.VALUES[Operands.rm(operands)].code();
+    } else {
+      // Shifted registers could also change the carry
+      return null;
+    }
+
+    if(left == Register.R15_PC) {
+      return null;
+    }
+
+    return FlagLiveness.compare(op == Ops.CMP ? '-' : op == Ops.CMN ? '+' : '&', left.code(), right, condition);
+  }
+
+  /**
+   * @param flagsUnused   Whether nothing reads the flags this instruction sets, so they needn't be set
+   * @param lazyFlags     Whether flags are kept in {@link LazyFlags} variables instead of the CPSR
+   * @param testCondition Java for the condition of a conditional instruction in place of the flags, or null
+   * @param grouped       Whether the condition is tested around a run of instructions instead, see {@link #GROUPED}
+   */
+  private static void translateInstruction(final CodeEmitter code, final int address, final int command, final Ops op, final long operands, final int firstAddress, final int lastAddress, final boolean flagsUnused, final boolean lazyFlags, final String testCondition, final boolean grouped, final LineSlots lines) {
+    if(op == Ops.BLX || op == Ops.TRANS_SWAP_12 || op == Ops.UNKNOWN) {
+      code.text("//TODO Unsupported operation ").text(op.name()).text(" at address ").text(Integer.toHexString(address));
+      return;
+    }
+
+    // Anything that still goes through the CPSR gets the real flags, and they're picked up again after
+    if(lazyFlags && usesCpsr(address, command, op, operands, flagsUnused)) {
+      LazyFlags.materialise(code).nl();
+      translateInstruction(code, address, command, op, operands, firstAddress, lastAddress, flagsUnused, false, testCondition, grouped, lines);
+      LazyFlags.reload(code.nl());
+      return;
+    }
+
+    // Conditional instructions are written straight into the body of an if
+    final int condition = Operands.condition(operands);
+    if(condition < 0xe && !grouped) {
+      code.openIf(testCondition != null ? testCondition : CONDITIONS[condition], CONDITION_COMMENTS[condition]);
+    }
 
-            default -> throw new RuntimeException("MUL op %d not supported 0x%x".formatted(op, command.address));
-          };
+    switch(op) {
+      case AND, EOR, SUB, RSB, ADD, ADC, SBC, RSC, TST, TEQ, CMP, CMN, ORR, MOV, BIC, MVN -> {
+        if(!lazyFlags || !lazyDataProcessing(code, address, command, op, operands, flagsUnused)) {
+          dataProcessing(code, address, command, op, operands, flagsUnused);
         }
+      }
 
-        case TRANS_IMM_9, TRANS_REG_9 -> {
-          final boolean isShiftedRegister = (command.command >>> 25 & 0x1) != 0;
-          final boolean isPre = (command.command >>> 24 & 0x1) != 0;
-          final boolean isPositive = (command.command >>> 23 & 0x1) != 0;
-          final boolean isByte = (command.command >>> 22 & 0x1) != 0;
-          final boolean writeBack = !isPre || (command.command >>> 21 & 0x1) != 0;
-          final boolean isLoad = (command.command >>> 20 & 0x1) != 0;
-          final Register base = Register.values()[command.command >>> 16 & 0xf];
-          final Register value = Register.values()[command.command >>> 12 & 0xf];
+      case PSR_IMM, PSR_REG -> {
+        final boolean isImmediate = (command >>> 25 & 0x1) != 0;
+        final boolean isSpsr = (command >>> 22 & 0x1) != 0;
+        final boolean isMsr = (command >>> 21 & 0x1) != 0;
 
-          final String baseValue;
-          if(base == Register.R15_PC) {
-            baseValue = "0x%x".formatted(command.address + 0x8);
-          } else {
-            baseValue = base.fullName();
-          }
+        final String psr = isSpsr ? "spsr" : "cpsr";
 
-          final String offset;
-          if(!isShiftedRegister) { // immediate
-            offset = "0x%x".formatted(command.command & 0xfff);
-          } else {
-            final int shift = command.command >>> 7 & 0x1f;
-            final int shiftType = command.command >>> 5 & 0x3;
-            offset = shift(command, false, shiftType, Register.values()[command.command & 0xf].fullName(), shift);
-          }
+        if(!isMsr) {
+          final Register dest = Register.VALUES[Operands.rd(operands)];
+          code.reg(dest).text(" = CPU.").text(psr).text("().get()").stmt();
+          break;
+        }
 
-          final String var = "address%x".formatted(command.address);
+        final boolean maskFlags = (command >>> 19 & 0x1) != 0;
+        final boolean maskStatus = (command >>> 18 & 0x1) != 0;
+        final boolean maskExtension = (command >>> 17 & 0x1) != 0;
+        final boolean maskControl = (command >>> 16 & 0x1) != 0;
 
-          String out = "";
-          if(isPre) {
-            out += "final int %s = %s %s %s;".formatted(var, baseValue, isPositive ? '+' : '-', offset);
-          } else {
-            out += "final int %s = %s;".formatted(var, baseValue);
-          }
+        code.text("CPU.").text(psr).text("().msr(");
 
-          if(isLoad) {
-            out += "\n%s = MEMORY.ref(%d, %s).getUnsigned();".formatted(value.fullName(), isByte ? 1 : 4, var);
-          } else {
-            final String valueValue;
-            if(value == Register.R15_PC) {
-              valueValue = "0x%x".formatted(command.address + 0xc);
+        if(isImmediate) {
+          code.digits(Operands.value(operands), 0);
+        } else {
+          code.reg(Register.VALUES[Operands.rm(operands)]);
+        }
+
+        code.text(", ").bool(maskFlags).text(", ").bool(maskStatus).text(", ").bool(maskExtension).text(", ").bool(maskControl).text(')').stmt();
+      }
+
+      case MUL, MUL_LONG -> {
+        final int mulOp = command >>> 21 & 0xf;
+        final boolean setFlags = (command >>> 20 & 0x1) != 0;
+        final Register destOrHi = Register.VALUES[Operands.rn(operands)];
+        final Register accOrLo = Register.VALUES[Operands.rd(operands)];
+        final Register right = Register.VALUES[Operands.rs(operands)];
+        final Register left = Register.VALUES[Operands.rm(operands)];
+
+        switch(mulOp) {
+          case 0x0 -> {
+            code.reg(destOrHi).text(" = ");
+
+            if(setFlags) {
+              code.text("CPU.mulA(").reg(left).text(", ").reg(right).text(')').stmt();
             } else {
-              valueValue = value.fullName();
+              code.reg(left).text(" * ").reg(right).stmt();
+            }
+          }
+
+          case 0x4 -> {
+            if(setFlags) {
+              throw new RuntimeException("Set flags for UMULL not yet supported");
             }
 
-            out += "\nMEMORY.ref(%d, %s).setu(%s);".formatted(isByte ? 1 : 4, var, valueValue);
+            code.text("final long result").digits(address, 0).text(" = (").reg(left).text(" & 0xffff_ffffL) * (").reg(right).text(" & 0xffff_ffffL)").stmt().nl();
+            splitLong(code, address, accOrLo, destOrHi);
           }
 
-          if(!isPre) {
-            out += "\n%s = %s %s %s;".formatted(base.fullName(), baseValue, isPositive ? '+' : '-', offset);
-          } else if(writeBack) {
-            out += "\n%s = %s;".formatted(base.fullName(), var);
+          case 0x6 -> {
+            if(setFlags) {
+              throw new RuntimeException("Set flags for SMULL not yet supported");
+            }
+
+            code.text("final long result").digits(address, 0).text(" = (long)").reg(left).text(" * ").reg(right).stmt().nl();
+            splitLong(code, address, accOrLo, destOrHi);
           }
 
-          yield conditional(command, out);
+          default -> throw new RuntimeException("MUL op %d not supported 0x%x".formatted(mulOp, address));
+        }
+      }
+
+      case TRANS_IMM_9, TRANS_REG_9 -> {
+        final boolean isShiftedRegister = (command >>> 25 & 0x1) != 0;
+        final boolean isPre = (command >>> 24 & 0x1) != 0;
+        final boolean isPositive = (command >>> 23 & 0x1) != 0;
+        final boolean isByte = (command >>> 22 & 0x1) != 0;
+        final boolean writeBack = !isPre || (command >>> 21 & 0x1) != 0;
+        final boolean isLoad = (command >>> 20 & 0x1) != 0;
+        final Register base = Register.VALUES[Operands.rn(operands)];
+        final Register value = Register.VALUES[Operands.rd(operands)];
+
+        code.text("final int address").digits(address, 0).text(" = ");
+        baseValue(code, address, base);
+
+        if(isPre) {
+          code.text(isPositive ? " + " : " - ");
+          offset(code, address, command, isShiftedRegister, operands);
         }
 
-        case TRANS_IMM_10, TRANS_REG_10 -> {
-          final boolean isPre = (command.command >>> 24 & 0x1) != 0;
-          final boolean isPositive = (command.command >>> 23 & 0x1) != 0;
-          final boolean isImmediate = (command.command >>> 22 & 0x1) != 0;
-          final boolean writeBack = !isPre || (command.command >>> 21 & 0x1) != 0;
-          final boolean isLoad = (command.command >>> 20 & 0x1) != 0;
-          final Register base = Register.values()[command.command >>> 16 & 0xf];
-          final Register value = Register.values()[command.command >>> 12 & 0xf];
-          final int op = command.command >>> 5 & 0x3;
+        code.stmt().nl();
 
-          if(!isLoad && op != 1) {
-            throw new RuntimeException("Double not supported");
-          }
+        if(isLoad) {
+          code.reg(value).text(" = MEMORY.ref(").dec(isByte ? 1 : 4).text(", address").digits(address, 0).text(").getUnsigned()").stmt();
+        } else {
+          code.text("MEMORY.ref(").dec(isByte ? 1 : 4).text(", address").digits(address, 0).text(").setu(");
+          storedValue(code, address, value);
+          code.text(')').stmt();
+        }
 
-          final String baseValue;
-          if(base == Register.R15_PC) {
-            baseValue = "0x%x".formatted(command.address + 0x8);
-          } else {
-            baseValue = base.fullName();
+        if(!isPre) {
+          code.nl().reg(base).text(" = ");
+          baseValue(code, address, base);
+          code.text(isPositive ? " + " : " - ");
+          offset(code, address, command, isShiftedRegister, operands);
+          code.stmt();
+        } else if(writeBack) {
+          code.nl().reg(base).text(" = address").digits(address, 0).stmt();
+        }
+      }
+
+      case TRANS_IMM_10, TRANS_REG_10 -> {
+        final boolean isPre = (command >>> 24 & 0x1) != 0;
+        final boolean isPositive = (command >>> 23 & 0x1) != 0;
+        final boolean isImmediate = (command >>> 22 & 0x1) != 0;
+        final boolean writeBack = !isPre || (command >>> 21 & 0x1) != 0;
+        final boolean isLoad = (command >>> 20 & 0x1) != 0;
+        final Register base = Register.VALUES[Operands.rn(operands)];
+        final Register value = Register.VALUES[Operands.rd(operands)];
+        final int transferOp = command >>> 5 & 0x3;
+
+        if(!isLoad && transferOp != 1) {
+          throw new RuntimeException("Double not supported");
+        }
+
+        code.text("final int address").digits(address, 0).text(" = ");
+        baseValue(code, address, base);
+
+        if(isPre) {
+          code.text(isPositive ? " + " : " - ");
+          halfwordOffset(code, isImmediate, operands);
+          code.stmt();
+
+          if(writeBack) {
+            code.nl().reg(base).text(" = address").digits(address, 0).stmt();
           }
+        } else {
+          code.stmt();
+        }
 
-          final String offset;
-          if(isImmediate) {
-            final int immediateUpper = command.command >>> 8 & 0xf;
-            final int immediateLower = command.command & 0xf;
-            offset = "0x%x".formatted(immediateUpper << 4 | immediateLower);
-          } else {
-            offset = Register.values()[command.command & 0xf].fullName();
+        if(isLoad) {
+          switch(transferOp) {
+            case 1 -> code.nl().reg(value).text(" = MEMORY.ref(2, address").digits(address, 0).text(").getUnsigned()").stmt();
+            case 2 -> code.nl().reg(value).text(" = MEMORY.ref(1, address").digits(address, 0).text(").get()").stmt();
+            case 3 -> code.nl().reg(value).text(" = MEMORY.ref(2, address").digits(address, 0).text(").get()").stmt();
           }
+        } else {
+          code.nl().text("MEMORY.ref(2, address").digits(address, 0).text(").setu(");
+          storedValue(code, address, value);
+          code.text(')').stmt();
+        }
 
-          String out = "";
+        if(!isPre) {
+          code.nl().reg(base).text(" = address").digits(address, 0).text(isPositive ? " + " : " - ");
+          halfwordOffset(code, isImmediate, operands);
+          code.stmt();
+        }
+      }
 
-          final String var = "address%x".formatted(command.address);
-          out += "final int %s = %s".formatted(var, baseValue);
+      case BLOCK_TRANS -> {
+        final boolean isPre = (command >>> 24 & 0x1) != 0;
+        final boolean isPositive = (command >>> 23 & 0x1) != 0;
+        final boolean isPsr = (command >>> 22 & 0x1) != 0;
+        final boolean isWriteBack = (command >>> 21 & 0x1) != 0;
+        final boolean isLoad = (command >>> 20 & 0x1) != 0;
+        final Register base = Register.VALUES[Operands.rn(operands)];
+        final Set<Register> rlist = Register.unpack(Operands.value(operands));
 
-          if(isPre) {
-            out += " %s %s;".formatted(isPositive ? '+' : '-', offset);
+        code.text("int address").digits(address, 0).text(" = ").reg(base);
 
-            if(writeBack) {
-              out += "\n%s = %s;".formatted(base.fullName(), var);
-            }
-          } else {
-            out += ';';
+        if(!isPositive) {
+          code.text(" - ").hex(rlist.size() * 0x4);
+        }
+
+        code.stmt();
+
+        if(!isPsr || isLoad && rlist.contains(Register.R15_PC)) {
+          if(isPre && isWriteBack) {
+            code.nl().reg(base).text(" = address").digits(address, 0).stmt();
           }
 
-          if(isLoad) {
-            switch(op) {
-              case 1 -> out += "\n%s = MEMORY.ref(2, %s).getUnsigned();".formatted(value.fullName(), var);
-              case 2 -> out += "\n%s = MEMORY.ref(1, %s).get();".formatted(value.fullName(), var);
-              case 3 -> out += "\n%s = MEMORY.ref(2, %s).get();".formatted(value.fullName(), var);
-            }
-          } else {
-            final String valueValue;
-            if(value == Register.R15_PC) {
-              valueValue = "0x%x".formatted(command.address + 0xc);
+          for(final Register r : rlist) {
+            if(isLoad) {
+              code.nl().reg(r).text(" = MEMORY.ref(4, address").digits(address, 0).text(").getUnsigned()").stmt();
             } else {
-              valueValue = value.fullName();
+              code.nl().text("MEMORY.ref(4, address").digits(address, 0).text(").setu(").reg(r).text(')').stmt();
             }
 
-            out += "\nMEMORY.ref(2, %s).setu(%s);".formatted(var, valueValue);
+            code.nl().text("address").digits(address, 0).text(" += 0x4").stmt();
           }
 
-          if(!isPre) {
-            out += "\n%s = %s %s %s;".formatted(base.fullName(), var, isPositive ? '+' : '-', offset);
+          if(!isPre && isWriteBack) {
+            code.nl().reg(base).text(" = address").digits(address, 0).stmt();
           }
 
-          yield conditional(command, out);
+          if(isLoad && isPsr && rlist.contains(Register.R15_PC)) {
+            code.nl().text("CPU.restorePsr()").stmt();
+          }
+        } else {
+          for(final Register r : rlist) {
+            if(isLoad) {
+              code.nl().text("CPU.userState().").text(r.name).text(".value = MEMORY.ref(4, address").digits(address, 0).text(").getUnsigned()").stmt();
+            } else {
+              code.nl().text("MEMORY.ref(4, address").digits(address, 0).text(").setu(CPU.userState().").text(r.name).text(".value)").stmt();
+            }
+
+            code.nl().text("address").digits(address, 0).text(" += 0x4").stmt();
+          }
         }
+      }
 
-        case BLOCK_TRANS -> {
-          final boolean isPre = (command.command >>> 24 & 0x1) != 0;
-          final boolean isPositive = (command.command >>> 23 & 0x1) != 0;
-          final boolean isPsr = (command.command >>> 22 & 0x1) != 0;
-          final boolean isWriteBack = (command.command >>> 21 & 0x1) != 0;
-          final boolean isLoad = (command.command >>> 20 & 0x1) != 0;
-          final Register base = Register.values()[command.command >> 16 & 0xf];
-          final Set<Register> rlist = Register.unpack(command.command & 0xffff);
-
-          String out = "";
-
-          final String var = "address%x".formatted(command.address);
-          if(isPositive) {
-            out += "int %s = %s;".formatted(var, base.fullName());
-          } else {
-            out += "int %s = %s - 0x%x;".formatted(var, base.fullName(), rlist.size() * 0x4);
+      case B -> {
+        final int jump = Operands.value(operands);
+
+        if(jump >= firstAddress && jump <= lastAddress) {
+          lines.label(jump);
+          code.label(jump).stmt();
+        } else {
+          code.reg(Register.R0).text(" = FUN_").digits(jump, 7).text("(); //TODO JUMP");
+        }
+      }
+
+      case BL -> code.reg(Register.R0).text(" = FUN_").digits(Operands.value(operands), 7).text("()").stmt();
+
+      case BX -> {
+        final Register dest = Register.VALUES[Operands.rm(operands)];
+
+        if(dest == Register.R14_LR) {
+          code.text("return ").reg(Register.R0).stmt();
+        } else {
+          code.reg(Register.R0).text(" = MEMORY.call(").reg(dest).text("); //TODO JUMP");
+        }
+      }
+
+      case SWI -> {
+        code.reg(Register.R15_PC).text(" = ").hex(address + 0x4).stmt().nl();
+        code.reg(Register.R0).text(" = CPU.SWI(InstructionSet.ARM); // ").hex(Operands.value(operands));
+      }
+    }
+
+    if(condition < 0xe) {
+      if(!grouped) {
+        code.closeIf();
+      }
+    } else if(condition == 0xf) {
+      if(op == Ops.B) {
+        throw new RuntimeException("Illegal condition 0x%x @0x%x (branch to 0x%x)".formatted(condition, address, Operands.value(operands)));
+      }
+
+      throw new RuntimeException("Illegal condition 0x%x @0x%x".formatted(condition, address));
+    }
+  }
+
+  /** @param flagsUnused Whether nothing reads the flags, in which case they aren't set unless it's a compare */
+  private static void dataProcessing(final CodeEmitter code, final int address, final int command, final Ops op, final long operands, final boolean flagsUnused) {
+    final boolean hasAssignment = op != Ops.TST && op != Ops.TEQ && op != Ops.CMP && op != Ops.CMN;
+    final boolean isRightImmediate = (command >>> 25 & 0x1) != 0;
+    final boolean setFlags = (command >>> 20 & 0x1) != 0 && !(flagsUnused && hasAssignment);
+    final Register left = Register.VALUES[Operands.rn(operands)];
+    final Register dest = Register.VALUES[Operands.rd(operands)];
+
+    if(dest == Register.R15_PC) {
+      code.text("//TODO PC SET").nl();
+
+      if(setFlags) {
+        code.text("CPU.restorePsr()").stmt().nl();
+      }
+    }
+
+    if(isRightImmediate) {
+      if(hasAssignment) {
+        code.reg(dest).text(" = ");
+      }
+
+      final int shift = (command >>> 8 & 0xf) * 2;
+      final int right = Operands.value(operands);
+
+      // MOV and MVN don't read the left operand, and BIC isn't an ADR
+      if(left == Register.R15_PC && (setFlags || op != Ops.MOV && op != Ops.MVN && op != Ops.BIC)) { // ADR pseudo-op
+        if(setFlags) {
+          code.text("CPU.").text(METHODS.get(op)).text('(').hex(address + 0x8).text(", ").hex(right).text(')').stmt();
+
+          if(shift != 0) {
+            code.nl().text("CPU.setCFlag(").bool((right & 0x8000_0000) != 0).text(')').stmt();
           }
+        } else {
+          code.hex(address + 0x8).text(' ').text(op.getOperator()).text(' ').hex(right).stmt();
+        }
 
-          if(!isPsr || isLoad && rlist.contains(Register.R15_PC)) {
-            if(isPre && isWriteBack) {
-              out += "\n%s = %s;".formatted(base.fullName(), var);
-            }
+        return;
+      }
 
-            for(final Register r : rlist) {
-              if(isLoad) {
-                out += "\n%s = MEMORY.ref(4, %s).getUnsigned();".formatted(r.fullName(), var);
-              } else {
-                out += "\nMEMORY.ref(4, %s).setu(%s);".formatted(var, r.fullName());
-              }
+      if(setFlags) {
+        code.text("CPU.").text(METHODS.get(op)).text('(').reg(left).text(", ").hex(right).text(')').stmt();
 
-              out += "\n%s += 0x4;".formatted(var);
-            }
+        if(shift != 0 && op.isLogical()) {
+          code.nl().text("CPU.setCFlag(").bool((right & 0x8000_0000) != 0).text(')').stmt();
+        }
 
-            if(!isPre && isWriteBack) {
-              out += "\n%s = %s;".formatted(base.fullName(), var);
-            }
+        return;
+      }
+
+      switch(op) {
+        case MOV -> code.hex(right).stmt();
+        case BIC -> code.reg(left).text(" & ~").hex(right).stmt();
+        case MVN -> code.text('~').hex(right).stmt();
+        case RSB -> code.hex(right).text(' ').text(op.getOperator()).text(' ').reg(left).stmt();
+        case ADC -> code.reg(left).text(" + ").hex(right).text(" + (CPU.cpsr().getCarry() ? 1 : 0)").stmt();
+        case SBC -> code.reg(left).text(" - ").hex(right).text(" - (CPU.cpsr().getCarry() ? 0 : 1)").stmt();
+        case RSC -> code.hex(right).text(" - ").reg(left).text(" - (CPU.cpsr().getCarry() ? 0 : 1)").stmt();
+        default -> code.reg(left).text(' ').text(op.getOperator()).text(' ').hex(right).stmt();
+      }
+
+      return;
+    }
+
+    final boolean isShiftImmediate = (command >>> 4 & 0x1) == 0;
+    final Register right = Register.VALUES[Operands.rm(operands)];
+    final int shiftType = command >>> 5 & 0x3;
 
-            if(isLoad && isPsr && rlist.contains(Register.R15_PC)) {
-              out += "\nCPU.restorePsr();";
+    if(left == Register.R15_PC) { // ADR pseudo-op
+      code.text("//TODO PC SET").nl();
+//        throw new RuntimeException("Not implemented, see Using R15 (PC)");
+    }
+
+    if(isShiftImmediate) {
+      final int shift = Operands.value(operands);
+
+      if(setFlags) {
+        if(op.isLogical()) {
+          switch(shiftType) {
+            case 0x0 -> {
+              if(shift != 0) {
+                code.text("CPU.setCFlag((").reg(right).text(" & 0x1 << ").dec(32 - shift).text(") != 0)").stmt();
+              }
             }
-          } else {
-            for(final Register r : rlist) {
-              if(isLoad) {
-                out += "\nCPU.userState().%s.value = MEMORY.ref(4, %s).getUnsigned();".formatted(r.name, var);
+
+            case 0x1, 0x2 -> {
+              if(shift != 0) {
+                code.text("CPU.setCFlag((").reg(right).text(" & 0x1 << ").dec(shift - 1).text(") != 0)").stmt();
               } else {
-                out += "\nMEMORY.ref(4, %s).setu(CPU.userState().%s.value);".formatted(var, r.name);
+                code.text("CPU.setCFlag((").reg(right).text(" & 0x8000_0000) != 0)").stmt();
               }
+            }
 
-              out += "\n%s += 0x4;".formatted(var);
+            case 0x3 -> {
+              if(shift != 0) {
+                code.text("CPU.setCFlag((").reg(right).text(" & 0x1 << ").dec(shift - 1).text(") != 0)").stmt();
+              } else {
+                code.text("final boolean oldCarry").digits(address, 0).text(" = CPU.cpsr().getCarry()").stmt().nl();
+                code.text("CPU.setCFlag((").reg(right).text(" & 0x1) != 0)").stmt();
+              }
             }
           }
 
-          yield conditional(command, out);
+          code.nl();
         }
 
-        case B -> {
-          final int offset = sign(command.command & 0xff_ffff, 24) * 0x4;
-          final int address = command.address + 0x8 + offset;
-
-          if(address >= firstAddress && address <= lastAddress) {
-            labels.add(address);
-            yield conditional(command, "LAB_%07x;".formatted(address));
-          }
-
-          yield conditional(command, "%s = FUN_%07x(); //TODO JUMP".formatted(Register.R0.fullName(), address));
+        if(hasAssignment) {
+          code.reg(dest).text(" = ");
         }
 
-        case BL -> {
-          final int offset = sign(command.command & 0xff_ffff, 24) * 0x4;
-          yield conditional(command, "%s = FUN_%07x();".formatted(Register.R0.fullName(), command.address + 0x8 + offset));
-        }
+        code.text("CPU.").text(METHODS.get(op)).text('(').reg(left).text(", ");
+        shift(code, address, setFlags, shiftType, right, shift);
+        code.text(')').stmt();
+        return;
+      }
 
-        case BX -> {
-          final Register dest = Register.values()[command.command & 0xf];
+      if(hasAssignment) {
+        code.reg(dest).text(" = ");
+      }
 
-          if(dest == Register.R14_LR) {
-            yield conditional(command, "return %s;".formatted(Register.R0.fullName()));
-          }
+      beginOperation(code, op, left);
+      shift(code, address, false, shiftType, right, shift);
+      endOperation(code, op, left);
+      return;
+    }
 
-          yield conditional(command, "%s = MEMORY.call(%s); //TODO JUMP".formatted(Register.R0.fullName(), dest.fullName()));
+    final Register shift = Register.VALUES[Operands.rs(operands)];
+
+    if(setFlags) {
+      if(op.isLogical()) {
+        code.text("if(").reg(shift).text(" != 0) {").nl();
+        switch(shiftType) {
+          case 0x0 -> code.text("  CPU.setCFlag((").reg(right).text(" & 0x1 << (32 - ").reg(shift).text(")) != 0)").stmt();
+          case 0x1, 0x2 -> code.text("  CPU.setCFlag((").reg(right).text(" & 0x1 << (").reg(shift).text(" - 1)) != 0)").stmt();
+          case 0x3 -> code.text("  CPU.setCFlag((").reg(right).text(" & 0x1 << ((").reg(shift).text(" & 0x1f) - 1)) != 0)").stmt();
         }
+        code.nl().text('}').nl();
+      }
 
-        case SWI -> conditional(command, "%s = 0x%x;\n%s = CPU.SWI(InstructionSet.ARM); // 0x%x".formatted(Register.R15_PC.fullName(), command.address + 0x4, Register.R0.fullName(), command.command & 0xff_ffff));
+      if(hasAssignment) {
+        code.reg(dest).text(" = ");
+      }
 
-        default -> "//TODO Unsupported operation " + command.op + " at address " + Integer.toHexString(command.address);
-      };
+      code.text("CPU.").text(METHODS.get(op)).text('(').reg(left).text(", ");
+      beginShift(code, shiftType, right).reg(shift).text(')');
+      code.text(')').stmt();
+      return;
+    }
 
-      lines.put(command.address, line);
+    if(hasAssignment) {
+      code.reg(dest).text(" = ");
     }
 
-    // Prepend jump destinations
-    for(final int address : labels) {
-      lines.merge(address, "\n//LAB_%07x".formatted(address), (current, added) -> added + '\n' + current);
+    beginOperation(code, op, left);
+    beginShift(code, shiftType, right).reg(shift).text(')');
+    endOperation(code, op, left);
+  }
+
+  /**
+   * Writes a flag-setting data processing op with {@link LazyFlags}
+   *
+   * @return False if it doesn't set flags or has no lazy form, see {@link #lazyOperand}
+   */
+  private static boolean lazyDataProcessing(final CodeEmitter code, final int address, final int command, final Ops op, final long operands, final boolean flagsUnused) {
+    final boolean hasAssignment = op != Ops.TST && op != Ops.TEQ && op != Ops.CMP && op != Ops.CMN;
+    final String right = lazyOperand(address, command, op, operands);
+
+    if((command >>> 20 & 0x1) == 0 || flagsUnused && hasAssignment || right == null) {
+      return false;
+    }
+
+    final Register rn = Register.VALUES[Operands.rn(operands)];
+    final Register dest = hasAssignment ? Register.VALUES[Operands.rd(operands)] : null;
+    final String left = rn == Register.R15_PC ? "0x" + Integer.toHexString(address + 0x8) : rn.code();
+
+    switch(op) {
+      case ADD, CMN -> LazyFlags.arithmetic(code, LazyFlags.ADD, dest, left, right);
+      case SUB, CMP -> LazyFlags.arithmetic(code, LazyFlags.SUB, dest, left, right);
+      case RSB -> LazyFlags.arithmetic(code, LazyFlags.SUB, dest, right, left);
+      case AND, TST -> LazyFlags.logical(code, dest, left + " & " + right);
+      case EOR, TEQ -> LazyFlags.logical(code, dest, left + " ^ " + right);
+      case ORR -> LazyFlags.logical(code, dest, left + " | " + right);
+      case BIC -> LazyFlags.logical(code, dest, left + " & ~" + right);
+      case MOV -> LazyFlags.logical(code, dest, right);
+      case MVN -> LazyFlags.logical(code, dest, '~' + right);
+      default -> throw new IllegalArgumentException("No lazy form for " + op);
     }
 
-    // Add code to output
-    return new ArrayList<>(lines.values());
+    return true;
   }
 
-  private static int sign(final int value, final int numberOfBits) {
-    if((value & 1 << numberOfBits - 1) != 0) {
-      return value | -(1 << numberOfBits);
+  /**
+   * @return Java for the second operand of a flag-setting data processing op, or null if it has no lazy form -
+   *         carries, logical ops whose shift sets C, and writes to PC or register operands that are PC
+   */
+  private static String lazyOperand(final int address, final int command, final Ops op, final long operands) {
+    if(op == Ops.ADC || op == Ops.SBC || op == Ops.RSC || Operands.rd(operands) == Register.R15_PC.ordinal()) {
+      return null;
+    }
+
+    if((command >>> 25 & 0x1) != 0) {
+      // A rotated immediate sets C for logical ops
+      if(op.isLogical() && (command >>> 8 & 0xf) != 0) {
+        return null;
+      }
+
+      return "0x" + Integer.toHexString(Operands.value(operands));
     }
 
-    return value;
+    if(Operands.rn(operands) == Register.R15_PC.ordinal() || Operands.rm(operands) == Register.R15_PC.ordinal()) {
+      return null;
+    }
+
+    final Register right = Register.VALUES[Operands.rm(operands)];
+    final int shiftType = command >>> 5 & 0x3;
+    final StringBuilder operand = new StringBuilder();
+    final CodeEmitter code = new CodeEmitter(operand, 0);
+
+    if((command >>> 4 & 0x1) == 0) {
+      final int amount = Operands.value(operands);
+
+      // Logical ops only leave C alone for LSL #0, and RRX reads it
+      if(op.isLogical() && (shiftType != 0x0 || amount != 0) || shiftType == 0x3 && amount == 0) {
+        return null;
+      }
+
+      shift(code, address, false, shiftType, right, amount);
+    } else {
+      if(op.isLogical()) {
+        return null;
+      }
+
+      beginShift(code, shiftType, right).reg(Register.VALUES[Operands.rs(operands)]).text(')');
+    }
+
+    return operand.toString();
   }
 
-  private static String conditional(final Command command, final String output) {
-    return switch(command.command >>> 28) {
-      case 0x0 -> wrapCondition("CPU.cpsr().getZero()", output, "==");
-      case 0x1 -> wrapCondition("!CPU.cpsr().getZero()", output, "!=");
-      case 0x2 -> wrapCondition("CPU.cpsr().getCarry()", output, "unsigned >=");
-      case 0x3 -> wrapCondition("!CPU.cpsr().getCarry()", output, "unsigned <");
-      case 0x4 -> wrapCondition("CPU.cpsr().getNegative()", output, "negative");
-      case 0x5 -> wrapCondition("!CPU.cpsr().getNegative()", output, "positive or 0");
-      case 0x6 -> wrapCondition("CPU.cpsr().getOverflow()", output, "signed overflow");
-      case 0x7 -> wrapCondition("!CPU.cpsr().getOverflow()", output, "signed no overflow");
-      case 0x8 -> wrapCondition("CPU.cpsr().getCarry() && !CPU.cpsr().getZero()", output, "unsigned >");
-      case 0x9 -> wrapCondition("!CPU.cpsr().getCarry() || CPU.cpsr().getZero()", output, "unsigned <=");
-      case 0xa -> wrapCondition("CPU.cpsr().getNegative() == CPU.cpsr().getOverflow()", output, ">=");
-      case 0xb -> wrapCondition("CPU.cpsr().getNegative() != CPU.cpsr().getOverflow()", output, "<");
-      case 0xc -> wrapCondition("!CPU.cpsr().getZero() && CPU.cpsr().getOverflow()", output, ">");
-      case 0xd -> wrapCondition("CPU.cpsr().getZero() || !CPU.cpsr().getOverflow()", output, "<=");
-      case 0xe -> output;
-      default -> throw new RuntimeException("Illegal condition 0x%x @0x%x".formatted(command.command >>> 28, command.address));
+  /**
+   * @param flagsUnused Whether nothing reads the flags this instruction sets
+   * @return Whether this instruction reads or writes the CPSR even with lazy flags - flag-setting ops with no lazy
+   *         form, carries, RRX, PSR transfers, restoring the PSR, SWIs and calls through {@code MEMORY.call}
+   */
+  private static boolean usesCpsr(final int address, final int command, final Ops op, final long operands, final boolean flagsUnused) {
+    final boolean isShiftedRegister = (command >>> 25 & 0x1) == 0;
+    final boolean isRrx = (command >>> 4 & 0x1) == 0 && (command >>> 5 & 0x3) == 0x3 && Operands.value(operands) == 0;
+
+    return switch(op) {
+      case ADC, SBC, RSC -> true;
+
+      case AND, EOR, SUB, RSB, ADD, TST, TEQ, CMP, CMN, ORR, MOV, BIC, MVN -> {
+        final boolean hasAssignment = op != Ops.TST && op != Ops.TEQ && op != Ops.CMP && op != Ops.CMN;
+        final boolean setFlags = (command >>> 20 & 0x1) != 0 && !(flagsUnused && hasAssignment);
+        yield isShiftedRegister && isRrx || setFlags && lazyOperand(address, command, op, operands) == null;
+      }
+
+      case MUL, MUL_LONG -> (command >>> 20 & 0x1) != 0;
+      case TRANS_IMM_9, TRANS_REG_9 -> (command >>> 25 & 0x1) != 0 && (command >>> 5 & 0x3) == 0x3 && Operands.value(operands) == 0;
+      case BLOCK_TRANS -> (command >>> 22 & 0x1) != 0 && (command >>> 20 & 0x1) != 0 && (Operands.value(operands) & 1 << Register.R15_PC.ordinal()) != 0;
+      case PSR_IMM, PSR_REG, SWI -> true;
+      case BX -> Operands.rm(operands) != Register.R14_LR.ordinal();
+      default -> false;
     };
   }
 
-  private static String wrapCondition(final String condition, final String output, final String comment) {
-    final String[] split = output.split("\n");
+  /** Writes everything in a non-flag-setting data processing op that comes before its shifted register operand */
+  private static void beginOperation(final CodeEmitter code, final Ops op, final Register left) {
+    switch(op) {
+      case MOV -> { }
+      case BIC -> code.reg(left).text(" & (~");
+      case MVN -> code.text("(~");
+      case RSB, RSC -> code.text('(');
+      default -> code.reg(left).text(' ').text(op.getOperator()).text(" (");
+    }
+  }
 
-    for(int i = 0; i < split.length; i++) {
-      split[i] = "  " + split[i];
+  /** Writes everything in a non-flag-setting data processing op that comes after its shifted register operand */
+  private static void endOperation(final CodeEmitter code, final Ops op, final Register left) {
+    switch(op) {
+      case MOV -> code.stmt();
+      case RSB -> code.text(") ").text(op.getOperator()).text(' ').reg(left).stmt();
+      case ADC -> code.text(") + (CPU.cpsr().getCarry() ? 1 : 0)").stmt();
+      case SBC -> code.text(") - (CPU.cpsr().getCarry() ? 0 : 1)").stmt();
+      case RSC -> code.text(") - ").reg(left).text(" - (CPU.cpsr().getCarry() ? 0 : 1)").stmt();
+      default -> code.text(')').stmt();
     }
+  }
 
-    return
-      "if(%s) { // %s\n".formatted(condition, comment) +
-      String.join("\n", split) + '\n' +
-      '}';
+  /** Splits {@code result<address>} from a long multiply into its two registers */
+  private static void splitLong(final CodeEmitter code, final int address, final Register lo, final Register hi) {
+    code.reg(lo).text(" = (int)result").digits(address, 0).stmt().nl();
+    code.reg(hi).text(" = (int)(result").digits(address, 0).text(" >>> 32)").stmt().nl();
   }
 
-  private static String shift(final Command command, final boolean setFlags, final int shiftType, final String value, final int amount) {
-    if(amount == 0) {
-      return switch(shiftType) {
-        case 0x0 -> value;
-        case 0x1 -> "0";
-        case 0x2 -> "(%s >> 31)".formatted(value);
-        case 0x3 -> {
-          final String carry;
-          if(setFlags) {
-            carry = "oldCarry%x".formatted(command.address);
-          } else {
-            carry = "CPU.cpsr().getCarry()";
-          }
+  /** The base register of a transfer, PC reads as the address of this instruction + 8 */
+  private static void baseValue(final CodeEmitter code, final int address, final Register base) {
+    if(base == Register.R15_PC) {
+      code.hex(address + 0x8);
+    } else {
+      code.reg(base);
+    }
+  }
 
-          yield "((%s ? 0x8000_0000 : 0) | %s >>> 1)".formatted(carry, value);
-        }
-        default -> throw new IllegalArgumentException("Invalid shiftType " + shiftType);
-      };
+  /** The register stored by a transfer, PC reads as the address of this instruction + 12 */
+  private static void storedValue(final CodeEmitter code, final int address, final Register value) {
+    if(value == Register.R15_PC) {
+      code.hex(address + 0xc);
+    } else {
+      code.reg(value);
+    }
+  }
+
+  private static void offset(final CodeEmitter code, final int address, final int command, final boolean isShiftedRegister, final long operands) {
+    if(!isShiftedRegister) { // immediate
+      code.hex(Operands.value(operands));
+    } else {
+      shift(code, address, false, command >>> 5 & 0x3, Register.VALUES[Operands.rm(operands)], Operands.value(operands));
     }
+  }
 
-    return shift(shiftType, value, Integer.toString(amount));
+  private static void halfwordOffset(final CodeEmitter code, final boolean isImmediate, final long operands) {
+    if(isImmediate) {
+      code.hex(Operands.value(operands));
+    } else {
+      code.reg(Register.VALUES[Operands.rm(operands)]);
+    }
+  }
+
+  private static void shift(final CodeEmitter code, final int address, final boolean setFlags, final int shiftType, final Register value, final int amount) {
+    if(amount != 0) {
+      beginShift(code, shiftType, value).dec(amount).text(')');
+      return;
+    }
+
+    switch(shiftType) {
+      case 0x0 -> code.reg(value);
+      case 0x1 -> code.text('0');
+      case 0x2 -> code.text('(').reg(value).text(" >> 31)");
+      case 0x3 -> {
+        code.text("((");
+
+        if(setFlags) {
+          code.text("oldCarry").digits(address, 0);
+        } else {
+          code.text("CPU.cpsr().getCarry()");
+        }
+
+        code.text(" ? 0x8000_0000 : 0) | ").reg(value).text(" >>> 1)");
+      }
+      default -> throw new IllegalArgumentException("Invalid shiftType " + shiftType);
+    }
   }
 
-  private static String shift(final int shiftType, final String value, final String amount) {
+  /** Writes a shift of {@code value} up to its amount, the caller writes the amount and the closing bracket */
+  private static CodeEmitter beginShift(final CodeEmitter code, final int shiftType, final Register value) {
     return switch(shiftType) {
-      case 0x0 -> "(%s << %s)".formatted(value, amount);
-      case 0x1 -> "(%s >>> %s)".formatted(value, amount);
-      case 0x2 -> "(%s >> %s)".formatted(value, amount);
-      case 0x3 -> "Integer.rotateRight(%s, %s)".formatted(value, amount);
+      case 0x0 -> code.text('(').reg(value).text(" << ");
+      case 0x1 -> code.text('(').reg(value).text(" >>> ");
+      case 0x2 -> code.text('(').reg(value).text(" >> ");
+      case 0x3 -> code.text("Integer.rotateRight(").reg(value).text(", ");
       default -> throw new IllegalArgumentException("Invalid shiftType " + shiftType);
     };
   }
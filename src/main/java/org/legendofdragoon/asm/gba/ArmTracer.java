@@ -0,0 +1,160 @@
+package org.legendofdragoon.asm.gba;
+
+import org.legendofdragoon.asm.arm.Operands;
+import org.legendofdragoon.asm.arm.Ops;
+
+import java.util.Deque;
+
+/** Follows ARM code from an entry point, marking what it reaches and queueing branch targets */
+final class ArmTracer extends Tracer {
+  ArmTracer(final Rom rom, final Deque<Integer> queue) {
+    super(rom, queue);
+  }
+
+  @Override
+  void trace(int address) {
+    this.known = 0;
+
+    while(this.rom.isUnvisited(address, 4)) {
+      final int command = this.rom.word(address);
+
+      if(command >>> 28 == 0xf) {
+        return;
+      }
+
+      final Ops op = Ops.get(command);
+      if(op == Ops.UNKNOWN) {
+        return;
+      }
+
+      this.rom.mark(address, 4, Rom.ARM);
+
+      final long operands = Operands.decode(address, command, op);
+      final boolean always = Operands.condition(operands) == 0xe;
+      final int rd = Operands.rd(operands);
+      final int rn = Operands.rn(operands);
+
+      switch(op) {
+        case BX -> {
+          this.queueRegister(Operands.rm(operands));
+
+          if(always) {
+            return;
+          }
+        }
+
+        case BLX -> {
+          this.queueRegister(Operands.rm(operands));
+          this.known = 0;
+        }
+
+        case B, BL -> {
+          this.queue.add(Operands.value(operands));
+
+          if(op == Ops.BL) {
+            this.known = 0;
+          } else if(always) {
+            return;
+          }
+        }
+
+        case SWI -> this.known = 0;
+
+        case AND, EOR, SUB, RSB, ADD, ADC, SBC, RSC, ORR, MOV, BIC, MVN -> {
+          if(rd == 0xf) {
+            if(always) {
+              return;
+            }
+
+            break;
+          }
+
+          final boolean isImmediate = (command >>> 25 & 0x1) != 0;
+          final boolean hasLeft = rn == 0xf || this.isKnown(rn);
+          final int left = rn == 0xf ? address + 0x8 : this.values[rn];
+          final int right = Operands.value(operands);
+
+          if(always && isImmediate && op == Ops.MOV) {
+            this.set(rd, right);
+          } else if(always && isImmediate && op == Ops.ADD && hasLeft) {
+            this.set(rd, left + right);
+          } else if(always && isImmediate && op == Ops.SUB && hasLeft) {
+            this.set(rd, left - right);
+          } else {
+            this.invalidate(rd);
+          }
+        }
+
+        case TRANS_IMM_9, TRANS_REG_9 -> {
+          final boolean isPre = (command >>> 24 & 0x1) != 0;
+          final boolean isPositive = (command >>> 23 & 0x1) != 0;
+          final boolean isByte = (command >>> 22 & 0x1) != 0;
+          final boolean writeBack = !isPre || (command >>> 21 & 0x1) != 0;
+          final boolean isLoad = (command >>> 20 & 0x1) != 0;
+
+          if(isLoad) {
+            if(rd == 0xf) {
+              if(always) {
+                return;
+              }
+
+              break;
+            }
+
+            final int literal = address + 0x8 + (isPositive ? 1 : -1) * Operands.value(operands);
+            if(always && op == Ops.TRANS_IMM_9 && rn == 0xf && isPre && !isByte && this.rom.contains(literal, 4)) {
+              this.set(rd, this.rom.word(literal));
+            } else {
+              this.invalidate(rd);
+            }
+          }
+
+          if(writeBack) {
+            this.invalidate(rn);
+          }
+        }
+
+        case TRANS_IMM_10, TRANS_REG_10 -> {
+          if((command >>> 20 & 0x1) != 0) {
+            this.invalidate(rd);
+          }
+
+          if((command >>> 24 & 0x1) == 0 || (command >>> 21 & 0x1) != 0) {
+            this.invalidate(rn);
+          }
+        }
+
+        case BLOCK_TRANS -> {
+          final boolean isLoad = (command >>> 20 & 0x1) != 0;
+
+          if(isLoad) {
+            this.known &= ~Operands.value(operands);
+
+            if((command & 0x8000) != 0 && always) {
+              return;
+            }
+          }
+
+          if((command >>> 21 & 0x1) != 0) {
+            this.invalidate(rn);
+          }
+        }
+
+        case MUL, MUL_LONG, TRANS_SWAP_12 -> {
+          this.invalidate(rn);
+          this.invalidate(rd);
+        }
+
+        case PSR_IMM, PSR_REG -> {
+          if((command >>> 21 & 0x1) == 0) {
+            this.invalidate(rd);
+          }
+        }
+
+        default -> { }
+      }
+
+      address += 4;
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package org.legendofdragoon.asm.gba;
+
+/** A contiguous run of code in one instruction set, [{@link #start}, {@link #end}) */
+public class Region {
+  public final int start;
+  public final int end;
+  public final boolean thumb;
+
+  public Region(final int start, final int end, final boolean thumb) {
+    this.start = start;
+    this.end = end;
+    this.thumb = thumb;
+  }
+}
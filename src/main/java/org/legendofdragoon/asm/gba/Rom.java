@@ -0,0 +1,109 @@
+package org.legendofdragoon.asm.gba;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A memory-mapped GBA cartridge image. Code is found by tracing control flow from the ARM entry point in the header,
+ * following branches, calls and {@code BX} interworking targets to tell ARM code apart from Thumb code.
+ */
+public final class Rom {
+  public static final int BASE = 0x0800_0000;
+
+  static final byte UNKNOWN = 0;
+  static final byte ARM = 1;
+  static final byte THUMB = 2;
+
+  public static Rom load(final Path file) throws IOException {
+    try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new Rom(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  public final ByteBuffer data;
+  /** Instruction set of each halfword in the image */
+  private final byte[] modes;
+
+  public Rom(final ByteBuffer data) {
+    this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+    this.modes = new byte[data.limit() / 2];
+  }
+
+  /** @return Every run of traced code in address order */
+  public List<Region> regions() {
+    final Deque<Integer> queue = new ArrayDeque<>();
+    final Tracer arm = new ArmTracer(this, queue);
+    final Tracer thumb = new ThumbTracer(this, queue);
+
+    queue.add(BASE);
+    while(!queue.isEmpty()) {
+      final int target = queue.poll();
+
+      if((target & 0x1) != 0) {
+        thumb.trace(target & ~0x1);
+      } else {
+        arm.trace(target & ~0x3);
+      }
+    }
+
+    final List<Region> regions = new ArrayList<>();
+
+    int start = 0;
+    while(start < this.modes.length) {
+      final byte mode = this.modes[start];
+
+      int end = start + 1;
+      while(end < this.modes.length && this.modes[end] == mode) {
+        end++;
+      }
+
+      if(mode != UNKNOWN) {
+        regions.add(new Region(BASE + start * 2, BASE + end * 2, mode == THUMB));
+      }
+
+      start = end;
+    }
+
+    return regions;
+  }
+
+  boolean contains(final int address, final int size) {
+    return address >= BASE && address - BASE + size <= this.data.limit();
+  }
+
+  boolean isUnvisited(final int address, final int size) {
+    if(!this.contains(address, size)) {
+      return false;
+    }
+
+    for(int i = 0; i < size; i += 2) {
+      if(this.modes[(address - BASE + i) / 2] != UNKNOWN) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  void mark(final int address, final int size, final byte mode) {
+    for(int i = 0; i < size; i += 2) {
+      this.modes[(address - BASE + i) / 2] = mode;
+    }
+  }
+
+  int word(final int address) {
+    return this.data.getInt(address - BASE);
+  }
+
+  int halfword(final int address) {
+    return this.data.getShort(address - BASE) & 0xffff;
+  }
+}
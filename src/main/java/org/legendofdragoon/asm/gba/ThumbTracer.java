@@ -0,0 +1,159 @@
+package org.legendofdragoon.asm.gba;
+
+import org.legendofdragoon.asm.thumb.Asm;
+import org.legendofdragoon.asm.thumb.Operands;
+import org.legendofdragoon.asm.thumb.Ops;
+import org.legendofdragoon.asm.thumb.Register;
+
+import java.util.Deque;
+
+/** Follows Thumb code from an entry point, marking what it reaches and queueing branch targets */
+final class ThumbTracer extends Tracer {
+  ThumbTracer(final Rom rom, final Deque<Integer> queue) {
+    super(rom, queue);
+  }
+
+  @Override
+  void trace(int address) {
+    this.known = 0;
+
+    while(this.rom.isUnvisited(address, 2)) {
+      int command = this.rom.halfword(address);
+      int size = 2;
+
+      if(Asm.isLongBranchPrefix(command) && this.rom.isUnvisited(address + 2, 2)) {
+        final int suffix = this.rom.halfword(address + 2);
+
+        if(Asm.isLongBranchSuffix(suffix)) {
+          command |= suffix << 16;
+          size = 4;
+        }
+      }
+
+      final Ops op;
+      try {
+        op = Ops.get(command);
+      } catch(final RuntimeException e) {
+        return;
+      }
+
+      this.rom.mark(address, size, Rom.THUMB);
+
+      final long operands = Operands.decode(address, command, op);
+      final int rd = Operands.rd(operands);
+      final int rs = Operands.rs(operands);
+
+      switch(op) {
+        case LSL, LSR, ASR, ADD_REG, SUB_REG, ADD_IMM, SUB_IMM,
+          AND_ALU, EOR_ALU, LSL_ALU, LSR_ALU, ASR_ALU, ADC_ALU, SBC_ALU, ROR_ALU, NEG_ALU, ORR_ALU, MUL_ALU, BIC_ALU, MVN_ALU,
+          LDR_REG, LDRB_REG, LDSB_REG, LDRH_REG, LDSH_REG, LDR_IMM, LDRB_IMM, LDRH_IMM, LDR_SP -> this.invalidate(rd);
+
+        case MOV_IMM -> this.set(rd, Operands.value(operands));
+
+        case ADD_IMM_U, SUB_IMM_U -> {
+          if(this.isKnown(rd)) {
+            final int immediate = Operands.value(operands);
+            this.set(rd, this.values[rd] + (op == Ops.ADD_IMM_U ? immediate : -immediate));
+          }
+        }
+
+        case LDRPC -> {
+          final int literal = Operands.value(operands);
+
+          if(this.rom.contains(literal, 4)) {
+            this.set(rd, this.rom.word(literal));
+          } else {
+            this.invalidate(rd);
+          }
+        }
+
+        case ADDRESS -> {
+          if(rs == Register.R13_SP.ordinal()) {
+            this.invalidate(rd);
+          } else {
+            this.set(rd, Operands.value(operands));
+          }
+        }
+
+        case ADD_HI -> {
+          if(rd == 0xf) {
+            return;
+          }
+
+          final boolean hasSource = rs == 0xf || this.isKnown(rs);
+          if(this.isKnown(rd) && hasSource) {
+            this.set(rd, this.values[rd] + (rs == 0xf ? address + 0x4 : this.values[rs]));
+          } else {
+            this.invalidate(rd);
+          }
+        }
+
+        case MOV_HI -> {
+          if(rd == 0xf) {
+            return;
+          }
+
+          if(rs == 0xf) {
+            this.set(rd, address + 0x4);
+          } else if(this.isKnown(rs)) {
+            this.set(rd, this.values[rs]);
+          } else {
+            this.invalidate(rd);
+          }
+        }
+
+        case BX -> {
+          if(rs == 0xf) {
+            this.queue.add(address + 0x4 & ~0x3);
+          } else {
+            this.queueRegister(rs);
+          }
+
+          return;
+        }
+
+        case POP -> {
+          final int rlist = Operands.value(operands);
+          this.known &= ~(rlist & 0xff);
+
+          if((rlist & 0x1 << Register.R15_PC.ordinal()) != 0) {
+            return;
+          }
+        }
+
+        case STMIA -> this.invalidate(rs);
+
+        case LDMIA -> {
+          this.known &= ~Operands.value(operands);
+          this.invalidate(rs);
+        }
+
+        case BEQ, BNE, BCS, BCC, BMI, BPL, BVS, BVC, BHI, BLS, BGE, BLT, BGT, BLE -> this.queue.add(Operands.value(operands) | 0x1);
+
+        case SWI -> this.known = 0;
+
+        case B -> {
+          this.queue.add(Operands.value(operands) | 0x1);
+          return;
+        }
+
+        case BL, BLX -> {
+          final int target = Operands.value(operands);
+
+          // Bit 12 of the second halfword is clear for BLX, which switches to ARM
+          if((command >>> 28 & 0x1) == 0) {
+            this.queue.add(target & ~0x3);
+          } else {
+            this.queue.add(target | 0x1);
+          }
+
+          this.known = 0;
+        }
+
+        default -> { }
+      }
+
+      address += size;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package org.legendofdragoon.asm.gba;
+
+import java.util.Deque;
+
+/**
+ * Linear sweep over one instruction set from a single entry point. Registers holding known constants are tracked so
+ * that {@code BX Rn} targets (and with them, instruction set switches) can be resolved.
+ */
+abstract class Tracer {
+  final Rom rom;
+  /** Entry points still to trace, Thumb code has bit 0 set like a {@code BX} target */
+  final Deque<Integer> queue;
+  final int[] values = new int[16];
+  int known;
+
+  Tracer(final Rom rom, final Deque<Integer> queue) {
+    this.rom = rom;
+    this.queue = queue;
+  }
+
+  abstract void trace(int address);
+
+  void queueRegister(final int register) {
+    if(this.isKnown(register)) {
+      this.queue.add(this.values[register]);
+    }
+  }
+
+  boolean isKnown(final int register) {
+    return (this.known & 0x1 << register) != 0;
+  }
+
+  void set(final int register, final int value) {
+    this.values[register] = value;
+    this.known |= 0x1 << register;
+  }
+
+  void invalidate(final int register) {
+    this.known &= ~(0x1 << register);
+  }
+}
@@ -1,32 +1,144 @@
 package org.legendofdragoon.asm.mips;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import org.legendofdragoon.asm.HexDumpScanner;
+import org.legendofdragoon.asm.InstructionBuffer;
+import org.legendofdragoon.asm.ParallelParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
 
 public final class Asm {
-  private static final Pattern regex = Pattern.compile("\\s+?(?:\\w*::)?([\\da-f]{8})\\s+([\\da-f]{2})\\s+?([\\da-f]{2})\\s+?([\\da-f]{2})\\s+?([\\da-f]{2}).*", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+  private static final HexDumpScanner scanner = new HexDumpScanner(4, 4);
+  private static final ParallelParser parallelParser = new ParallelParser(scanner, (address, command) -> Ops.decode(command).ordinal());
+
+  /** Default load address for raw RAM images */
+  public static final long RAM_BASE = 0x8000_0000L;
+
+  private static final byte[] EXE_MAGIC = {'P', 'S', '-', 'X', ' ', 'E', 'X', 'E'};
+  private static final int EXE_HEADER_SIZE = 0x800;
 
   public static Asm parse(final String asm) {
-    final List<Command> commands = new ArrayList<>();
+    final InstructionBuffer instructions = new InstructionBuffer();
+    scanner.scan(ByteBuffer.wrap(asm.getBytes(StandardCharsets.ISO_8859_1)), (address, command) -> add(instructions, address, command));
+    return new Asm(instructions);
+  }
+
+  public static Asm parse(final ReadableByteChannel channel) throws IOException {
+    final InstructionBuffer instructions = new InstructionBuffer();
+    scanner.scan(channel, (address, command) -> add(instructions, address, command));
+    return new Asm(instructions);
+  }
+
+  /** Parses a hex dump in chunks of about {@code chunkSize} bytes, split at line boundaries, on {@code parallelism} threads */
+  public static Asm parseParallel(final ByteBuffer data, final int parallelism, final int chunkSize) {
+    return new Asm(parallelParser.parse(data, parallelism, chunkSize));
+  }
+
+  /** Parses a hex dump line by line, handing each command to {@code consumer} as soon as it is decoded */
+  public static void parse(final ReadableByteChannel channel, final Consumer<Command> consumer) throws IOException {
+    scanner.scan(channel, (address, command) -> consumer.accept(new Command(Integer.toUnsignedLong(address), Integer.toUnsignedLong(command))));
+  }
+
+  /**
+   * Loads a PSX-EXE or a raw RAM/overlay image. PSX-EXEs are placed at the load address from their header,
+   * raw images at {@code baseAddress}. Only words in [{@code start}, {@code end}) are decoded.
+   */
+  public static Asm load(final Path file, final long baseAddress, final long start, final long end) throws IOException {
+    try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if(isExe(data)) {
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        final long textAddress = Integer.toUnsignedLong(data.getInt(0x18));
+        final int textSize = Math.min(data.getInt(0x1c), data.capacity() - EXE_HEADER_SIZE);
+        return parse(data.slice(EXE_HEADER_SIZE, textSize), textAddress, start, end);
+      }
+
+      return parse(data, baseAddress, start, end);
+    }
+  }
+
+  /** Decodes little-endian words from {@code data}, where the first byte of the buffer is at {@code baseAddress} */
+  public static Asm parse(final ByteBuffer data, final long baseAddress, final long start, final long end) {
+    data.order(ByteOrder.LITTLE_ENDIAN);
+
+    final long first = Math.max(start, baseAddress) + 3 & ~0x3L;
+    final long last = Math.min(end, baseAddress + data.capacity()) & ~0x3L;
+
+    final InstructionBuffer instructions = new InstructionBuffer((int)Math.max(0, (last - first) / 4));
 
-    final Matcher matcher = regex.matcher(asm);
+    for(long address = first; address < last; address += 4) {
+      add(instructions, (int)address, data.getInt((int)(address - baseAddress)));
+    }
 
-    while(matcher.find()) {
-      final long address = Long.parseLong(matcher.group(1), 16);
-      final long command = Long.parseLong(matcher.group(5) + matcher.group(4) + matcher.group(3) + matcher.group(2), 16);
+    return new Asm(instructions);
+  }
 
-      commands.add(new Command(address, command));
+  private static void add(final InstructionBuffer instructions, final int address, final int command) {
+    instructions.add(address, command, Ops.decode(command).ordinal());
+  }
+
+  private static boolean isExe(final ByteBuffer data) {
+    if(data.capacity() < EXE_HEADER_SIZE) {
+      return false;
     }
 
-    return new Asm(commands);
+    for(int i = 0; i < EXE_MAGIC.length; i++) {
+      if(data.get(i) != EXE_MAGIC[i]) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
+  public final InstructionBuffer instructions;
+  /** {@link Command} view over {@link #instructions}, commands are created on access */
   public final List<Command> commands;
+  /** {@link Operands} of each instruction, decoded once up front */
+  public final long[] operands;
+
+  private Asm(final InstructionBuffer instructions) {
+    this.instructions = instructions;
+    this.commands = new CommandList(instructions);
+    this.operands = new long[instructions.size()];
+
+    for(int i = 0; i < instructions.size(); i++) {
+      this.operands[i] = Operands.decode(instructions.address(i), instructions.word(i), Ops.VALUES[instructions.op(i)]);
+    }
+  }
+
+  public Ops op(final int index) {
+    return Ops.VALUES[this.instructions.op(index)];
+  }
 
-  private Asm(final List<Command> commands) {
-    this.commands = Collections.unmodifiableList(commands);
+  private static final class CommandList extends AbstractList<Command> implements RandomAccess {
+    private final InstructionBuffer instructions;
+
+    private CommandList(final InstructionBuffer instructions) {
+      this.instructions = instructions;
+    }
+
+    @Override
+    public Command get(final int index) {
+      Objects.checkIndex(index, this.instructions.size());
+      return new Command(Integer.toUnsignedLong(this.instructions.address(index)), Integer.toUnsignedLong(this.instructions.word(index)), Ops.VALUES[this.instructions.op(index)]);
+    }
+
+    @Override
+    public int size() {
+      return this.instructions.size();
+    }
   }
 }
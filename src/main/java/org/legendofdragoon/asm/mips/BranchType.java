@@ -4,4 +4,7 @@ public enum BranchType {
   NONE,
   ALWAYS,
   CONDITIONAL,
+  ;
+
+  static final BranchType[] VALUES = values();
 }
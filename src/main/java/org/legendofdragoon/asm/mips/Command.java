@@ -6,39 +6,60 @@ public class Command {
   public final Ops op;
 
   public Command(final long address, final long command) {
+    this(address, command, Ops.decode((int)command));
+  }
+
+  Command(final long address, final long command, final Ops op) {
     this.address = address;
     this.command = command;
-
-    if(command != 0) {
-      final int primaryOp = (int)(command >>> 26);
-      final int secondaryOp = (int)(command & 0x3f);
-      this.op = Ops.get(primaryOp, secondaryOp);
-    } else {
-      this.op = Ops.NOOP;
-    }
+    this.op = op;
   }
 
   public Register dest() {
-    return Register.values()[(int)((this.command >>> 11) & 0x1f)];
+    return dest(this.command);
   }
 
   public Register target() {
-    return Register.values()[(int)((this.command >>> 16) & 0x1f)];
+    return target(this.command);
   }
 
   public Register source() {
-    return Register.values()[(int)((this.command >>> 21) & 0x1f)];
+    return source(this.command);
   }
 
   public long immediate5() {
-    return (this.command >> 6) & 0x1f;
+    return immediate5(this.command);
   }
 
   public long immediate16() {
-    return this.command & 0xffffL;
+    return immediate16(this.command);
   }
 
   public long immediate26() {
-    return this.command & 0x3ff_ffffL;
+    return immediate26(this.command);
+  }
+
+  public static Register dest(final long command) {
+    return Register.VALUES[(int)((command >>> 11) & 0x1f)];
+  }
+
+  public static Register target(final long command) {
+    return Register.VALUES[(int)((command >>> 16) & 0x1f)];
+  }
+
+  public static Register source(final long command) {
+    return Register.VALUES[(int)((command >>> 21) & 0x1f)];
+  }
+
+  public static long immediate5(final long command) {
+    return (command >> 6) & 0x1f;
+  }
+
+  public static long immediate16(final long command) {
+    return command & 0xffffL;
+  }
+
+  public static long immediate26(final long command) {
+    return command & 0x3ff_ffffL;
   }
 }
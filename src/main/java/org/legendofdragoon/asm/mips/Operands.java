@@ -0,0 +1,53 @@
+package org.legendofdragoon.asm.mips;
+
+/**
+ * Operand fields of a decoded MIPS instruction, packed into a long so a whole program's worth can sit in one array next
+ * to the {@link org.legendofdragoon.asm.InstructionBuffer}. The immediate is stored the way the op uses it - sign- or
+ * zero-extended, or already turned into a branch or jump target.
+ *
+ * <ul>
+ *   <li>{@link #dest} - rd, bits 15-11</li>
+ *   <li>{@link #target} - rt, bits 20-16</li>
+ *   <li>{@link #source} - rs, bits 25-21</li>
+ *   <li>{@link #immediate} - shift amount, extended 16-bit immediate, or the 25-bit COP2 command</li>
+ *   <li>{@link #jump} - branch or jump target</li>
+ * </ul>
+ */
+public final class Operands {
+  private Operands() { }
+
+  public static long decode(final int address, final int command, final Ops op) {
+    final int immediate = switch(op) {
+      case SLL, SRL, SRA -> command >>> 6 & 0x1f;
+      case BCONDZ, BEQ, BNE, BLEZ, BGTZ -> address + 4 + (command << 16 >> 16) * 4;
+      case J, JAL -> (address & 0xf000_0000) + (command & 0x3ff_ffff) * 4;
+      case ADDI, ADDIU, SLTI, LB, LH, LWL, LW, LBU, LHU, LWR, SB, SH, SWL, SW, SWR, LWC0, LWC2, SWC0, SWC2 -> command << 16 >> 16;
+      case SLTIU, ANDI, ORI, XORI, LUI -> command & 0xffff;
+      case COP0, COP2 -> command & 0x1ff_ffff;
+      default -> 0;
+    };
+
+    return (command >>> 11 & 0x1f | (command >>> 16 & 0x1f) << 5 | (command >>> 21 & 0x1f) << 10) | (long)immediate << 32;
+  }
+
+  public static Register dest(final long operands) {
+    return Register.VALUES[(int)operands & 0x1f];
+  }
+
+  public static Register target(final long operands) {
+    return Register.VALUES[(int)operands >>> 5 & 0x1f];
+  }
+
+  public static Register source(final long operands) {
+    return Register.VALUES[(int)operands >>> 10 & 0x1f];
+  }
+
+  public static int immediate(final long operands) {
+    return (int)(operands >>> 32);
+  }
+
+  /** @return The branch or jump target as an unsigned address */
+  public static long jump(final long operands) {
+    return operands >>> 32;
+  }
+}
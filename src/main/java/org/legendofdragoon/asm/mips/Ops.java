@@ -1,5 +1,7 @@
 package org.legendofdragoon.asm.mips;
 
+import java.util.Arrays;
+
 public enum Ops {
   SLL(0x0, 0x0),
   SRL(0x0, 0x2),
@@ -63,16 +65,68 @@ public enum Ops {
   SWC0(0x38),
   SWC2(0x3a),
   NOOP(-1),
+  /** Any encoding that isn't a valid instruction, e.g. data mixed in with code */
+  UNKNOWN(-1),
   ;
 
-  public static Ops get(final int primary, final int secondary) {
-    for(final Ops op : Ops.values()) {
-      if(op.primary == primary && (primary != 0 || op.secondary == secondary)) {
-        return op;
+  static final Ops[] VALUES = values();
+
+  /** Indexed by {@code primary << 6 | secondary}, the secondary opcode only matters for SPECIAL (primary 0) */
+  private static final Ops[] TABLE = new Ops[64 * 64];
+  /** Primaries whose op depends on another 5-bit field instead, indexed by that field */
+  private static final Ops[][] FIELD_TABLES = new Ops[64][];
+  private static final int[] FIELD_SHIFTS = new int[64];
+
+  static {
+    Arrays.fill(TABLE, UNKNOWN);
+
+    for(final Ops op : VALUES) {
+      if(op.primary == 0) {
+        TABLE[op.secondary] = op;
+      } else if(op.primary > 0) {
+        Arrays.fill(TABLE, op.primary << 6, op.primary + 1 << 6, op);
       }
     }
 
-    throw new IllegalArgumentException("Unknown instruction primary " + Integer.toHexString(primary) + " secondary " + Integer.toHexString(secondary));
+    // REGIMM, keyed on rt. The R3000A decodes every rt value: bit 0 picks BGEZ over BLTZ and 0x10/0x11 also link.
+    final Ops[] regimm = new Ops[32];
+    Arrays.fill(regimm, BCONDZ);
+    FIELD_TABLES[BCONDZ.primary] = regimm;
+    FIELD_SHIFTS[BCONDZ.primary] = 16;
+
+    // Coprocessor ops, keyed on rs: MFC, CFC, MTC, CTC, BC and the 0x10-0x1f coprocessor commands
+    for(final Ops op : new Ops[] {COP0, COP2}) {
+      final Ops[] cop = new Ops[32];
+      Arrays.fill(cop, UNKNOWN);
+      cop[0b00000] = op;
+      cop[0b00010] = op;
+      cop[0b00100] = op;
+      cop[0b00110] = op;
+      cop[0b01000] = op;
+      Arrays.fill(cop, 0b10000, 0b100000, op);
+      FIELD_TABLES[op.primary] = cop;
+      FIELD_SHIFTS[op.primary] = 21;
+    }
+  }
+
+  public static Ops decode(final int command) {
+    if(command == 0) {
+      return NOOP;
+    }
+
+    final int primary = command >>> 26;
+    final Ops[] field = FIELD_TABLES[primary];
+
+    if(field != null) {
+      return field[command >>> FIELD_SHIFTS[primary] & 0x1f];
+    }
+
+    return TABLE[primary << 6 | command & 0x3f];
+  }
+
+  /** @return The op for a primary/secondary opcode pair, {@link #UNKNOWN} if there isn't one */
+  public static Ops get(final int primary, final int secondary) {
+    return TABLE[primary << 6 | secondary];
   }
 
   private final int primary;
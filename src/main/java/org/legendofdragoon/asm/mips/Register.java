@@ -1,6 +1,8 @@
 package org.legendofdragoon.asm.mips;
 
-public enum Register {
+import org.legendofdragoon.asm.CodeEmitter;
+
+public enum Register implements CodeEmitter.Register {
   ZERO("0"),
   AT("at"),
   V0("v0"),
@@ -37,9 +39,16 @@ public enum Register {
   LO("lo"),
   ;
 
+  static final Register[] VALUES = values();
+
   public final String name;
 
   Register(final String name) {
     this.name = name;
   }
+
+  @Override
+  public String code() {
+    return this.name;
+  }
 }
@@ -0,0 +1,176 @@
+package org.legendofdragoon.asm.mips;
+
+import org.legendofdragoon.asm.CodeEmitter;
+
+/**
+ * What a MIPS instruction translates to, before it's rendered. Branches keep their condition and target as separate
+ * nodes, so the instruction in a delay slot is moved into place by wrapping nodes (see {@link #withDelaySlot}) instead
+ * of cutting up the branch's text.
+ */
+abstract class Statement {
+  /** Decides where the statement's delay slot goes, if it has one */
+  abstract BranchType branchType();
+
+  /** @return This branch with {@code delay} executed first, the way the CPU would */
+  Statement withDelaySlot(final Statement delay) {
+    if(this.branchType() == BranchType.NONE) {
+      throw new IllegalStateException("Only branches have delay slots");
+    }
+
+    return new Block(delay, this);
+  }
+
+  abstract void render(CodeEmitter code);
+
+  /** Straight-line code - assignments, loads, stores, etc. - that has already been written out, one or more lines */
+  static final class Code extends Statement {
+    final String text;
+
+    Code(final String text) {
+      this.text = text;
+    }
+
+    @Override
+    BranchType branchType() {
+      return BranchType.NONE;
+    }
+
+    @Override
+    void render(final CodeEmitter code) {
+      code.lines(this.text);
+    }
+  }
+
+  /** {@code LAB_target;} */
+  static final class Goto extends Statement {
+    final long target;
+
+    Goto(final long target) {
+      this.target = target;
+    }
+
+    @Override
+    BranchType branchType() {
+      return BranchType.ALWAYS;
+    }
+
+    @Override
+    void render(final CodeEmitter code) {
+      code.label(this.target).stmt();
+    }
+  }
+
+  /** {@code FUN_address()} or {@code register()}, with the return value optionally stored in {@link #result} */
+  static final class Call extends Statement {
+    /** Null if the return value is dropped */
+    final Register result;
+    /** Null when calling a fixed address */
+    final Register register;
+    final long address;
+
+    static Call function(final Register result, final long address) {
+      return new Call(result, null, address);
+    }
+
+    static Call register(final Register register) {
+      return new Call(null, register, 0);
+    }
+
+    private Call(final Register result, final Register register, final long address) {
+      this.result = result;
+      this.register = register;
+      this.address = address;
+    }
+
+    @Override
+    BranchType branchType() {
+      return BranchType.ALWAYS;
+    }
+
+    @Override
+    void render(final CodeEmitter code) {
+      if(this.result != null) {
+        code.reg(this.result).text(" = ");
+      }
+
+      if(this.register != null) {
+        code.reg(this.register);
+      } else {
+        code.text("FUN_").digits(this.address, 0);
+      }
+
+      code.text("()").stmt();
+    }
+  }
+
+  static final class Return extends Statement {
+    static final Return INSTANCE = new Return();
+
+    private Return() { }
+
+    @Override
+    BranchType branchType() {
+      return BranchType.ALWAYS;
+    }
+
+    @Override
+    void render(final CodeEmitter code) {
+      code.text("return").stmt();
+    }
+  }
+
+  /** A conditional branch, {@link #body} is only executed if {@link #condition} holds */
+  static final class If extends Statement {
+    final String condition;
+    final Statement body;
+
+    If(final String condition, final Statement body) {
+      this.condition = condition;
+      this.body = body;
+    }
+
+    @Override
+    BranchType branchType() {
+      return BranchType.CONDITIONAL;
+    }
+
+    /** The delay slot runs whether the branch is taken or not, so it goes both inside the block and after it */
+    @Override
+    Statement withDelaySlot(final Statement delay) {
+      return new Block(new If(this.condition, this.body.withDelaySlot(delay)), delay);
+    }
+
+    @Override
+    void render(final CodeEmitter code) {
+      code.openIf(this.condition);
+      this.body.render(code);
+      code.closeIf();
+    }
+  }
+
+  /** Statements on consecutive lines */
+  static final class Block extends Statement {
+    final Statement[] statements;
+
+    Block(final Statement... statements) {
+      this.statements = statements;
+    }
+
+    /** Blocks are only made by filling a delay slot, so there isn't another one to fill */
+    @Override
+    BranchType branchType() {
+      return BranchType.NONE;
+    }
+
+    @Override
+    void render(final CodeEmitter code) {
+      for(int i = 0; i < this.statements.length; i++) {
+        if(i != 0) {
+          code.nl();
+        }
+
+        this.statements[i].render(code);
+      }
+    }
+  }
+}
@@ -1,527 +1,743 @@
 package org.legendofdragoon.asm.mips;
 
+import org.legendofdragoon.asm.CodeEmitter;
+import org.legendofdragoon.asm.InstructionBuffer;
+import org.legendofdragoon.asm.LineSlots;
+import org.legendofdragoon.asm.Options;
+import org.legendofdragoon.asm.TranslationMemo;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 public class Translator {
+  /** Bumped whenever a change alters the output, so stale {@link org.legendofdragoon.asm.TranslationCache} entries are never hit */
+  public static final int VERSION = 5;
+
+  /** The bits of {@link TranslationMemo.Entry#flags} that hold the {@link BranchType} */
+  private static final int BRANCH_TYPE = 0x3;
+  /** {@link TranslationMemo.Entry#flags}: a set-less-than only the branch after it reads, so it has no line of its own */
+  private static final int UNUSED_RESULT = 0x4;
+  /** {@link TranslationMemo.Entry#flags}: a BEQ or BNE testing the operands of the set-less-than before it */
+  private static final int FUSED_WITH_PREVIOUS = 0x8;
+  private static final int FUSION_FLAGS = UNUSED_RESULT | FUSED_WITH_PREVIOUS;
+
+  /** Each instruction and each finished slot is written here, then copied out as a String */
+  private final StringBuilder buffer = new StringBuilder();
+  private final CodeEmitter code = new CodeEmitter(this.buffer, 0);
+
+  /** Layout of the output, only used by {@link #translate(Asm, TranslationMemo, Appendable)} */
+  private final Options options;
+
+  public Translator() {
+    this(new Options());
+  }
+
+  public Translator(final Options options) {
+    this.options = options;
+  }
+
   public List<String> translate(final Asm asm) {
-    final Map<Long, String> lines = new LinkedHashMap<>();
-    final Set<Long> labels = new HashSet<>();
-    final Set<Register> registers = EnumSet.noneOf(Register.class);
-    final Set<String> extraVars = new HashSet<>();
+    return this.translate(asm, (TranslationMemo)null);
+  }
 
-    BranchType lastBranchType = BranchType.NONE;
+  /**
+   * @param memo Results of an earlier run, reused for every instruction whose word hasn't changed. Null translates
+   *             everything. The memo is updated to match this run.
+   */
+  public List<String> translate(final Asm asm, final TranslationMemo memo) {
+    final List<String> output = new ArrayList<>();
+    final LineSlots lines = this.lines(asm, memo, output);
 
-    for(final Command command : asm.commands) {
-      BranchType branchType = BranchType.NONE;
+    // Add code to output
+    output.addAll(lines.toList());
 
-      final String line = switch(command.op) {
-        case SLL -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          yield command.dest().name + " = " + command.target().name + " << " + command.immediate5() + ';';
-        }
+    return output;
+  }
 
-        case SRL -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          yield command.dest().name + " = " + command.target().name + " >>> " + command.immediate5() + ';';
-        }
+  /** Writes the translation to {@code out}, ending every line with {@code \n} */
+  public void translate(final Asm asm, final Appendable out) throws IOException {
+    this.translate(asm, null, out);
+  }
 
-        case SRA -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          yield command.dest().name + " = (int)" + command.target().name + " >> " + command.immediate5() + ';';
-        }
+  /** @see #translate(Asm, TranslationMemo) */
+  public void translate(final Asm asm, final TranslationMemo memo, final Appendable out) throws IOException {
+    final List<String> declarations = new ArrayList<>();
+    final LineSlots lines = this.lines(asm, memo, declarations);
 
-        case SLLV -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = " + command.target().name + " << " + command.source().name + ';';
-        }
+    for(final String declaration : declarations) {
+      out.append(declaration).append('\n');
+    }
 
-        case SRLV -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = " + command.target().name + " >>> " + command.source().name + ';';
-        }
+    if(this.options.functions || this.options.controlFlow()) {
+      markFunctions(asm, lines);
+    }
 
-        case SRAV -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = (int)" + command.target().name + " >> " + command.source().name + ';';
-        }
+    lines.write(out, this.options, "void");
+  }
+
+  /** Functions start at JAL targets and end at JR RA */
+  private static void markFunctions(final Asm asm, final LineSlots lines) {
+    final InstructionBuffer instructions = asm.instructions;
+
+    for(int i = 0; i < instructions.size(); i++) {
+      switch(asm.op(i)) {
+        case JAL -> lines.function(Operands.jump(asm.operands[i]));
 
-        case AND -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = " + command.source().name + " & " + command.target().name + ';';
+        case JR, JALR -> {
+          if(Operands.source(asm.operands[i]) == Register.RA) {
+            lines.functionReturn(Integer.toUnsignedLong(instructions.address(i)));
+          }
         }
+      }
+    }
+  }
+
+  /**
+   * @param declarations Receives the variable definitions that have to come before the code
+   * @return The code for each address
+   */
+  private LineSlots lines(final Asm asm, final TranslationMemo memo, final List<String> declarations) {
+    final InstructionBuffer instructions = asm.instructions;
+    final LineSlots lines = LineSlots.of(instructions, 4, 0);
+    final Set<Register> allRegisters = EnumSet.noneOf(Register.class);
+    final Set<String> allExtraVars = new HashSet<>();
+
+    // Collected per instruction when memoising so they can be stored along with the line
+    final Set<Register> registers = memo != null ? EnumSet.noneOf(Register.class) : allRegisters;
+    final Set<String> extraVars = memo != null ? new HashSet<>() : allExtraVars;
+
+    // The statement for slotAddress isn't rendered until the instruction after it, which may go in its delay slot
+    Statement slot = null;
+    Statement delay = null;
+    long slotAddress = 0;
+    // The slot is a set-less-than written as part of the branch after it
+    boolean slotFolded = false;
+    BranchType lastBranchType = BranchType.NONE;
+    long lastAddress = -1;
+
+    // Set-less-than and the zero test after it, see UNUSED_RESULT and FUSED_WITH_PREVIOUS
+    final int[] fusions = this.options.fuseCompares ? compareFusions(asm) : null;
+    boolean reused = false;
+
+    if(memo != null) {
+      memo.begin(0);
+    }
+
+    for(int i = 0; i < instructions.size(); i++) {
+      final long address = Integer.toUnsignedLong(instructions.address(i));
+      final int fusion = fusions != null ? fusions[i] : 0;
+
+      // A fused branch is written from the set-less-than before it, so it can only be reused along with it
+      final TranslationMemo.Entry entry = memo == null ? null : (fusion & FUSED_WITH_PREVIOUS) != 0 && !reused ? memo.miss() : memo.get(instructions.address(i), instructions.word(i), fusion, FUSION_FLAGS);
+      reused = entry != null;
 
-        case OR -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = " + command.source().name + " | " + command.target().name + ';';
+      final Statement statement;
+      final BranchType branchType;
+      if(entry != null) {
+        for(long bits = entry.registers; bits != 0; bits &= bits - 1) {
+          allRegisters.add(Register.VALUES[Long.numberOfTrailingZeros(bits)]);
         }
 
-        case XOR -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = " + command.source().name + " ^ " + command.target().name + ';';
+        for(final int label : entry.labels) {
+          lines.label(label);
         }
 
-        case NOR -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = ~(" + command.source().name + " | " + command.target().name + ");";
+        Collections.addAll(allExtraVars, entry.extraVars);
+
+        branchType = BranchType.VALUES[entry.flags & BRANCH_TYPE];
+
+        statement = switch(branchType) {
+          case NONE -> new Statement.Code(entry.line);
+          case ALWAYS -> jump(asm.op(i), asm.operands[i]);
+          case CONDITIONAL -> new Statement.If(entry.line, new Statement.Goto(Integer.toUnsignedLong(entry.labels[0])));
+        };
+      } else {
+        final int labelCount = lines.labelCount();
+        this.buffer.setLength(0);
+
+        if((fusion & UNUSED_RESULT) != 0) {
+          statement = new Statement.Code("");
+        } else if((fusion & FUSED_WITH_PREVIOUS) != 0) {
+          statement = fusedBranch(this.code, asm, i, registers, lines);
+        } else {
+          statement = translateInstruction(this.code, address, Integer.toUnsignedLong(instructions.word(i)), asm.op(i), asm.operands[i], registers, lines, extraVars);
         }
 
-        case SLT -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = (int)" + command.source().name + " < (int)" + command.target().name + ';';
+        branchType = statement.branchType();
+
+        if(memo != null) {
+          long registerBits = 0;
+          for(final Register register : registers) {
+            registerBits |= 1L << register.ordinal();
+          }
+
+          final String[] vars = extraVars.isEmpty() ? TranslationMemo.NO_VARS : extraVars.toArray(String[]::new);
+          // A conditional branch is stored as its condition, its target is its only label
+          final String line = statement instanceof Statement.If branch ? branch.condition : this.render(statement);
+          memo.put(instructions.address(i), new TranslationMemo.Entry(instructions.word(i), line, registerBits, lines.labelsSince(labelCount), vars, branchType.ordinal() | fusion));
+
+          allRegisters.addAll(registers);
+          allExtraVars.addAll(extraVars);
+          registers.clear();
+          extraVars.clear();
         }
+      }
 
-        case SLTU -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = " + command.source().name + " < " + command.target().name + ';';
+      // Deal with branch delay by moving this instruction into the branch before it
+      if(lastBranchType != BranchType.NONE && slotAddress == address - 4) {
+        delay = statement;
+      } else {
+        if(slot != null) {
+          this.finish(lines, slotAddress, slot, delay, slotFolded);
         }
 
-        case JR -> {
-          registers.add(command.source());
+        slot = statement;
+        slotFolded = (fusion & UNUSED_RESULT) != 0;
+        delay = null;
 
-          branchType = BranchType.ALWAYS;
+        // After a branch that was itself in a delay slot, the branch's own slot is free
+        slotAddress = lastBranchType != BranchType.NONE && lastAddress == address - 4 ? address - 4 : address;
+      }
 
-          if(command.source() != Register.RA) {
-            yield command.source().name + "();";
-          }
+      lastBranchType = branchType;
+      lastAddress = address;
+    }
 
-          yield "return;";
-        }
+    if(slot != null) {
+      this.finish(lines, slotAddress, slot, delay, slotFolded);
+    }
 
-        case JALR -> {
-          registers.add(command.dest());
-          registers.add(command.source());
+    // Add register variable definitions to output
+    for(final Register register : allRegisters) {
+      if(register != Register.ZERO) {
+        declarations.add("long " + register.name + ';');
+      }
+    }
 
-          branchType = BranchType.ALWAYS;
+    // Add extra variable definitions to output
+    for(final String var : allExtraVars) {
+      declarations.add("long " + var + ';');
+    }
 
-          if(command.source() != Register.RA) {
-            yield command.source().name + "();";
-          }
+    return lines;
+  }
 
-          yield "return;";
+  /**
+   * Finds each SLT, SLTU, SLTI or SLTIU whose result is tested against zero by the BEQ or BNE right after it. The
+   * branch tests the set-less-than's operands instead, which is always the same since the condition is read before
+   * the delay slot runs. The set-less-than is only dropped if its result is overwritten before anything else reads it,
+   * on both paths out of the branch.
+   *
+   * @return The {@link #UNUSED_RESULT} and {@link #FUSED_WITH_PREVIOUS} flags of each instruction
+   */
+  private static int[] compareFusions(final Asm asm) {
+    final InstructionBuffer instructions = asm.instructions;
+    final int[] fusions = new int[instructions.size()];
+    final BitSet targeted = new BitSet();
+
+    for(int i = 0; i < instructions.size(); i++) {
+      switch(asm.op(i)) {
+        case BCONDZ, BEQ, BNE, BLEZ, BGTZ, J, JAL -> {
+          final int target = instructions.indexOf((int)Operands.jump(asm.operands[i]));
+
+          if(target != -1) {
+            targeted.set(target);
+          }
         }
+      }
+    }
 
-        case BREAK -> "throw new RuntimeException(\"break\");";
+    for(int i = 0; i + 1 < instructions.size(); i++) {
+      final Register result = setLessThanResult(asm, i);
+      final Ops op = asm.op(i + 1);
+      final long operands = asm.operands[i + 1];
+
+      // The branch can't be reached any other way, and the set-less-than can't be in a delay slot
+      if(
+        result == null ||
+        op != Ops.BEQ && op != Ops.BNE ||
+        !(Operands.source(operands) == result && Operands.target(operands) == Register.ZERO || Operands.source(operands) == Register.ZERO && Operands.target(operands) == result) ||
+        targeted.get(i + 1) ||
+        instructions.address(i + 1) != instructions.address(i) + 4 ||
+        i != 0 && isTransfer(asm.op(i - 1))
+      ) {
+        continue;
+      }
 
-        case MFHI -> {
-          registers.add(Register.HI);
-          registers.add(command.dest());
+      fusions[i + 1] = FUSED_WITH_PREVIOUS;
 
-          yield command.dest().name + " = " + Register.HI.name + ';';
-        }
+      if(unusedAfterBranch(asm, result, i + 1)) {
+        fusions[i] = UNUSED_RESULT;
+      }
+    }
 
-        case MFLO -> {
-          registers.add(Register.LO);
-          registers.add(command.dest());
+    return fusions;
+  }
 
-          yield command.dest().name + " = " + Register.LO.name + ';';
-        }
+  /** @return The register set by the set-less-than at {@code i}, or null if it isn't one or it overwrites an operand */
+  private static Register setLessThanResult(final Asm asm, final int i) {
+    final long operands = asm.operands[i];
 
-        case MULT -> {
-          registers.add(Register.HI);
-          registers.add(Register.LO);
-          registers.add(command.target());
-          registers.add(command.source());
+    final Register result = switch(asm.op(i)) {
+      case SLT, SLTU -> Operands.dest(operands) != Operands.target(operands) ? Operands.dest(operands) : null;
+      case SLTI, SLTIU -> Operands.target(operands);
+      default -> null;
+    };
 
-          yield
-            Register.HI.name + " = ((long)(int)" + command.source().name + " * (int)" + command.target().name + ") >>> 32;\n" +
-            Register.LO.name + " = ((long)(int)" + command.source().name + " * (int)" + command.target().name + ") & 0xffff_ffffL;";
-        }
+    return result != null && result != Register.ZERO && result != Operands.source(operands) ? result : null;
+  }
 
-        case MULTU -> {
-          registers.add(Register.HI);
-          registers.add(Register.LO);
-          registers.add(command.target());
-          registers.add(command.source());
+  /** @return Whether the branch at {@code branch}, its delay slot and wherever it goes overwrite {@code register} before reading it */
+  private static boolean unusedAfterBranch(final Asm asm, final Register register, final int branch) {
+    final InstructionBuffer instructions = asm.instructions;
+    final int delay = branch + 1;
 
-          yield
-            Register.HI.name + " = ((" + command.source().name + " & 0xffff_ffffL) * (" + command.target().name + " & 0xffff_ffffL)) >>> 32;\n" +
-            Register.LO.name + " = ((" + command.source().name + " & 0xffff_ffffL) * (" + command.target().name + " & 0xffff_ffffL)) & 0xffff_ffffL;";
-        }
+    if(delay == instructions.size() || instructions.address(delay) != instructions.address(branch) + 4 || isTransfer(asm.op(delay)) || reads(asm.op(delay), asm.operands[delay], register)) {
+      return false;
+    }
 
-        case DIV -> {
-          registers.add(Register.HI);
-          registers.add(Register.LO);
-          registers.add(command.target());
-          registers.add(command.source());
+    // The delay slot runs whichever way the branch goes
+    if(written(asm.op(delay), asm.operands[delay]) == register) {
+      return true;
+    }
 
-          yield
-            Register.HI.name + " = (int)" + command.source().name + " % (int)" + command.target().name + ";\n" +
-            Register.LO.name + " = (int)" + command.source().name + " / (int)" + command.target().name + ';';
-        }
+    final int target = instructions.indexOf((int)Operands.jump(asm.operands[branch]));
+    return target != -1 && overwritten(asm, register, delay + 1) && overwritten(asm, register, target);
+  }
 
-        case DIVU -> {
-          registers.add(Register.HI);
-          registers.add(Register.LO);
-          registers.add(command.target());
-          registers.add(command.source());
+  /** @return Whether the straight-line code from {@code from} overwrites {@code register} before reading it or leaving */
+  private static boolean overwritten(final Asm asm, final Register register, final int from) {
+    final InstructionBuffer instructions = asm.instructions;
 
-          yield
-            Register.HI.name + " = (" + command.source().name + " & 0xffff_ffffL) % (" + command.target().name + " & 0xffff_ffffL);\n" +
-            Register.LO.name + " = (" + command.source().name + " & 0xffff_ffffL) / (" + command.target().name + " & 0xffff_ffffL);";
-        }
+    for(int i = from; i < instructions.size(); i++) {
+      if(i != from && instructions.address(i) != instructions.address(i - 1) + 4 || isTransfer(asm.op(i)) || reads(asm.op(i), asm.operands[i], register)) {
+        return false;
+      }
 
-        case ADD, ADDU -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = " + command.source().name + " + " + command.target().name + ';';
-        }
+      if(written(asm.op(i), asm.operands[i]) == register) {
+        return true;
+      }
+    }
 
-        case SUB, SUBU -> {
-          registers.add(command.dest());
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.dest().name + " = " + command.source().name + " - " + command.target().name + ';';
-        }
+    return false;
+  }
 
-        // Both BLTZ and BGEZ
-        case BCONDZ -> {
-          branchType = BranchType.CONDITIONAL;
-          registers.add(command.source());
+  /** Branches, jumps, calls and anything else after which any register might be read */
+  private static boolean isTransfer(final Ops op) {
+    return switch(op) {
+      case BCONDZ, BEQ, BNE, BLEZ, BGTZ, J, JAL, JR, JALR, SYSCALL, BREAK, COP0, UNKNOWN -> true;
+      default -> false;
+    };
+  }
 
-          final long jump = command.address + 4 + signed(command.immediate16(), 16) * 4;
-          labels.add(jump);
+  /** @return Whether the instruction might read {@code register} */
+  private static boolean reads(final Ops op, final long operands, final Register register) {
+    return switch(op) {
+      case NOOP, LUI -> false;
+      case SLL, SRL, SRA -> Operands.target(operands) == register;
+      case MFHI -> register == Register.HI;
+      case MFLO -> register == Register.LO;
+      case ADDI, ADDIU, SLTI, SLTIU, ANDI, ORI, XORI, LB, LH, LW, LBU, LHU, LWC2 -> Operands.source(operands) == register;
+      // MTC2 and CTC2 read rt, the rest only read the GTE
+      case COP2 -> (Operands.source(operands).ordinal() == 0b0100 || Operands.source(operands).ordinal() == 0b0110) && Operands.target(operands) == register;
+      default -> Operands.source(operands) == register || Operands.target(operands) == register;
+    };
+  }
 
-          final String comp = (command.command & (1 << 16)) == 0 ? " < " : " >= ";
+  /** @return The register the instruction overwrites, or null */
+  private static Register written(final Ops op, final long operands) {
+    return switch(op) {
+      case SLL, SRL, SRA, SLLV, SRLV, SRAV, MFHI, MFLO, ADD, ADDU, SUB, SUBU, AND, OR, XOR, NOR, SLT, SLTU -> Operands.dest(operands);
+      case ADDI, ADDIU, SLTI, SLTIU, ANDI, ORI, XORI, LUI, LB, LH, LW, LBU, LHU -> Operands.target(operands);
+      // MFC2 and CFC2
+      case COP2 -> Operands.source(operands).ordinal() == 0b0000 || Operands.source(operands).ordinal() == 0b0010 ? Operands.target(operands) : null;
+      default -> null;
+    };
+  }
 
-          yield
-            "if((int)" + command.source().name + comp + Register.ZERO.name + ") {\n" +
-            "  LAB_" + Long.toHexString(jump) + ";\n" +
-            '}';
-        }
+  /** The BEQ or BNE at {@code i}, testing the operands of the set-less-than before it instead of its result */
+  private static Statement fusedBranch(final CodeEmitter code, final Asm asm, final int i, final Set<Register> registers, final LineSlots lines) {
+    final long operands = asm.operands[i - 1];
+    final Register source = Operands.source(operands);
+    final Register target = Operands.target(operands);
+    // BNE result, zero is taken when the set-less-than was true
+    final String operator = asm.op(i) == Ops.BNE ? " < " : " >= ";
+    registers.add(source);
+
+    switch(asm.op(i - 1)) {
+      case SLT -> {
+        registers.add(target);
+        code.text("(int)").reg(source).text(operator).text("(int)").reg(target);
+      }
 
-        case J -> {
-          branchType = BranchType.ALWAYS;
+      case SLTU -> {
+        registers.add(target);
+        code.text("Integer.compareUnsigned((int)").reg(source).text(", (int)").reg(target).text(')').text(operator).text("0");
+      }
 
-          final long jump = (command.address & 0xf000_0000L) + command.immediate26() * 4;
-          labels.add(jump);
+      case SLTI -> code.text("(int)").reg(source).text(operator).signedHex(Operands.immediate(operands));
+      case SLTIU -> code.text("Integer.compareUnsigned((int)").reg(source).text(", ").hex(Operands.immediate(operands)).text(')').text(operator).text("0");
+    }
 
-          yield "LAB_" + Long.toHexString(jump) + ';';
-        }
+    return branch(code, asm.operands[i], lines);
+  }
 
-        case JAL -> {
-          branchType = BranchType.ALWAYS;
+  /**
+   * Renders a slot, with {@code delay} moved into {@code branch} if it's in its delay slot
+   *
+   * @param folded The slot's instruction is written as part of the next one, so no line is written for it
+   */
+  private void finish(final LineSlots lines, final long address, final Statement branch, final Statement delay, final boolean folded) {
+    lines.put(address, this.render(delay != null ? branch.withDelaySlot(delay) : branch));
 
-          final long jump = (command.address & 0xf000_0000L) + command.immediate26() * 4;
+    if(folded) {
+      lines.fold(address);
+    }
 
-          yield Register.V0.name + " = " + "FUN_" + Long.toHexString(jump) + "();";
-        }
+    if(this.options.controlFlow()) {
+      this.recordFlow(lines, address, branch, delay != null ? this.render(delay) : "");
+    }
+  }
 
-        case BEQ -> {
-          branchType = BranchType.CONDITIONAL;
-          registers.add(command.target());
-          registers.add(command.source());
+  /** Tells {@code lines} how control leaves a slot, so its jump can become part of a loop or if */
+  private void recordFlow(final LineSlots lines, final long address, final Statement branch, final String delay) {
+    if(branch instanceof Statement.Goto jump) {
+      lines.jump(address, delay, jump.target);
+    } else if(branch instanceof Statement.Return) {
+      lines.exit(address);
+    } else if(branch instanceof Statement.If conditional && conditional.body instanceof Statement.Goto jump) {
+      if(delay.isEmpty()) {
+        lines.branch(address, "", conditional.condition, jump.target);
+        return;
+      }
 
-          final long jump = command.address + 4 + signed(command.immediate16(), 16) * 4;
-          labels.add(jump);
+      // The condition is read before the delay slot runs, which might change it
+      this.buffer.setLength(0);
+      this.code.text("final boolean taken").digits(address, 0).text(" = ").text(conditional.condition).stmt().nl().lines(delay);
+      lines.branch(address, this.buffer.toString(), "taken" + Long.toHexString(address), jump.target);
+    }
+  }
 
-          yield
-            "if(" + command.source().name + " == " + command.target().name + ") {\n" +
-            "  LAB_" + Long.toHexString(jump) + ";\n" +
-            '}';
-        }
+  private String render(final Statement statement) {
+    // Straight-line code is already text
+    if(statement instanceof Statement.Code code) {
+      return code.text;
+    }
 
-        case BNE -> {
-          branchType = BranchType.CONDITIONAL;
-          registers.add(command.target());
-          registers.add(command.source());
+    this.buffer.setLength(0);
+    statement.render(this.code);
+    return this.buffer.toString();
+  }
 
-          final long jump = command.address + 4 + signed(command.immediate16(), 16) * 4;
-          labels.add(jump);
+  /**
+   * @param code Must be empty. Straight-line code and branch conditions are written here.
+   * @return The instruction's statement
+   */
+  private static Statement translateInstruction(final CodeEmitter code, final long address, final long command, final Ops op, final long operands, final Set<Register> registers, final LineSlots lines, final Set<String> extraVars) {
+    final Register dest = Operands.dest(operands);
+    final Register target = Operands.target(operands);
+    final Register source = Operands.source(operands);
+
+    switch(op) {
+      case SLL -> {
+        registers.add(dest);
+        registers.add(target);
+        code.reg(dest).text(" = ").reg(target).text(" << ").dec(Operands.immediate(operands)).stmt();
+      }
 
-          yield
-            "if(" + command.source().name + " != " + command.target().name + ") {\n" +
-            "  LAB_" + Long.toHexString(jump) + ";\n" +
-            '}';
-        }
+      case SRL -> {
+        registers.add(dest);
+        registers.add(target);
+        code.reg(dest).text(" = ").reg(target).text(" >>> ").dec(Operands.immediate(operands)).stmt();
+      }
 
-        case BLEZ -> {
-          branchType = BranchType.CONDITIONAL;
-          registers.add(command.source());
+      case SRA -> {
+        registers.add(dest);
+        registers.add(target);
+        code.reg(dest).text(" = (int)").reg(target).text(" >> ").dec(Operands.immediate(operands)).stmt();
+      }
 
-          final long jump = command.address + 4 + signed(command.immediate16(), 16) * 4;
-          labels.add(jump);
+      case SLLV -> binary(code, dest, target, " << ", source, registers);
+      case SRLV -> binary(code, dest, target, " >>> ", source, registers);
 
-          yield
-            "if((int)" + command.source().name + " <= " + Register.ZERO.name + ") {\n" +
-            "  LAB_" + Long.toHexString(jump) + ";\n" +
-            '}';
-        }
+      case SRAV -> {
+        registers.add(dest);
+        registers.add(target);
+        registers.add(source);
+        code.reg(dest).text(" = (int)").reg(target).text(" >> ").reg(source).stmt();
+      }
 
-        case BGTZ -> {
-          branchType = BranchType.CONDITIONAL;
-          registers.add(command.source());
+      case AND -> binary(code, dest, source, " & ", target, registers);
+      case OR -> binary(code, dest, source, " | ", target, registers);
+      case XOR -> binary(code, dest, source, " ^ ", target, registers);
 
-          final long jump = command.address + 4 + signed(command.immediate16(), 16) * 4;
-          labels.add(jump);
+      case NOR -> {
+        registers.add(dest);
+        registers.add(target);
+        registers.add(source);
+        code.reg(dest).text(" = ~(").reg(source).text(" | ").reg(target).text(')').stmt();
+      }
 
-          yield
-            "if((int)" + command.source().name + " > " + Register.ZERO.name + ") {\n" +
-            "  LAB_" + Long.toHexString(jump) + ";\n" +
-            '}';
-        }
+      case SLT -> {
+        registers.add(dest);
+        registers.add(target);
+        registers.add(source);
+        code.reg(dest).text(" = (int)").reg(source).text(" < (int)").reg(target).stmt();
+      }
 
-        case ADDIU -> {
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = " + command.source().name + " + " + signedHex(command.immediate16(), 16) + "L;";
-        }
+      case SLTU -> binary(code, dest, source, " < ", target, registers);
 
-        case SLTI -> {
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = (int)" + command.source().name + " < " + signedHex(command.immediate16(), 16) + "L;";
-        }
+      case JR -> {
+        registers.add(source);
 
-        case SLTIU -> {
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = " + command.source().name + " < 0x" + Long.toHexString(command.immediate16()) + "L;";
-        }
+        return jump(op, operands);
+      }
 
-        case ANDI -> {
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = " + command.source().name + " & 0x" + Long.toHexString(command.immediate16()) + "L;";
-        }
+      case JALR -> {
+        registers.add(dest);
+        registers.add(source);
 
-        case ORI -> {
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = " + command.source().name + " | 0x" + Long.toHexString(command.immediate16()) + "L;";
-        }
+        return jump(op, operands);
+      }
 
-        case XORI -> {
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = " + command.source().name + " ^ 0x" + Long.toHexString(command.immediate16()) + "L;";
-        }
+      case BREAK -> code.text("throw new RuntimeException(\"break\")").stmt();
 
-        case LUI -> {
-          registers.add(command.target());
-          yield command.target().name + " = 0x" + Long.toHexString(command.immediate16()) + "_0000L;";
-        }
+      case MFHI -> {
+        registers.add(Register.HI);
+        registers.add(dest);
 
-        case LB -> {
-          if(command.source() == Register.SP) {
-            registers.add(command.target());
-            final String var = "sp" + Long.toHexString(command.immediate16());
-            extraVars.add(var);
-            yield command.target().name + " = (byte)" + var + ';';
-          }
+        code.reg(dest).text(" = ").reg(Register.HI).stmt();
+      }
 
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = MEMORY.ref(1, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).getSigned();";
-        }
+      case MFLO -> {
+        registers.add(Register.LO);
+        registers.add(dest);
 
-        case LH -> {
-          if(command.source() == Register.SP) {
-            registers.add(command.target());
-            final String var = "sp" + Long.toHexString(command.immediate16());
-            extraVars.add(var);
-            yield command.target().name + " = (short)" + var + ';';
-          }
+        code.reg(dest).text(" = ").reg(Register.LO).stmt();
+      }
 
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = MEMORY.ref(2, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).getSigned();";
-        }
+      case MULT -> {
+        registers.add(Register.HI);
+        registers.add(Register.LO);
+        registers.add(target);
+        registers.add(source);
 
-        case LW -> {
-          if(command.source() == Register.SP) {
-            registers.add(command.target());
-            final String var = "sp" + Long.toHexString(command.immediate16());
-            extraVars.add(var);
-            yield command.target().name + " = " + var + ';';
-          }
+        code.reg(Register.HI).text(" = ((long)(int)").reg(source).text(" * (int)").reg(target).text(") >>> 32").stmt().nl();
+        code.reg(Register.LO).text(" = ((long)(int)").reg(source).text(" * (int)").reg(target).text(") & 0xffff_ffffL").stmt();
+      }
 
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = MEMORY.ref(4, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).get();";
-        }
+      case MULTU -> {
+        registers.add(Register.HI);
+        registers.add(Register.LO);
+        registers.add(target);
+        registers.add(source);
 
-        case LBU -> {
-          if(command.source() == Register.SP) {
-            registers.add(command.target());
-            final String var = "sp" + Long.toHexString(command.immediate16());
-            extraVars.add(var);
-            yield command.target().name + " = " + var + ';';
-          }
+        code.reg(Register.HI).text(" = ((").reg(source).text(" & 0xffff_ffffL) * (").reg(target).text(" & 0xffff_ffffL)) >>> 32").stmt().nl();
+        code.reg(Register.LO).text(" = ((").reg(source).text(" & 0xffff_ffffL) * (").reg(target).text(" & 0xffff_ffffL)) & 0xffff_ffffL").stmt();
+      }
 
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = MEMORY.ref(1, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).get();";
-        }
+      case DIV -> {
+        registers.add(Register.HI);
+        registers.add(Register.LO);
+        registers.add(target);
+        registers.add(source);
 
-        case LHU -> {
-          if(command.source() == Register.SP) {
-            registers.add(command.target());
-            final String var = "sp" + Long.toHexString(command.immediate16());
-            extraVars.add(var);
-            yield command.target().name + " = " + var + ';';
-          }
+        code.reg(Register.HI).text(" = (int)").reg(source).text(" % (int)").reg(target).stmt().nl();
+        code.reg(Register.LO).text(" = (int)").reg(source).text(" / (int)").reg(target).stmt();
+      }
 
-          registers.add(command.target());
-          registers.add(command.source());
-          yield command.target().name + " = MEMORY.ref(2, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).get();";
-        }
+      case DIVU -> {
+        registers.add(Register.HI);
+        registers.add(Register.LO);
+        registers.add(target);
+        registers.add(source);
 
-        case SB -> {
-          if(command.source() == Register.SP) {
-            registers.add(command.target());
-            final String var = "sp" + Long.toHexString(command.immediate16());
-            extraVars.add(var);
-            yield var + " = " + command.target().name + ';';
-          }
+        code.reg(Register.HI).text(" = (").reg(source).text(" & 0xffff_ffffL) % (").reg(target).text(" & 0xffff_ffffL)").stmt().nl();
+        code.reg(Register.LO).text(" = (").reg(source).text(" & 0xffff_ffffL) / (").reg(target).text(" & 0xffff_ffffL)").stmt();
+      }
 
-          registers.add(command.target());
-          registers.add(command.source());
-          yield "MEMORY.ref(1, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).setu(" + command.target().name + ");";
-        }
+      case ADD, ADDU -> binary(code, dest, source, " + ", target, registers);
+      case SUB, SUBU -> binary(code, dest, source, " - ", target, registers);
 
-        case SH -> {
-          if(command.source() == Register.SP) {
-            registers.add(command.target());
-            final String var = "sp" + Long.toHexString(command.immediate16());
-            extraVars.add(var);
-            yield var + " = " + command.target().name + ';';
-          }
+      // Both BLTZ and BGEZ
+      case BCONDZ -> {
+        registers.add(source);
+        code.text("(int)").reg(source).text((command & (1 << 16)) == 0 ? " < " : " >= ").reg(Register.ZERO);
+        return branch(code, operands, lines);
+      }
 
-          registers.add(command.target());
-          registers.add(command.source());
-          yield "MEMORY.ref(2, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).setu(" + command.target().name + ");";
-        }
+      case J -> {
+        lines.label(Operands.jump(operands));
 
-        case SW -> {
-          if(command.source() == Register.SP) {
-            registers.add(command.target());
-            final String var = "sp" + Long.toHexString(command.immediate16());
-            extraVars.add(var);
-            yield var + " = " + command.target().name + ';';
-          }
+        return jump(op, operands);
+      }
 
-          registers.add(command.target());
-          registers.add(command.source());
-          yield "MEMORY.ref(4, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).setu(" + command.target().name + ");";
-        }
+      case JAL -> {
+        return jump(op, operands);
+      }
 
-        case LWC2 -> {
-          registers.add(command.target());
-          registers.add(command.source());
-          yield "CPU.MTC2(MEMORY.ref(4, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).get(), " + command.target().ordinal() + ");";
-        }
+      case BEQ -> {
+        registers.add(target);
+        registers.add(source);
+        code.reg(source).text(" == ").reg(target);
+        return branch(code, operands, lines);
+      }
 
-        case SWC2 -> {
-          registers.add(command.target());
-          registers.add(command.source());
-          yield "MEMORY.ref(4, " + command.source().name + ").offset(" + signedHex(command.immediate16(), 16) + "L).setu(CPU.MFC2(" + command.target().ordinal() + "));";
-        }
+      case BNE -> {
+        registers.add(target);
+        registers.add(source);
+        code.reg(source).text(" != ").reg(target);
+        return branch(code, operands, lines);
+      }
 
-        case COP2 -> {
-          registers.add(command.target());
-
-          yield switch((int)(command.immediate26() >>> 21) & 0x1f) {
-            // MFC
-            case 0b0000 -> command.target().name + " = CPU.MFC2(" + command.dest().ordinal() + ");";
-            // CFC
-            case 0b0010 -> command.target().name + " = CPU.CFC2(" + command.dest().ordinal() + ");";
-            // MTC
-            case 0b0100 -> "CPU.MTC2(" + command.target().name + ", " + command.dest().ordinal() + ");";
-            // CTC
-            case 0b0110 -> "CPU.CTC2(" + command.target().name + ", " + command.dest().ordinal() + ");";
-            // COP2
-            default -> "CPU.COP2(0x" + Long.toHexString(command.immediate26() & 0x1ff_ffffL) + "L);";
-          };
-        }
+      case BLEZ -> {
+        registers.add(source);
+        code.text("(int)").reg(source).text(" <= ").reg(Register.ZERO);
+        return branch(code, operands, lines);
+      }
 
-        case NOOP -> "";
+      case BGTZ -> {
+        registers.add(source);
+        code.text("(int)").reg(source).text(" > ").reg(Register.ZERO);
+        return branch(code, operands, lines);
+      }
 
-        default -> "//TODO Unsupported operation " + command.op + " at address " + Long.toHexString(command.address);
-      };
+      case ADDIU -> {
+        registers.add(target);
+        registers.add(source);
+        code.reg(target).text(" = ").reg(source).text(" + ").signedHex(Operands.immediate(operands)).text("L").stmt();
+      }
 
-      // Add output line (deals with branch delay by reordering and/or duplicating lines)
-      if(lastBranchType == BranchType.NONE) {
-        lines.put(command.address, line);
-      } else if(lastBranchType == BranchType.ALWAYS) {
-        lines.merge(command.address - 4, line, (current, added) -> added + '\n' + current);
-      } else if(lastBranchType == BranchType.CONDITIONAL) {
-        lines.merge(command.address - 4, line, (current, added) -> {
-          final String[] split = current.split("\n");
-          return split[0] + "\n  " + added + '\n' + split[1] + '\n' + split[2] + '\n' + added;
-        });
+      case SLTI -> {
+        registers.add(target);
+        registers.add(source);
+        code.reg(target).text(" = (int)").reg(source).text(" < ").signedHex(Operands.immediate(operands)).text("L").stmt();
       }
 
-      lastBranchType = branchType;
-    }
+      case SLTIU -> immediate(code, target, source, " < ", operands, registers);
+      case ANDI -> immediate(code, target, source, " & ", operands, registers);
+      case ORI -> immediate(code, target, source, " | ", operands, registers);
+      case XORI -> immediate(code, target, source, " ^ ", operands, registers);
 
-    // Prepend jump destinations
-    for(final long address : labels) {
-      lines.merge(address, "\n//LAB_" + Long.toHexString(address), (current, added) -> added + '\n' + current);
-    }
+      case LUI -> {
+        registers.add(target);
+        code.reg(target).text(" = ").hex(Operands.immediate(operands)).text("_0000L").stmt();
+      }
 
-    final List<String> output = new ArrayList<>();
+      case LB -> load(code, target, source, 1, "(byte)", "getSigned", operands, registers, extraVars);
+      case LH -> load(code, target, source, 2, "(short)", "getSigned", operands, registers, extraVars);
+      case LW -> load(code, target, source, 4, "", "get", operands, registers, extraVars);
+      case LBU -> load(code, target, source, 1, "", "get", operands, registers, extraVars);
+      case LHU -> load(code, target, source, 2, "", "get", operands, registers, extraVars);
 
-    // Add register variable definitions to output
-    for(final Register register : registers) {
-      if(register != Register.ZERO) {
-        output.add("long " + register.name + ';');
+      case SB -> store(code, target, source, 1, operands, registers, extraVars);
+      case SH -> store(code, target, source, 2, operands, registers, extraVars);
+      case SW -> store(code, target, source, 4, operands, registers, extraVars);
+
+      case LWC2 -> {
+        registers.add(target);
+        registers.add(source);
+        code.text("CPU.MTC2(MEMORY.ref(4, ").reg(source).text(").offset(").signedHex(Operands.immediate(operands)).text("L).get(), ").dec(target.ordinal()).text(')').stmt();
       }
-    }
 
-    // Add extra variable definitions to output
-    for(final String var : extraVars) {
-      output.add("long " + var + ';');
+      case SWC2 -> {
+        registers.add(target);
+        registers.add(source);
+        code.text("MEMORY.ref(4, ").reg(source).text(").offset(").signedHex(Operands.immediate(operands)).text("L).setu(CPU.MFC2(").dec(target.ordinal()).text("))").stmt();
+      }
+
+      case COP2 -> {
+        registers.add(target);
+
+        switch(source.ordinal()) {
+          // MFC
+          case 0b0000 -> code.reg(target).text(" = CPU.MFC2(").dec(dest.ordinal()).text(')').stmt();
+          // CFC
+          case 0b0010 -> code.reg(target).text(" = CPU.CFC2(").dec(dest.ordinal()).text(')').stmt();
+          // MTC
+          case 0b0100 -> code.text("CPU.MTC2(").reg(target).text(", ").dec(dest.ordinal()).text(')').stmt();
+          // CTC
+          case 0b0110 -> code.text("CPU.CTC2(").reg(target).text(", ").dec(dest.ordinal()).text(')').stmt();
+          // COP2
+          default -> code.text("CPU.COP2(").hex(Operands.immediate(operands)).text("L)").stmt();
+        }
+      }
+
+      case NOOP -> { }
+
+      default -> code.text("//TODO Unsupported operation ").text(op.name()).text(" at address ").text(Long.toHexString(address));
     }
 
-    // Add code to output
-    output.addAll(lines.values());
+    return new Statement.Code(code.buffer().toString());
+  }
 
-    return output;
+  /** The statement for J, JAL, JR or JALR, which only depends on the operands so it doesn't need memoising */
+  private static Statement jump(final Ops op, final long operands) {
+    return switch(op) {
+      case J -> new Statement.Goto(Operands.jump(operands));
+      case JAL -> Statement.Call.function(Register.V0, Operands.jump(operands));
+      default -> Operands.source(operands) != Register.RA ? Statement.Call.register(Operands.source(operands)) : Statement.Return.INSTANCE;
+    };
+  }
+
+  /** {@code dest = left <operator> right;} */
+  private static void binary(final CodeEmitter code, final Register dest, final Register left, final String operator, final Register right, final Set<Register> registers) {
+    registers.add(dest);
+    registers.add(left);
+    registers.add(right);
+    code.reg(dest).text(" = ").reg(left).text(operator).reg(right).stmt();
+  }
+
+  /** {@code target = source <operator> immediate;} for the zero-extended immediate ops */
+  private static void immediate(final CodeEmitter code, final Register target, final Register source, final String operator, final long operands, final Set<Register> registers) {
+    registers.add(target);
+    registers.add(source);
+    code.reg(target).text(" = ").reg(source).text(operator).hex(Operands.immediate(operands)).text("L").stmt();
   }
 
-  private static long signed(final long val, final int bits) {
-    if((val & 1L << bits - 1) != 0) {
-      return val | -(1L << bits);
+  /** A conditional branch, the caller has written the condition */
+  private static Statement branch(final CodeEmitter code, final long operands, final LineSlots lines) {
+    final long jump = Operands.jump(operands);
+    lines.label(jump);
+    return new Statement.If(code.buffer().toString(), new Statement.Goto(jump));
+  }
+
+  /** Loads through SP become reads of a local for each stack slot */
+  private static void load(final CodeEmitter code, final Register target, final Register source, final int size, final String cast, final String getter, final long operands, final Set<Register> registers, final Set<String> extraVars) {
+    registers.add(target);
+
+    if(source == Register.SP) {
+      final String var = stackVar(operands);
+      extraVars.add(var);
+      code.reg(target).text(" = ").text(cast).text(var).stmt();
+      return;
     }
 
-    return val;
+    registers.add(source);
+    code.reg(target).text(" = MEMORY.ref(").dec(size).text(", ").reg(source).text(").offset(").signedHex(Operands.immediate(operands)).text("L).").text(getter).text("()").stmt();
   }
 
-  private static String signedHex(final long val, final int bits) {
-    final long value = signed(val, bits);
+  private static void store(final CodeEmitter code, final Register target, final Register source, final int size, final long operands, final Set<Register> registers, final Set<String> extraVars) {
+    registers.add(target);
 
-    if(value < 0) {
-      return "-0x" + Long.toHexString(-value);
+    if(source == Register.SP) {
+      final String var = stackVar(operands);
+      extraVars.add(var);
+      code.text(var).text(" = ").reg(target).stmt();
+      return;
     }
 
-    return "0x" + Long.toHexString(value);
+    registers.add(source);
+    code.text("MEMORY.ref(").dec(size).text(", ").reg(source).text(").offset(").signedHex(Operands.immediate(operands)).text("L).setu(").reg(target).text(')').stmt();
+  }
+
+  private static String stackVar(final long operands) {
+    return "sp" + Integer.toHexString(Operands.immediate(operands) & 0xffff);
   }
 }
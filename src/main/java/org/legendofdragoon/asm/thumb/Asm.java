@@ -1,39 +1,125 @@
 package org.legendofdragoon.asm.thumb;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import org.legendofdragoon.asm.HexDumpScanner;
+import org.legendofdragoon.asm.InstructionBuffer;
+import org.legendofdragoon.asm.ParallelParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
 
 public final class Asm {
-  private static final Pattern regex = Pattern.compile("\\s+?(?:\\w*::)?([\\da-f]{8})\\s+((?:[\\da-f]{2}\\s+){1,4}).*", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
-  private static final Pattern spaces = Pattern.compile("\\s+");
+  private static final HexDumpScanner scanner = new HexDumpScanner(1, 4);
+  private static final ParallelParser parallelParser = new ParallelParser(scanner, (address, command) -> Ops.get(command).ordinal());
 
   public static Asm parse(final String asm) {
-    final List<Command> commands = new ArrayList<>();
+    final InstructionBuffer instructions = new InstructionBuffer();
+    scanner.scan(ByteBuffer.wrap(asm.getBytes(StandardCharsets.ISO_8859_1)), (address, command) -> instructions.add(address, command, Ops.get(command).ordinal()));
+    return new Asm(instructions);
+  }
 
-    final Matcher matcher = regex.matcher(asm);
+  public static Asm parse(final ReadableByteChannel channel) throws IOException {
+    final InstructionBuffer instructions = new InstructionBuffer();
+    scanner.scan(channel, (address, command) -> instructions.add(address, command, Ops.get(command).ordinal()));
+    return new Asm(instructions);
+  }
 
-    while(matcher.find()) {
-      final String[] parts = spaces.split(matcher.group(2));
-      final StringBuilder commandStr = new StringBuilder();
-      for(int i = parts.length - 1; i >= 0; i--) {
-        commandStr.append(parts[i]);
-      }
+  /** Parses a hex dump in chunks of about {@code chunkSize} bytes, split at line boundaries, on {@code parallelism} threads */
+  public static Asm parseParallel(final ByteBuffer data, final int parallelism, final int chunkSize) {
+    return new Asm(parallelParser.parse(data, parallelism, chunkSize));
+  }
+
+  /**
+   * Decodes little-endian Thumb halfwords from {@code data}, where the first byte of the buffer is at
+   * {@code baseAddress}. Only halfwords in [{@code start}, {@code end}) are decoded. THUMB19 prefix/suffix pairs are
+   * combined into one 32-bit command, as they are in hex dumps.
+   */
+  public static Asm parse(final ByteBuffer data, final int baseAddress, final int start, final int end) {
+    data.order(ByteOrder.LITTLE_ENDIAN);
+
+    final int first = Math.max(start, baseAddress) + 1 & ~0x1;
+    final int last = Math.min(end, baseAddress + data.limit()) & ~0x1;
+
+    final InstructionBuffer instructions = new InstructionBuffer(Math.max(0, (last - first) / 2));
 
-      final int address = Integer.parseUnsignedInt(matcher.group(1), 16);
-      final int command = Integer.parseUnsignedInt(commandStr.toString(), 16);
+    for(int address = first; address < last; address += 2) {
+      int command = data.getShort(address - baseAddress) & 0xffff;
 
-      commands.add(new Command(address, command));
+      if(isLongBranchPrefix(command) && address + 2 < last) {
+        final int suffix = data.getShort(address + 2 - baseAddress) & 0xffff;
+
+        if(isLongBranchSuffix(suffix)) {
+          command |= suffix << 16;
+          instructions.add(address, command, Ops.get(command).ordinal());
+          address += 2;
+          continue;
+        }
+      }
+
+      instructions.add(address, command, Ops.get(command).ordinal());
     }
 
-    return new Asm(commands);
+    return new Asm(instructions);
+  }
+
+  /** THUMB19 first halfword, upper part of the offset */
+  public static boolean isLongBranchPrefix(final int halfword) {
+    return (halfword & 0xf800) == 0xf000;
+  }
+
+  /** THUMB19 second halfword, BL (0xf800) or BLX (0xe800) */
+  public static boolean isLongBranchSuffix(final int halfword) {
+    return (halfword & 0xe800) == 0xe800;
   }
 
+  /** Parses a hex dump line by line, handing each command to {@code consumer} as soon as it is decoded */
+  public static void parse(final ReadableByteChannel channel, final Consumer<Command> consumer) throws IOException {
+    scanner.scan(channel, (address, command) -> consumer.accept(new Command(address, command)));
+  }
+
+  public final InstructionBuffer instructions;
+  /** {@link Command} view over {@link #instructions}, commands are created on access */
   public final List<Command> commands;
+  /** {@link Operands} of each instruction, decoded once up front */
+  public final long[] operands;
+
+  private Asm(final InstructionBuffer instructions) {
+    this.instructions = instructions;
+    this.commands = new CommandList(instructions);
+    this.operands = new long[instructions.size()];
+
+    for(int i = 0; i < instructions.size(); i++) {
+      this.operands[i] = Operands.decode(instructions.address(i), instructions.word(i), Ops.VALUES[instructions.op(i)]);
+    }
+  }
+
+  public Ops op(final int index) {
+    return Ops.VALUES[this.instructions.op(index)];
+  }
+
+  private static final class CommandList extends AbstractList<Command> implements RandomAccess {
+    private final InstructionBuffer instructions;
+
+    private CommandList(final InstructionBuffer instructions) {
+      this.instructions = instructions;
+    }
 
-  private Asm(final List<Command> commands) {
-    this.commands = Collections.unmodifiableList(commands);
+    @Override
+    public Command get(final int index) {
+      Objects.checkIndex(index, this.instructions.size());
+      return new Command(this.instructions.address(index), this.instructions.word(index), Ops.VALUES[this.instructions.op(index)]);
+    }
+
+    @Override
+    public int size() {
+      return this.instructions.size();
+    }
   }
 }
@@ -0,0 +1,118 @@
+package org.legendofdragoon.asm.thumb;
+
+/**
+ * Operand fields of a decoded Thumb instruction, packed into a long so a whole program's worth can sit in one array
+ * next to the {@link org.legendofdragoon.asm.InstructionBuffer}. Fields are decoded once per instruction, including
+ * the THUMB5 high register bits, scaled offsets and PC-relative addresses, and read back with the static accessors.
+ *
+ * <ul>
+ *   <li>{@link #rd} - destination register, or the register stored by a store</li>
+ *   <li>{@link #rs} - first source register, or the base register of a memory access</li>
+ *   <li>{@link #rn} - second source register, or the offset register of a memory access</li>
+ *   <li>{@link #condition} - THUMB16 condition code</li>
+ *   <li>{@link #value} - immediate, scaled offset, register list, literal address or branch target</li>
+ * </ul>
+ */
+public final class Operands {
+  private Operands() { }
+
+  public static long decode(final int address, final int command, final Ops op) {
+    return switch(op) {
+      // THUMB1, value is the shift amount
+      case LSL, LSR, ASR -> pack(command & 0x7, command >>> 3 & 0x7, 0, 0, command >>> 6 & 0x1f);
+
+      // THUMB2, THUMB7, THUMB8
+      case ADD_REG, SUB_REG, STR_REG, STRB_REG, LDR_REG, LDRB_REG, STRH_REG, LDSB_REG, LDRH_REG, LDSH_REG -> pack(command & 0x7, command >>> 3 & 0x7, command >>> 6 & 0x7, 0, 0);
+
+      // THUMB2
+      case ADD_IMM, SUB_IMM -> pack(command & 0x7, command >>> 3 & 0x7, 0, 0, command >>> 6 & 0x7);
+
+      // THUMB3
+      case MOV_IMM, CMP_IMM, ADD_IMM_U, SUB_IMM_U -> pack(command >>> 8 & 0x7, 0, 0, 0, command & 0xff);
+
+      // THUMB4
+      case AND_ALU, EOR_ALU, LSL_ALU, LSR_ALU, ASR_ALU, ADC_ALU, SBC_ALU, ROR_ALU, TST_ALU, NEG_ALU, CMP_ALU, CMN_ALU, ORR_ALU, MUL_ALU, BIC_ALU, MVN_ALU -> pack(command & 0x7, command >>> 3 & 0x7, 0, 0, 0);
+
+      // THUMB5, the high bits of both registers are split off from the low three
+      case ADD_HI, CMP_HI, MOV_HI, BX -> pack(command & 0x7 | (command >>> 7 & 0x1) << 3, command >>> 3 & 0xf, 0, 0, 0);
+
+      // THUMB6, value is the literal address
+      case LDRPC -> pack(command >>> 8 & 0x7, Register.R15_PC.ordinal(), 0, 0, address + 0x4 + (command & 0xff) * 0x4 & ~0x2);
+
+      // THUMB9
+      case STR_IMM, LDR_IMM -> pack(command & 0x7, command >>> 3 & 0x7, 0, 0, (command >>> 6 & 0x1f) * 0x4);
+      case STRB_IMM, LDRB_IMM -> pack(command & 0x7, command >>> 3 & 0x7, 0, 0, command >>> 6 & 0x1f);
+
+      // THUMB10
+      case STRH_IMM, LDRH_IMM -> pack(command & 0x7, command >>> 3 & 0x7, 0, 0, (command >>> 6 & 0x1f) * 0x2);
+
+      // THUMB11
+      case STR_SP, LDR_SP -> pack(command >>> 8 & 0x7, Register.R13_SP.ordinal(), 0, 0, (command & 0xff) * 0x4);
+
+      // THUMB12, value is the offset from SP, or the resolved address when relative to PC
+      case ADDRESS -> {
+        final int offset = (command & 0xff) * 0x4;
+
+        if((command >>> 11 & 0x1) != 0) {
+          yield pack(command >>> 8 & 0x7, Register.R13_SP.ordinal(), 0, 0, offset);
+        }
+
+        yield pack(command >>> 8 & 0x7, Register.R15_PC.ordinal(), 0, 0, (address + 0x4 & ~0x2) + offset);
+      }
+
+      // THUMB13, value is signed
+      case ADD_SP -> {
+        final int offset = (command & 0x7f) * 0x4;
+        yield pack(Register.R13_SP.ordinal(), Register.R13_SP.ordinal(), 0, 0, (command >>> 7 & 0x1) != 0 ? -offset : offset);
+      }
+
+      // THUMB14, the register list includes LR for PUSH and PC for POP
+      case PUSH -> pack(0, Register.R13_SP.ordinal(), 0, 0, command & 0xff | (command >>> 8 & 0x1) << Register.R14_LR.ordinal());
+      case POP -> pack(0, Register.R13_SP.ordinal(), 0, 0, command & 0xff | (command >>> 8 & 0x1) << Register.R15_PC.ordinal());
+
+      // THUMB15
+      case STMIA, LDMIA -> pack(0, command >>> 8 & 0x7, 0, 0, command & 0xff);
+
+      // THUMB16
+      case BEQ, BNE, BCS, BCC, BMI, BPL, BVS, BVC, BHI, BLS, BGE, BLT, BGT, BLE -> pack(0, 0, 0, command >>> 8 & 0xf, address + 0x4 + (command << 24 >> 24) * 0x2);
+
+      // THUMB17
+      case SWI -> pack(0, 0, 0, 0, command & 0xff);
+
+      // THUMB18
+      case B -> pack(0, 0, 0, 0, address + 0x4 + (command << 21 >> 21) * 0x2);
+
+      // THUMB19, the upper part of the offset is in the first halfword
+      case BL, BLX -> {
+        final int offset = (command >>> 16 & 0x7ff) << 1 | (command & 0x7ff) << 12;
+        yield pack(0, 0, 0, 0, address + 0x4 + (offset << 9 >> 9));
+      }
+
+      default -> 0;
+    };
+  }
+
+  private static long pack(final int rd, final int rs, final int rn, final int condition, final int value) {
+    return rd | rs << 4 | rn << 8 | condition << 12 | (long)value << 32;
+  }
+
+  public static int rd(final long operands) {
+    return (int)operands & 0xf;
+  }
+
+  public static int rs(final long operands) {
+    return (int)operands >>> 4 & 0xf;
+  }
+
+  public static int rn(final long operands) {
+    return (int)operands >>> 8 & 0xf;
+  }
+
+  public static int condition(final long operands) {
+    return (int)operands >>> 12 & 0xf;
+  }
+
+  public static int value(final long operands) {
+    return (int)(operands >>> 32);
+  }
+}
@@ -147,30 +147,61 @@ public enum Ops {
   BLX,
   ;
 
+  static final Ops[] VALUES = values();
+
+  /** {@link Ops} ordinal for every 16-bit encoding, -1 if it isn't an instruction on its own */
+  private static final byte[] TABLE = new byte[0x1_0000];
+
+  static {
+    for(int command = 0; command < TABLE.length; command++) {
+      final Ops op = classify(command);
+      TABLE[command] = op != null ? (byte)op.ordinal() : -1;
+    }
+  }
+
+  /**
+   * @param command A 16-bit instruction, or a THUMB19 pair with the second halfword in the upper 16 bits
+   */
   public static Ops get(final int command) {
+    final int op = TABLE[command & 0xffff];
+
+    if(op != -1) {
+      return VALUES[op];
+    }
+
+    // THUMB19, the second halfword picks BL or BLX
+    if((command & 0xffff_0000) != 0) {
+      return VALUES[BL.ordinal() + (command >>> 28 & 0x1)];
+    }
+
+    throw new RuntimeException("Unknown command %x".formatted(command));
+  }
+
+  /** @return The op for a 16-bit encoding, or null if it isn't one on its own (including THUMB19 halves) */
+  static Ops classify(final int command) {
     // THUMB2 (must be first)
     if((command & 0xf800) == 0x1800) {
-      return values()[ADD_REG.ordinal() + (command >>> 9 & 0x3)];
+      return VALUES[ADD_REG.ordinal() + (command >>> 9 & 0x3)];
     }
 
     // THUMB1
     if((command & 0xe000) == 0x0) {
-      return values()[LSL.ordinal() + (command >>> 11 & 0x3)];
+      return VALUES[LSL.ordinal() + (command >>> 11 & 0x3)];
     }
 
     // THUMB3
     if((command & 0xe000) == 0x2000) {
-      return values()[MOV_IMM.ordinal() + (command >>> 11 & 0x3)];
+      return VALUES[MOV_IMM.ordinal() + (command >>> 11 & 0x3)];
     }
 
     // THUMB4
     if((command & 0xfc00) == 0x4000) {
-      return values()[AND_ALU.ordinal() + (command >>> 6 & 0xf)];
+      return VALUES[AND_ALU.ordinal() + (command >>> 6 & 0xf)];
     }
 
     // THUMB5
     if((command & 0xfc00) == 0x4400) {
-      return values()[ADD_HI.ordinal() + (command >>> 8 & 0x3)];
+      return VALUES[ADD_HI.ordinal() + (command >>> 8 & 0x3)];
     }
 
     // THUMB6
@@ -181,25 +212,25 @@ public enum Ops {
     // THUMB7/8
     if((command & 0xf000) == 0x5000) {
       if((command & 0x200) == 0) {
-        return values()[STR_REG.ordinal() + (command >>> 10 & 0x3)];
+        return VALUES[STR_REG.ordinal() + (command >>> 10 & 0x3)];
       }
 
-      return values()[STRH_REG.ordinal() + (command >>> 10 & 0x3)];
+      return VALUES[STRH_REG.ordinal() + (command >>> 10 & 0x3)];
     }
 
     // THUMB9
     if((command & 0xe000) == 0x6000) {
-      return values()[STR_IMM.ordinal() + (command >>> 11 & 0x3)];
+      return VALUES[STR_IMM.ordinal() + (command >>> 11 & 0x3)];
     }
 
     // THUMB10
     if((command & 0xf000) == 0x8000) {
-      return values()[STRH_IMM.ordinal() + (command >>> 11 & 0x1)];
+      return VALUES[STRH_IMM.ordinal() + (command >>> 11 & 0x1)];
     }
 
     // THUMB11
     if((command & 0xf000) == 0x9000) {
-      return values()[STR_SP.ordinal() + (command >>> 11 & 0x1)];
+      return VALUES[STR_SP.ordinal() + (command >>> 11 & 0x1)];
     }
 
     // THUMB12
@@ -219,7 +250,7 @@ public enum Ops {
 
     // THUMB15
     if((command & 0xf000) == 0xc000) {
-      return values()[STMIA.ordinal() + (command >>> 11 & 0x1)];
+      return VALUES[STMIA.ordinal() + (command >>> 11 & 0x1)];
     }
 
     // THUMB17
@@ -229,7 +260,7 @@ public enum Ops {
 
     // THUMB16
     if((command & 0xf000) == 0xd000) {
-      return values()[BEQ.ordinal() + (command >>> 8 & 0xf)];
+      return VALUES[BEQ.ordinal() + (command >>> 8 & 0xf)];
     }
 
     // THUMB18
@@ -237,11 +268,6 @@ public enum Ops {
       return B;
     }
 
-    // THUMB19
-    if((command & 0xffff_0000) != 0) {
-      return values()[BL.ordinal() + (command >>> 28 & 0x1)];
-    }
-
-    throw new RuntimeException("Unknown command %x".formatted(command));
+    return null;
   }
 }
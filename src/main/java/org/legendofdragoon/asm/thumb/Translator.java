@@ -1,638 +1,778 @@
 package org.legendofdragoon.asm.thumb;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import org.legendofdragoon.asm.CodeEmitter;
+import org.legendofdragoon.asm.FlagLiveness;
+import org.legendofdragoon.asm.InstructionBuffer;
+import org.legendofdragoon.asm.LazyFlags;
+import org.legendofdragoon.asm.LineSlots;
+import org.legendofdragoon.asm.Options;
+import org.legendofdragoon.asm.TranslationMemo;
+
+import java.io.IOException;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class Translator {
-  public List<String> translate(final Asm asm) {
-    final Map<Integer, String> lines = new LinkedHashMap<>();
-    final Set<Integer> labels = new HashSet<>();
-
-    final int firstAddress = asm.commands.get(0).address;
-    final int lastAddress = asm.commands.get(asm.commands.size() - 1).address;
-
-    for(final Command command : asm.commands) {
-      final String line = switch(command.op) {
-        // THUMB1
-        case LSL -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register src = Register.values()[command.command >> 3 & 0x7];
-          final int offset = command.command >> 6 & 0x1f;
-          yield "%1$s = CPU.lslT(%2$s, %3$d);".formatted(dest.fullName(), src.fullName(), offset);
-        }
-
-        // THUMB1
-        case LSR -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register src = Register.values()[command.command >> 3 & 0x7];
-          final int offset = command.command >> 6 & 0x1f;
-          yield "%1$s = CPU.lsrT(%2$s, %3$d);".formatted(dest.fullName(), src.fullName(), offset);
-        }
-
-        // THUMB1
-        case ASR -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register src = Register.values()[command.command >> 3 & 0x7];
-          final int offset = command.command >> 6 & 0x1f;
-          yield "%1$s = CPU.asrT(%2$s, %3$d);".formatted(dest.fullName(), src.fullName(), offset);
-        }
-
-        // THUMB2
-        case ADD_REG -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register src = Register.values()[command.command >> 3 & 0x7];
-          final Register operand = Register.values()[command.command >> 6 & 0x7];
-          yield "%s = CPU.addT(%s, %s);".formatted(dest.fullName(), src.fullName(), operand.fullName());
-        }
+  /** Bumped whenever a change alters the output, so stale {@link org.legendofdragoon.asm.TranslationCache} entries are never hit */
+  public static final int VERSION = 3;
 
-        // THUMB2
-        case SUB_REG -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register src = Register.values()[command.command >> 3 & 0x7];
-          final Register operand = Register.values()[command.command >> 6 & 0x7];
-          yield "%s = CPU.subT(%s, %s);".formatted(dest.fullName(), src.fullName(), operand.fullName());
-        }
+  /** CPU methods for the THUMB4 ALU ops, e.g. {@code andT} for {@link Ops#AND_ALU} */
+  private static final Map<Ops, String> ALU_METHODS = new EnumMap<>(Ops.class);
 
-        // THUMB2
-        case ADD_IMM -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register src = Register.values()[command.command >> 3 & 0x7];
-          final int immediate = command.command >> 6 & 0x7;
-          yield "%s = CPU.addT(%s, 0x%x);".formatted(dest.fullName(), src.fullName(), immediate);
-        }
+  static {
+    for(final Ops op : Ops.values()) {
+      if(op.name().endsWith("_ALU")) {
+        ALU_METHODS.put(op, op.name().substring(0, op.name().length() - 4).toLowerCase() + 'T');
+      }
+    }
+  }
 
-        // THUMB2
-        case SUB_IMM -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register src = Register.values()[command.command >> 3 & 0x7];
-          final int immediate = command.command >> 6 & 0x7;
-          yield "%s = CPU.subT(%s, 0x%x);".formatted(dest.fullName(), src.fullName(), immediate);
-        }
+  /** Each instruction is written here, then copied out as its line */
+  private final StringBuilder buffer = new StringBuilder();
+  private final CodeEmitter code = new CodeEmitter(this.buffer, 7);
+
+  /** {@link TranslationMemo.Entry#flags}: nothing reads the flags the instruction sets */
+  private static final int UNUSED_FLAGS = 0x1;
+  /** {@link TranslationMemo.Entry#flags}: a compare tested by the branch after it, so it has no line of its own */
+  private static final int FUSED_INTO_NEXT = 0x2;
+  /** {@link TranslationMemo.Entry#flags}: a branch testing the operands of the compare before it */
+  private static final int FUSED_WITH_PREVIOUS = 0x4;
+
+  /** THUMB16 branch conditions, indexed by {@link Operands#condition} */
+  private static final String[] CONDITIONS = {
+    "CPU.cpsr().getZero()",
+    "!CPU.cpsr().getZero()",
+    "CPU.cpsr().getCarry()",
+    "!CPU.cpsr().getCarry()",
+    "CPU.cpsr().getNegative()",
+    "!CPU.cpsr().getNegative()",
+    "CPU.cpsr().getOverflow()",
+    "!CPU.cpsr().getOverflow()",
+    "CPU.cpsr().getCarry() && !CPU.cpsr().getZero()",
+    "!CPU.cpsr().getCarry() || CPU.cpsr().getZero()",
+    "CPU.cpsr().getNegative() == CPU.cpsr().getOverflow()",
+    "CPU.cpsr().getNegative() != CPU.cpsr().getOverflow()",
+    "!CPU.cpsr().getZero() && CPU.cpsr().getNegative() == CPU.cpsr().getOverflow()",
+    "CPU.cpsr().getZero() || CPU.cpsr().getNegative() != CPU.cpsr().getOverflow()",
+  };
+
+  private static final String[] CONDITION_COMMENTS = {
+    "==", "!=", "unsigned >=", "unsigned <", "negative", "positive or 0", "signed overflow", "signed no overflow",
+    "unsigned >", "unsigned <=", ">=", "<", ">", "<=",
+  };
+
+  /**
+   * Layout of the output. With {@link Options#functions}, BL within the translated range calls the function instead of
+   * branching to a label.
+   */
+  private final Options options;
+
+  public Translator() {
+    this(new Options());
+  }
 
-        // THUMB3
-        case MOV_IMM -> {
-          final Register dest = Register.values()[command.command >> 8 & 0x7];
-          final int immediate = command.command & 0xff;
-          yield "%1$s = CPU.movT(0, 0x%2$x);".formatted(dest.fullName(), immediate);
-        }
+  public Translator(final Options options) {
+    this.options = options;
+  }
 
-        // THUMB3
-        case CMP_IMM -> {
-          final Register dest = Register.values()[command.command >> 8 & 0x7];
-          final int immediate = command.command & 0xff;
-          yield "CPU.cmpT(%1$s, 0x%2$x);".formatted(dest.fullName(), immediate);
-        }
+  public List<String> translate(final Asm asm) {
+    return this.translate(asm, (TranslationMemo)null);
+  }
 
-        // THUMB3
-        case ADD_IMM_U -> {
-          final Register dest = Register.values()[command.command >> 8 & 0x7];
-          final int immediate = command.command & 0xff;
-          yield "%1$s = CPU.addT(%1$s, 0x%2$x);".formatted(dest.fullName(), immediate);
-        }
+  /**
+   * @param memo Results of an earlier run, reused for every instruction whose word hasn't changed. Null translates
+   *             everything. The memo is updated to match this run.
+   */
+  public List<String> translate(final Asm asm, final TranslationMemo memo) {
+    return this.lines(asm, memo).toList();
+  }
 
-        // THUMB3
-        case SUB_IMM_U -> {
-          final Register dest = Register.values()[command.command >> 8 & 0x7];
-          final int immediate = command.command & 0xff;
-          yield "%1$s = CPU.subT(%1$s, 0x%2$x);".formatted(dest.fullName(), immediate);
-        }
+  /** Writes the translation to {@code out}, ending every line with {@code \n} */
+  public void translate(final Asm asm, final Appendable out) throws IOException {
+    this.translate(asm, null, out);
+  }
 
-        // THUMB4
-        case AND_ALU, EOR_ALU, LSL_ALU, LSR_ALU, ASR_ALU, ADC_ALU, SBC_ALU, ROR_ALU, TST_ALU, NEG_ALU, CMP_ALU, CMN_ALU, ORR_ALU, MUL_ALU, BIC_ALU, MVN_ALU -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register src = Register.values()[command.command >> 3 & 0x7];
-          yield "%1$s = CPU.%3$sT(%1$s, %2$s);".formatted(dest.fullName(), src.fullName(), command.op.name().substring(0, command.op.name().length() - 4).toLowerCase());
-        }
+  /** @see #translate(Asm, TranslationMemo) */
+  public void translate(final Asm asm, final TranslationMemo memo, final Appendable out) throws IOException {
+    final LineSlots lines = this.lines(asm, memo);
 
-        // THUMB5
-        case ADD_HI -> {
-          final Register dest = Register.values()[command.command & 0x7 | (command.command >> 7 & 0x1) << 3];
-          final Register src = Register.values()[command.command >> 3 & 0x7 | (command.command >> 6 & 0x1) << 3];
+    if(this.options.functions || this.options.controlFlow()) {
+      markFunctions(asm, lines);
+    }
 
-          if(src == Register.R15_PC) {
-            yield "%s += %s + 0x4;".formatted(dest.fullName(), src.fullName());
-          }
+    lines.write(out, this.options, "int");
+  }
 
-          if(dest == Register.R15_PC) {
-            throw new RuntimeException("PC add not implemented @ 0x%x".formatted(command.address));
-          }
+  /** Functions start at BL targets and at {@code PUSH {.., lr}}, and end at {@code BX lr} and {@code POP {.., pc}} */
+  private static void markFunctions(final Asm asm, final LineSlots lines) {
+    final InstructionBuffer instructions = asm.instructions;
 
-          yield "%s += %s;".formatted(dest.fullName(), src.fullName());
-        }
+    for(int i = 0; i < instructions.size(); i++) {
+      final long address = Integer.toUnsignedLong(instructions.address(i));
+      final long operands = asm.operands[i];
 
-        // THUMB5
-        case CMP_HI -> {
-          final Register dest = Register.values()[command.command & 0x7 | (command.command >> 7 & 0x1) << 3];
-          final Register src = Register.values()[command.command >> 3 & 0x7 | (command.command >> 6 & 0x1) << 3];
+      switch(asm.op(i)) {
+        case BL, BLX -> lines.function(Integer.toUnsignedLong(Operands.value(operands)));
 
-          if(dest == Register.R15_PC || src == Register.R15_PC) {
-            throw new RuntimeException("PC add not implemented");
+        case PUSH -> {
+          if((Operands.value(operands) & 1 << Register.R14_LR.ordinal()) != 0) {
+            lines.function(address);
           }
-
-          yield "CPU.cmpT(%s, %s);".formatted(dest.fullName(), src.fullName());
         }
 
-        // THUMB5
-        case MOV_HI -> {
-          final Register dest = Register.values()[command.command & 0x7 | (command.command >> 7 & 0x1) << 3];
-          final Register src = Register.values()[command.command >> 3 & 0x7 | (command.command >> 6 & 0x1) << 3];
-
-          final String srcValue;
-          if(src == Register.R15_PC) {
-            srcValue = "0x%07x".formatted(command.address + 0x4);
-          } else {
-            srcValue = "%s".formatted(src.fullName());
-          }
-
-          if(dest == Register.R15_PC) {
-            if(src == Register.R14_LR) {
-              yield "return %s;".formatted(Register.R0.fullName());
-            }
-
-            yield "//TODO PC SET 0x%x\n%s = %s;".formatted(command.address, dest.fullName(), srcValue);
+        case POP -> {
+          if((Operands.value(operands) & 1 << Register.R15_PC.ordinal()) != 0) {
+            lines.functionReturn(address);
           }
-
-          yield "%s = %s;".formatted(dest.fullName(), srcValue);
         }
 
-        // THUMB5
         case BX -> {
-          final Register src = Register.values()[command.command >> 3 & 0x7 | (command.command >> 6 & 0x1) << 3];
-
-          if(src == Register.R14_LR) {
-            yield "return %s;".formatted(Register.R0.fullName());
+          if(Operands.rs(operands) == Register.R14_LR.ordinal()) {
+            lines.functionReturn(address);
           }
-
-          if(src == Register.R15_PC) {
-            yield "%s = MEMORY.call(0x%07x);".formatted(Register.R0.fullName(), command.address + 0x4);
-          }
-
-          yield "%s = MEMORY.call(%s);".formatted(Register.R0.fullName(), src.fullName());
-        }
-
-        // THUMB6
-        case LDRPC -> {
-          final Register dest = Register.values()[command.command >> 8 & 0x7];
-          final int offset = command.command & 0xff;
-          final int address = (command.address + 0x4 + offset * 0x4) & ~0x2;
-          yield "%s = MEMORY.ref(4, 0x%07x).get();".formatted(dest.fullName(), address);
-        }
-
-        // THUMB7
-        case STR_REG -> {
-          final Register src = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final Register offset = Register.values()[command.command >> 6 & 0x7];
-          yield "MEMORY.ref(4, %s + %s).setu(%s);".formatted(base.fullName(), offset.fullName(), src.fullName());
         }
+      }
+    }
+  }
 
-        // THUMB7
-        case STRB_REG -> {
-          final Register src = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final Register offset = Register.values()[command.command >> 6 & 0x7];
-          yield "MEMORY.ref(1, %s + %s).setu(%s);".formatted(base.fullName(), offset.fullName(), src.fullName());
-        }
+  private LineSlots lines(final Asm asm, final TranslationMemo memo) {
+    final InstructionBuffer instructions = asm.instructions;
+    final int firstAddress = instructions.address(0);
+    final int lastAddress = instructions.address(instructions.size() - 1);
+    final LineSlots lines = LineSlots.of(instructions, 2, 7);
+    final int[] targets = new int[instructions.size()];
+    final FlagLiveness liveness = this.options.flagAnalysis() ? new FlagLiveness(flagEffects(asm, targets), targets) : null;
+
+    // Branches are only turned into labels within the translated range
+    if(memo != null) {
+      memo.begin((long)firstAddress << 32 | lastAddress & 0xffff_ffffL);
+    }
 
-        // THUMB7
-        case LDR_REG -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final Register offset = Register.values()[command.command >> 6 & 0x7];
-          yield "%s = MEMORY.ref(4, %s + %s).get();".formatted(dest.fullName(), base.fullName(), offset.fullName());
-        }
+    boolean reused = false;
+    String condition = null;
 
-        // THUMB7
-        case LDRB_REG -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final Register offset = Register.values()[command.command >> 6 & 0x7];
-          yield "%s = MEMORY.ref(1, %s + %s).getUnsigned();".formatted(dest.fullName(), base.fullName(), offset.fullName());
-        }
+    for(int i = 0; i < instructions.size(); i++) {
+      final int address = instructions.address(i);
+      final String fusedCondition = condition;
 
-        // THUMB8
-        case STRH_REG -> {
-          final Register offset = Register.values()[command.command >> 6 & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final Register dest = Register.values()[command.command & 0x7];
-          yield "MEMORY.ref(2, %s + %s).setu(%s);".formatted(base.fullName(), offset.fullName(), dest.fullName());
-        }
+      // A compare whose flags only the branch after it reads is tested there instead
+      condition = this.options.fuseCompares && i + 1 < instructions.size() && liveness.readOnlyByNext(i, Operands.condition(asm.operands[i + 1])) ? fusedCondition(asm, i + 1) : null;
 
-        // THUMB8
-        case LDSB_REG -> {
-          final Register offset = Register.values()[command.command >> 6 & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final Register dest = Register.values()[command.command & 0x7];
-          yield "%s = MEMORY.ref(1, %s + %s).get();".formatted(dest.fullName(), base.fullName(), offset.fullName());
-        }
+      // Memoised with how the flags are used, since that depends on the instructions around this one
+      final int flags =
+        (this.options.flagLiveness && liveness.unused(i) ? UNUSED_FLAGS : 0) |
+        (condition != null ? FUSED_INTO_NEXT : 0) |
+        (fusedCondition != null ? FUSED_WITH_PREVIOUS : 0);
 
-        // THUMB8
-        case LDRH_REG -> {
-          final Register offset = Register.values()[command.command >> 6 & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final Register dest = Register.values()[command.command & 0x7];
-          yield "%s = MEMORY.ref(2, %s + %s).getUnsigned();".formatted(dest.fullName(), base.fullName(), offset.fullName());
-        }
+      // A fused branch is written from the compare before it, so it can only be reused along with the compare
+      final TranslationMemo.Entry entry = memo == null ? null : fusedCondition != null && !reused ? memo.miss() : memo.get(address, instructions.word(i), flags);
+      reused = entry != null;
 
-        // THUMB8
-        case LDSH_REG -> {
-          final Register offset = Register.values()[command.command >> 6 & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final Register dest = Register.values()[command.command & 0x7];
-          yield "%s = MEMORY.ref(2, %s + %s).get();".formatted(dest.fullName(), base.fullName(), offset.fullName());
-        }
+      // With lazy flags a branch tests their variables instead, unless it was fused
+      final String branchCondition = fusedCondition == null && this.options.lazyFlags && asm.op(i).ordinal() >= Ops.BEQ.ordinal() && asm.op(i).ordinal() <= Ops.BLE.ordinal() ? LazyFlags.condition(Operands.condition(asm.operands[i])) : fusedCondition;
 
-        // THUMB9
-        case STR_IMM -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final int offset = (command.command >> 6 & 0x1f) * 0x4;
-          yield "MEMORY.ref(4, %s + 0x%x).setu(%s);".formatted(base.fullName(), offset, dest.fullName());
+      final String line;
+      if(entry != null) {
+        for(final int label : entry.labels) {
+          lines.label(label);
         }
 
-        // THUMB9
-        case LDR_IMM -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final int offset = (command.command >> 6 & 0x1f) * 0x4;
-          yield "%s = MEMORY.ref(4, %s + 0x%x).get();".formatted(dest.fullName(), base.fullName(), offset);
-        }
+        line = entry.line;
+      } else {
+        final int labelCount = lines.labelCount();
+        this.buffer.setLength(0);
 
-        // THUMB9
-        case STRB_IMM -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final int offset = command.command >> 6 & 0x1f;
-          yield "MEMORY.ref(1, %s + 0x%x).setu(%s);".formatted(base.fullName(), offset, dest.fullName());
+        if((flags & FUSED_INTO_NEXT) == 0) {
+          translateInstruction(this.code, address, asm.op(i), asm.operands[i], firstAddress, lastAddress, this.options.functions, (flags & UNUSED_FLAGS) != 0, this.options.lazyFlags, branchCondition, lines);
         }
 
-        // THUMB9
-        case LDRB_IMM -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final int offset = command.command >> 6 & 0x1f;
-          yield "%s = MEMORY.ref(1, %s + 0x%x).getUnsigned();".formatted(dest.fullName(), base.fullName(), offset);
-        }
+        line = this.buffer.toString();
 
-        // THUMB10
-        case STRH_IMM -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final int offset = (command.command >> 6 & 0x1f) * 0x2;
-          yield "MEMORY.ref(2, %s + 0x%x).setu(%s);".formatted(base.fullName(), offset, dest.fullName());
+        if(memo != null) {
+          memo.put(address, new TranslationMemo.Entry(instructions.word(i), line, 0, lines.labelsSince(labelCount), TranslationMemo.NO_VARS, flags));
         }
+      }
 
-        // THUMB10
-        case LDRH_IMM -> {
-          final Register dest = Register.values()[command.command & 0x7];
-          final Register base = Register.values()[command.command >> 3 & 0x7];
-          final int offset = (command.command >> 6 & 0x1f) * 0x2;
-          yield "%s = MEMORY.ref(2, %s + 0x%x).getUnsigned();".formatted(dest.fullName(), base.fullName(), offset);
-        }
+      lines.put(Integer.toUnsignedLong(address), line);
 
-        // THUMB11
-        case STR_SP -> {
-          final int offset = (command.command & 0xff) * 0x4;
-          final Register dest = Register.values()[command.command >>> 8 & 0x7];
-          yield "MEMORY.ref(4, %s + 0x%x).setu(%s);".formatted(Register.R13_SP.fullName(), offset, dest.fullName());
-        }
+      if((flags & FUSED_INTO_NEXT) != 0) {
+        lines.fold(Integer.toUnsignedLong(address));
+      }
 
-        // THUMB11
-        case LDR_SP -> {
-          final int offset = (command.command & 0xff) * 0x4;
-          final Register dest = Register.values()[command.command >>> 8 & 0x7];
-          yield "%s = MEMORY.ref(4, %s + 0x%x).get();".formatted(dest.fullName(), Register.R13_SP.fullName(), offset);
-        }
+      if(this.options.controlFlow()) {
+        recordFlow(lines, address, asm.op(i), asm.operands[i], firstAddress, lastAddress, this.options.functions, branchCondition);
+      }
+    }
 
-        // THUMB12
-        case ADDRESS -> {
-          final boolean isSp = (command.command >>> 11 & 0x1) != 0;
-          final Register dest = Register.values()[command.command >>> 8 & 0x7];
-          final int offset = (command.command & 0xff) * 0x4;
+    return lines;
+  }
 
-          if(isSp) {
-            yield "%s = %s + 0x%x;".formatted(dest.fullName(), Register.R13_SP.fullName(), offset);
-          }
+  /**
+   * Tells {@code lines} how control leaves an instruction, so its branch can become part of a loop or if. Branches out
+   * of the translated range are left as they are.
+   *
+   * @param condition The fused or lazy condition of a conditional branch, or null if it tests the flags
+   */
+  private static void recordFlow(final LineSlots lines, final int address, final Ops op, final long operands, final int firstAddress, final int lastAddress, final boolean calls, final String condition) {
+    final long jump = Integer.toUnsignedLong(Operands.value(operands));
+    final boolean inRange = Operands.value(operands) >= firstAddress && Operands.value(operands) <= lastAddress;
 
-          yield "%s = 0x%07x;".formatted(dest.fullName(), (command.address + 0x4 & ~0x2) + offset);
+    switch(op) {
+      case BEQ, BNE, BCS, BCC, BMI, BPL, BVS, BVC, BHI, BLS, BGE, BLT, BGT, BLE -> {
+        if(inRange) {
+          lines.branch(Integer.toUnsignedLong(address), "", condition != null ? condition : CONDITIONS[Operands.condition(operands)], jump);
         }
+      }
 
-        // THUMB13
-        case ADD_SP -> {
-          final boolean negative = (command.command >> 7 & 0x1) != 0;
-          final int offset = (command.command & 0x7f) * 0x4;
-
-          if(negative) {
-            yield "%s -= 0x%x;".formatted(Register.R13_SP.fullName(), offset);
-          }
+      case B, BL, BLX -> {
+        if(inRange && (op == Ops.B || !calls)) {
+          lines.jump(Integer.toUnsignedLong(address), "", jump);
+        }
+      }
 
-          yield "%s += 0x%x;".formatted(Register.R13_SP.fullName(), offset);
+      case BX -> {
+        if(Operands.rs(operands) == Register.R14_LR.ordinal()) {
+          lines.exit(Integer.toUnsignedLong(address));
         }
+      }
+    }
+  }
 
-        // THUMB14
-        case PUSH -> {
-          final List<Register> rlist = Register.unpack(command.command & 0xff);
-          final boolean lrpc = (command.command >> 8 & 0x1) != 0;
+  /**
+   * How each instruction uses the flags, see {@link FlagLiveness#effect}
+   *
+   * @param targets Filled with the index of the instruction each branch or call goes to, or -1
+   */
+  private static int[] flagEffects(final Asm asm, final int[] targets) {
+    final int[] effects = new int[asm.instructions.size()];
+
+    for(int i = 0; i < effects.length; i++) {
+      final long operands = asm.operands[i];
+      final Ops op = asm.op(i);
+      targets[i] = switch(op) {
+        case BEQ, BNE, BCS, BCC, BMI, BPL, BVS, BVC, BHI, BLS, BGE, BLT, BGT, BLE, B, BL, BLX -> asm.instructions.indexOf(Operands.value(operands));
+        default -> -1;
+      };
 
-          final StringBuilder builder = new StringBuilder();
-          if(lrpc) {
-            builder.append("CPU.push(%s);\n".formatted(Register.R14_LR.fullName()));
-          }
+      // Branches out of the translated range, and calls, could go anywhere
+      final int transfer = targets[i] == -1 || op == Ops.BL || op == Ops.BLX ? FlagLiveness.TRANSFER : 0;
+
+      effects[i] = switch(op) {
+        // Shifting left by 0 leaves the carry alone, shifting right by 0 is shifting by 32
+        case LSL -> FlagLiveness.writes(Operands.value(operands) == 0 ? FlagLiveness.NZ : FlagLiveness.NZC);
+        case LSR, ASR -> FlagLiveness.writes(FlagLiveness.NZC);
+        case ADD_REG, SUB_REG, ADD_IMM, SUB_IMM, CMP_IMM, ADD_IMM_U, SUB_IMM_U, NEG_ALU, CMP_ALU, CMN_ALU, CMP_HI -> FlagLiveness.writes(FlagLiveness.NZCV);
+        case MOV_IMM, AND_ALU, EOR_ALU, TST_ALU, ORR_ALU, BIC_ALU, MVN_ALU -> FlagLiveness.writes(FlagLiveness.NZ);
+        // The carry only changes when shifting by a non-zero amount, and MUL leaves it unpredictable
+        case LSL_ALU, LSR_ALU, ASR_ALU, ROR_ALU, MUL_ALU -> FlagLiveness.effect(FlagLiveness.NZC, FlagLiveness.NZ, 0);
+        case ADC_ALU, SBC_ALU -> FlagLiveness.effect(FlagLiveness.NZCV, FlagLiveness.NZCV, FlagLiveness.C);
+        case BEQ, BNE, BCS, BCC, BMI, BPL, BVS, BVC, BHI, BLS, BGE, BLT, BGT, BLE -> FlagLiveness.effect(0, 0, FlagLiveness.conditionFlags(Operands.condition(operands))) | transfer;
+        case B -> FlagLiveness.ENDS | transfer;
+        case BL, BLX, BX, SWI -> FlagLiveness.TRANSFER;
+        case ADD_HI, MOV_HI -> Operands.rd(operands) == Register.R15_PC.ordinal() ? FlagLiveness.TRANSFER : 0;
+        case POP -> (Operands.value(operands) & 1 << Register.R15_PC.ordinal()) != 0 ? FlagLiveness.TRANSFER : 0;
+        default -> 0;
+      };
+    }
 
-          for(int i = rlist.size() - 1; i >= 0; i--) {
-            builder.append("CPU.push(%s);\n".formatted(rlist.get(i).fullName()));
-          }
+    return effects;
+  }
 
-          yield builder.toString();
-        }
+  /**
+   * @return Java for the condition of the branch at {@code i} from the operands of the compare before it, or null if
+   *         it isn't a branch after a compare or needs a flag that can't be written that way
+   */
+  private static String fusedCondition(final Asm asm, final int i) {
+    final Ops op = asm.op(i);
 
-        // THUMB14
-        case POP -> {
-          final List<Register> rlist = Register.unpack(command.command & 0xff);
-          final boolean lrpc = (command.command >> 8 & 0x1) != 0;
+    if(op.ordinal() < Ops.BEQ.ordinal() || op.ordinal() > Ops.BLE.ordinal()) {
+      return null;
+    }
 
-          final StringBuilder builder = new StringBuilder();
-          for(final Register r : rlist) {
-            builder.append("%s = CPU.pop();\n".formatted(r.fullName()));
-          }
+    final long operands = asm.operands[i - 1];
+    final Register left = Register.VALUES[Operands.rd(operands)];
+    final Register right = Register.VALUES[Operands.rs(operands)];
+    final int condition = Operands.condition(asm.operands[i]);
+
+    return switch(asm.op(i - 1)) {
+      case CMP_IMM -> FlagLiveness.compare('-', left.code(), "0x" + Integer.toHexString(Operands.value(operands)), condition);
+      case CMP_ALU -> FlagLiveness.compare('-', left.code(), right.code(), condition);
+      case CMN_ALU -> FlagLiveness.compare('+', left.code(), right.code(), condition);
+      case TST_ALU -> FlagLiveness.compare('&', left.code(), right.code(), condition);
+      case CMP_HI -> left != Register.R15_PC && right != Register.R15_PC ? FlagLiveness.compare('-', left.code(), right.code(), condition) : null;
+      default -> null;
+    };
+  }
 
-          if(lrpc) {
-            builder.append("%s = CPU.pop();".formatted(Register.R15_PC.fullName()));
-            builder.append("\n//TODO PC changed");
-          }
+  /**
+   * @param calls       Whether BL within the translated range is written as a call, because its target has a method
+   * @param flagsUnused Whether nothing reads the flags this instruction sets, so it can be plain Java
+   * @param lazyFlags   Whether flags are kept in {@link LazyFlags} variables instead of the CPSR
+   * @param condition   Java for the condition of a conditional branch in place of the flags, or null
+   */
+  private static void translateInstruction(final CodeEmitter code, final int address, final Ops op, final long operands, final int firstAddress, final int lastAddress, final boolean calls, final boolean flagsUnused, final boolean lazyFlags, final String condition, final LineSlots lines) {
+    // Anything that still goes through the CPSR gets the real flags, and they're picked up again after
+    if(lazyFlags && usesCpsr(op, operands, flagsUnused)) {
+      LazyFlags.materialise(code).nl();
+      translateInstruction(code, address, op, operands, firstAddress, lastAddress, calls, flagsUnused, false, condition, lines);
+      LazyFlags.reload(code.nl());
+      return;
+    }
 
-          yield builder.toString();
-        }
+    if(flagsUnused && plainArithmetic(code, op, operands)) {
+      return;
+    }
 
-        // THUMB15
-        case STMIA -> {
-          final List<Register> rlist = Register.unpack(command.command & 0xff);
-          final Register base = Register.values()[command.command >> 8 & 0x7];
+    if(lazyFlags && lazyArithmetic(code, op, operands)) {
+      return;
+    }
 
-          final StringBuilder builder = new StringBuilder();
-          for(final Register r : rlist) {
-            builder
-              .append("MEMORY.ref(4, %s).setu(%s);\n".formatted(base.fullName(), r.fullName()))
-              .append("%s += 0x4;\n".formatted(base.fullName()));
+    switch(op) {
+      // THUMB1
+      case LSL -> shift(code, "lslT", operands);
+      case LSR -> shift(code, "lsrT", operands);
+      case ASR -> shift(code, "asrT", operands);
+
+      // THUMB2
+      case ADD_REG -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register src = Register.VALUES[Operands.rs(operands)];
+        final Register operand = Register.VALUES[Operands.rn(operands)];
+        code.reg(dest).text(" = CPU.addT(").reg(src).text(", ").reg(operand).text(')').stmt();
+      }
+
+      // THUMB2
+      case SUB_REG -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register src = Register.VALUES[Operands.rs(operands)];
+        final Register operand = Register.VALUES[Operands.rn(operands)];
+        code.reg(dest).text(" = CPU.subT(").reg(src).text(", ").reg(operand).text(')').stmt();
+      }
+
+      // THUMB2
+      case ADD_IMM -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register src = Register.VALUES[Operands.rs(operands)];
+        code.reg(dest).text(" = CPU.addT(").reg(src).text(", ").hex(Operands.value(operands)).text(')').stmt();
+      }
+
+      // THUMB2
+      case SUB_IMM -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register src = Register.VALUES[Operands.rs(operands)];
+        code.reg(dest).text(" = CPU.subT(").reg(src).text(", ").hex(Operands.value(operands)).text(')').stmt();
+      }
+
+      // THUMB3
+      case MOV_IMM -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        code.reg(dest).text(" = CPU.movT(0, ").hex(Operands.value(operands)).text(')').stmt();
+      }
+
+      // THUMB3
+      case CMP_IMM -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        code.text("CPU.cmpT(").reg(dest).text(", ").hex(Operands.value(operands)).text(')').stmt();
+      }
+
+      // THUMB3
+      case ADD_IMM_U -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        code.reg(dest).text(" = CPU.addT(").reg(dest).text(", ").hex(Operands.value(operands)).text(')').stmt();
+      }
+
+      // THUMB3
+      case SUB_IMM_U -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        code.reg(dest).text(" = CPU.subT(").reg(dest).text(", ").hex(Operands.value(operands)).text(')').stmt();
+      }
+
+      // THUMB4
+      case AND_ALU, EOR_ALU, LSL_ALU, LSR_ALU, ASR_ALU, ADC_ALU, SBC_ALU, ROR_ALU, TST_ALU, NEG_ALU, CMP_ALU, CMN_ALU, ORR_ALU, MUL_ALU, BIC_ALU, MVN_ALU -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register src = Register.VALUES[Operands.rs(operands)];
+        code.reg(dest).text(" = CPU.").text(ALU_METHODS.get(op)).text('(').reg(dest).text(", ").reg(src).text(')').stmt();
+      }
+
+      // THUMB5
+      case ADD_HI -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register src = Register.VALUES[Operands.rs(operands)];
+
+        if(src == Register.R15_PC) {
+          code.reg(dest).text(" += ").reg(src).text(" + 0x4").stmt();
+          return;
+        }
+
+        if(dest == Register.R15_PC) {
+          throw new RuntimeException("PC add not implemented @ 0x%x".formatted(address));
+        }
+
+        code.reg(dest).text(" += ").reg(src).stmt();
+      }
+
+      // THUMB5
+      case CMP_HI -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register src = Register.VALUES[Operands.rs(operands)];
+
+        if(dest == Register.R15_PC || src == Register.R15_PC) {
+          throw new RuntimeException("PC add not implemented");
+        }
+
+        code.text("CPU.cmpT(").reg(dest).text(", ").reg(src).text(')').stmt();
+      }
+
+      // THUMB5
+      case MOV_HI -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register src = Register.VALUES[Operands.rs(operands)];
+
+        if(dest == Register.R15_PC) {
+          if(src == Register.R14_LR) {
+            code.text("return ").reg(Register.R0).stmt();
+            return;
           }
 
-          yield builder.toString();
+          code.text("//TODO PC SET ").hex(address).nl();
         }
 
-        // THUMB15
-        case LDMIA -> {
-          final List<Register> rlist = Register.unpack(command.command & 0xff);
-          final Register base = Register.values()[command.command >> 8 & 0x7];
+        code.reg(dest).text(" = ");
 
-          final StringBuilder builder = new StringBuilder();
-          for(final Register r : rlist) {
-            builder
-              .append("%s = MEMORY.ref(4, %s).get();\n".formatted(r.fullName(), base.fullName()))
-              .append("%s += 0x4;\n".formatted(base.fullName()));
-          }
-
-          yield builder.toString();
+        if(src == Register.R15_PC) {
+          code.hex(address + 0x4, 7);
+        } else {
+          code.reg(src);
         }
 
-        // THUMB16
-        case BEQ -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-
-          if(address >= firstAddress && address <= lastAddress) {
-            labels.add(address);
+        code.stmt();
+      }
 
-            yield
-              "if(CPU.cpsr().getZero()) { // ==\n" +
-              "  LAB_%07x;\n".formatted(address) +
-              '}';
-          }
+      // THUMB5
+      case BX -> {
+        final Register src = Register.VALUES[Operands.rs(operands)];
 
-          yield
-            "if(CPU.cpsr().getZero()) { // ==\n" +
-            "  %s = FUN_%07x(); //TODO branch\n".formatted(Register.R0.fullName(), address) +
-            '}';
+        if(src == Register.R14_LR) {
+          code.text("return ").reg(Register.R0).stmt();
+        } else if(src == Register.R15_PC) {
+          code.reg(Register.R0).text(" = MEMORY.call(").hex(address + 0x4, 7).text(')').stmt();
+        } else {
+          code.reg(Register.R0).text(" = MEMORY.call(").reg(src).text(')').stmt();
         }
+      }
 
-        // THUMB16
-        case BNE -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
+      // THUMB6
+      case LDRPC -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        code.reg(dest).text(" = MEMORY.ref(4, ").hex(Operands.value(operands), 7).text(").get()").stmt();
+      }
 
-          if(address >= firstAddress && address <= lastAddress) {
-            labels.add(address);
+      // THUMB7, THUMB8
+      case STR_REG -> storeReg(code, 4, operands);
+      case STRB_REG -> storeReg(code, 1, operands);
+      case STRH_REG -> storeReg(code, 2, operands);
+      case LDR_REG -> loadReg(code, 4, "get", operands);
+      case LDRB_REG -> loadReg(code, 1, "getUnsigned", operands);
+      case LDSB_REG -> loadReg(code, 1, "get", operands);
+      case LDRH_REG -> loadReg(code, 2, "getUnsigned", operands);
+      case LDSH_REG -> loadReg(code, 2, "get", operands);
 
-            yield
-              "if(!CPU.cpsr().getZero()) { // !=\n" +
-              "  LAB_%07x;\n".formatted(address) +
-              '}';
-          }
-
-          yield
-            "if(!CPU.cpsr().getZero()) { // !=\n" +
-            "  %s = FUN_%07x(); //TODO branch\n".formatted(Register.R0.fullName(), address) +
-            '}';
-        }
-
-        // THUMB16
-        case BCS -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB9, THUMB10, THUMB11
+      case STR_IMM, STR_SP -> storeImm(code, 4, operands);
+      case STRB_IMM -> storeImm(code, 1, operands);
+      case STRH_IMM -> storeImm(code, 2, operands);
+      case LDR_IMM, LDR_SP -> loadImm(code, 4, "get", operands);
+      case LDRB_IMM -> loadImm(code, 1, "getUnsigned", operands);
+      case LDRH_IMM -> loadImm(code, 2, "getUnsigned", operands);
 
-          yield
-            "if(CPU.cpsr().getCarry()) { // unsigned >=\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
-        }
-
-        // THUMB16
-        case BCC -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB12
+      case ADDRESS -> {
+        final Register dest = Register.VALUES[Operands.rd(operands)];
+        final Register base = Register.VALUES[Operands.rs(operands)];
 
-          yield
-            "if(!CPU.cpsr().getCarry()) { // unsigned <\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
+        if(base == Register.R13_SP) {
+          code.reg(dest).text(" = ").reg(base).text(" + ").hex(Operands.value(operands)).stmt();
+        } else {
+          code.reg(dest).text(" = ").hex(Operands.value(operands), 7).stmt();
         }
+      }
 
-        // THUMB16
-        case BMI -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB13
+      case ADD_SP -> {
+        final int offset = Operands.value(operands);
 
-          yield
-            "if(CPU.cpsr().getNegative()) { // negative\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
+        if(offset < 0) {
+          code.reg(Register.R13_SP).text(" -= ").hex(-offset).stmt();
+        } else {
+          code.reg(Register.R13_SP).text(" += ").hex(offset).stmt();
         }
+      }
 
-        // THUMB16
-        case BPL -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB14
+      case PUSH -> {
+        final List<Register> rlist = Register.unpack(Operands.value(operands));
 
-          yield
-            "if(!CPU.cpsr().getNegative()) { // positive or 0\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
+        // LR is pushed first
+        for(int j = rlist.size() - 1; j >= 0; j--) {
+          code.text("CPU.push(").reg(rlist.get(j)).text(')').stmt().nl();
         }
+      }
 
-        // THUMB16
-        case BVS -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB14
+      case POP -> {
+        // PC is popped last
+        for(final Register r : Register.unpack(Operands.value(operands))) {
+          code.reg(r).text(" = CPU.pop()").stmt().nl();
 
-          yield
-            "if(CPU.cpsr().getOverflow()) { // signed overflow\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
+          if(r == Register.R15_PC) {
+            code.text("//TODO PC changed");
+          }
         }
+      }
 
-        // THUMB16
-        case BVC -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB15
+      case STMIA -> {
+        final Register base = Register.VALUES[Operands.rs(operands)];
 
-          yield
-            "if(!CPU.cpsr().getOverflow()) { // signed no overflow\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
+        for(final Register r : Register.unpack(Operands.value(operands))) {
+          code.text("MEMORY.ref(4, ").reg(base).text(").setu(").reg(r).text(')').stmt().nl();
+          code.reg(base).text(" += 0x4").stmt().nl();
         }
+      }
 
-        // THUMB16
-        case BHI -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB15
+      case LDMIA -> {
+        final Register base = Register.VALUES[Operands.rs(operands)];
 
-          yield
-            "if(CPU.cpsr().getCarry() && !CPU.cpsr().getZero()) { // unsigned >\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
+        for(final Register r : Register.unpack(Operands.value(operands))) {
+          code.reg(r).text(" = MEMORY.ref(4, ").reg(base).text(").get()").stmt().nl();
+          code.reg(base).text(" += 0x4").stmt().nl();
         }
+      }
 
-        // THUMB16
-        case BLS -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB16
+      case BEQ, BNE -> branch(code, condition != null ? condition : CONDITIONS[Operands.condition(operands)], CONDITION_COMMENTS[Operands.condition(operands)], operands, firstAddress, lastAddress, lines);
+      case BCS, BCC, BMI, BPL, BVS, BVC, BHI, BLS, BGE, BLT, BGT, BLE -> branch(code, condition != null ? condition : CONDITIONS[Operands.condition(operands)], CONDITION_COMMENTS[Operands.condition(operands)], operands, lines);
 
-          yield
-            "if(!CPU.cpsr().getCarry() || CPU.cpsr().getZero()) { // unsigned <=\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
-        }
+      // THUMB17
+      case SWI -> {
+        code.reg(Register.R15_PC).text(" = ").hex(address + 0x2).stmt().nl();
+        code.reg(Register.R0).text(" = CPU.SWI(InstructionSet.THUMB); // ").hex(Operands.value(operands));
+      }
 
-        // THUMB16
-        case BGE -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB18
+      case B -> {
+        final int jump = Operands.value(operands);
 
-          yield
-            "if(CPU.cpsr().getNegative() == CPU.cpsr().getOverflow()) { // >=\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
+        if(jump >= firstAddress && jump <= lastAddress) {
+          lines.label(jump);
+          code.label(jump).stmt();
+        } else {
+          code.reg(Register.R0).text(" = FUN_").digits(jump, 7).text("(); //TODO branch");
         }
+      }
 
-        // THUMB16
-        case BLT -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+      // THUMB19
+      case BL, BLX -> {
+        final int jump = Operands.value(operands);
 
-          yield
-            "if(CPU.cpsr().getNegative() != CPU.cpsr().getOverflow()) { // <\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
+        if(!calls && jump >= firstAddress && jump <= lastAddress) {
+          lines.label(jump);
+          code.label(jump).stmt();
+        } else {
+          code.reg(Register.R0).text(" = FUN_").digits(jump, 7).text("()").stmt();
         }
+      }
 
-        // THUMB16
-        case BGT -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
-
-          yield
-            "if(!CPU.cpsr().getZero() && CPU.cpsr().getNegative() == CPU.cpsr().getOverflow()) { // >\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
-        }
+      default -> code.text("//TODO Unsupported operation ").text(op.name()).text(" at address ").text(Integer.toHexString(address));
+    }
+  }
 
-        // THUMB16
-        case BLE -> {
-          final int offset = sign(command.command & 0xff, 8) * 0x2;
-          final int address = command.address + 0x4 + offset;
-          labels.add(address);
+  /**
+   * Writes an instruction as plain Java without setting any flags
+   *
+   * @return False if it doesn't have a plain form - compares and shifts by a register keep their call
+   */
+  private static boolean plainArithmetic(final CodeEmitter code, final Ops op, final long operands) {
+    final Register dest = Register.VALUES[Operands.rd(operands)];
+    final Register src = Register.VALUES[Operands.rs(operands)];
+    final Register operand = Register.VALUES[Operands.rn(operands)];
+    final int value = Operands.value(operands);
+
+    switch(op) {
+      case LSL -> {
+        code.reg(dest).text(" = ").reg(src);
+
+        if(value != 0) {
+          code.text(" << ").dec(value);
+        }
+
+        code.stmt();
+      }
+
+      // Shifting right by 0 is shifting by 32
+      case LSR -> {
+        if(value != 0) {
+          code.reg(dest).text(" = ").reg(src).text(" >>> ").dec(value).stmt();
+        } else {
+          code.reg(dest).text(" = 0").stmt();
+        }
+      }
+
+      case ASR -> code.reg(dest).text(" = ").reg(src).text(" >> ").dec(value != 0 ? value : 31).stmt();
+
+      case ADD_REG -> code.reg(dest).text(" = ").reg(src).text(" + ").reg(operand).stmt();
+      case SUB_REG -> code.reg(dest).text(" = ").reg(src).text(" - ").reg(operand).stmt();
+      case ADD_IMM -> code.reg(dest).text(" = ").reg(src).text(" + ").hex(value).stmt();
+      case SUB_IMM -> code.reg(dest).text(" = ").reg(src).text(" - ").hex(value).stmt();
+      case MOV_IMM -> code.reg(dest).text(" = ").hex(value).stmt();
+      case ADD_IMM_U -> code.reg(dest).text(" += ").hex(value).stmt();
+      case SUB_IMM_U -> code.reg(dest).text(" -= ").hex(value).stmt();
+
+      case AND_ALU -> code.reg(dest).text(" &= ").reg(src).stmt();
+      case EOR_ALU -> code.reg(dest).text(" ^= ").reg(src).stmt();
+      case ORR_ALU -> code.reg(dest).text(" |= ").reg(src).stmt();
+      case BIC_ALU -> code.reg(dest).text(" &= ~").reg(src).stmt();
+      case MVN_ALU -> code.reg(dest).text(" = ~").reg(src).stmt();
+      case NEG_ALU -> code.reg(dest).text(" = -").reg(src).stmt();
+      case MUL_ALU -> code.reg(dest).text(" *= ").reg(src).stmt();
+      case ROR_ALU -> code.reg(dest).text(" = Integer.rotateRight(").reg(dest).text(", ").reg(src).text(')').stmt();
+      case ADC_ALU -> code.reg(dest).text(" = ").reg(dest).text(" + ").reg(src).text(" + (CPU.cpsr().getCarry() ? 1 : 0)").stmt();
+      case SBC_ALU -> code.reg(dest).text(" = ").reg(dest).text(" - ").reg(src).text(" - (CPU.cpsr().getCarry() ? 0 : 1)").stmt();
+
+      default -> {
+        return false;
+      }
+    }
 
-          yield
-            "if(CPU.cpsr().getZero() || CPU.cpsr().getNegative() != CPU.cpsr().getOverflow()) { // <=\n" +
-            "  LAB_%07x;\n".formatted(address) +
-            '}';
-        }
+    return true;
+  }
 
-        // THUMB17
-        case SWI -> "%s = 0x%x;\n%s = CPU.SWI(InstructionSet.THUMB); // 0x%x".formatted(Register.R15_PC.fullName(), command.address + 0x2, Register.R0.fullName(), command.command & 0xff);
+  /**
+   * Writes a flag-setting instruction that only sets N and Z, or is an addition or subtraction, with {@link LazyFlags}
+   *
+   * @return False if it has no lazy form
+   */
+  private static boolean lazyArithmetic(final CodeEmitter code, final Ops op, final long operands) {
+    final Register dest = Register.VALUES[Operands.rd(operands)];
+    final Register src = Register.VALUES[Operands.rs(operands)];
+    final Register operand = Register.VALUES[Operands.rn(operands)];
+    final String value = "0x" + Integer.toHexString(Operands.value(operands));
+
+    switch(op) {
+      case LSL -> {
+        // LSL #0 is MOVS, it leaves C alone
+        if(Operands.value(operands) != 0) {
+          return false;
+        }
+
+        LazyFlags.logical(code, dest, src.code());
+      }
+
+      case ADD_REG -> LazyFlags.arithmetic(code, LazyFlags.ADD, dest, src.code(), operand.code());
+      case SUB_REG -> LazyFlags.arithmetic(code, LazyFlags.SUB, dest, src.code(), operand.code());
+      case ADD_IMM -> LazyFlags.arithmetic(code, LazyFlags.ADD, dest, src.code(), value);
+      case SUB_IMM -> LazyFlags.arithmetic(code, LazyFlags.SUB, dest, src.code(), value);
+      case MOV_IMM -> LazyFlags.logical(code, dest, value);
+      case CMP_IMM -> LazyFlags.arithmetic(code, LazyFlags.SUB, null, dest.code(), value);
+      case ADD_IMM_U -> LazyFlags.arithmetic(code, LazyFlags.ADD, dest, dest.code(), value);
+      case SUB_IMM_U -> LazyFlags.arithmetic(code, LazyFlags.SUB, dest, dest.code(), value);
+
+      case AND_ALU -> LazyFlags.logical(code, dest, dest.code() + " & " + src.code());
+      case EOR_ALU -> LazyFlags.logical(code, dest, dest.code() + " ^ " + src.code());
+      case ORR_ALU -> LazyFlags.logical(code, dest, dest.code() + " | " + src.code());
+      case BIC_ALU -> LazyFlags.logical(code, dest, dest.code() + " & ~" + src.code());
+      case MVN_ALU -> LazyFlags.logical(code, dest, '~' + src.code());
+      case MUL_ALU -> LazyFlags.logical(code, dest, dest.code() + " * " + src.code());
+      case TST_ALU -> LazyFlags.logical(code, null, dest.code() + " & " + src.code());
+      case NEG_ALU -> LazyFlags.arithmetic(code, LazyFlags.SUB, dest, "0", src.code());
+      case CMP_ALU -> LazyFlags.arithmetic(code, LazyFlags.SUB, null, dest.code(), src.code());
+      case CMN_ALU -> LazyFlags.arithmetic(code, LazyFlags.ADD, null, dest.code(), src.code());
+
+      case CMP_HI -> {
+        if(dest == Register.R15_PC || src == Register.R15_PC) {
+          return false;
+        }
+
+        LazyFlags.arithmetic(code, LazyFlags.SUB, null, dest.code(), src.code());
+      }
+
+      default -> {
+        return false;
+      }
+    }
 
-        // THUMB18
-        case B -> {
-          final int offset = sign(command.command & 0x7ff, 11) * 0x2;
-          final int address = command.address + 0x4 + offset;
+    return true;
+  }
 
-          if(address >= firstAddress && address <= lastAddress) {
-            labels.add(address);
-            yield "LAB_%07x;".formatted(address);
-          }
+  /**
+   * @param flagsUnused Whether nothing reads the flags this instruction sets, so shifts can be plain Java
+   * @return Whether this instruction reads or writes the CPSR even with lazy flags - shifts that set C, carries, SWIs
+   *         and calls through {@code MEMORY.call}
+   */
+  private static boolean usesCpsr(final Ops op, final long operands, final boolean flagsUnused) {
+    return switch(op) {
+      case LSL -> !flagsUnused && Operands.value(operands) != 0;
+      case LSR, ASR, ROR_ALU -> !flagsUnused;
+      case LSL_ALU, LSR_ALU, ASR_ALU, ADC_ALU, SBC_ALU, SWI -> true;
+      case BX -> Operands.rs(operands) != Register.R14_LR.ordinal();
+      default -> false;
+    };
+  }
 
-          yield "%s = FUN_%07x(); //TODO branch".formatted(Register.R0.fullName(), address);
-        }
+  private static void shift(final CodeEmitter code, final String method, final long operands) {
+    final Register dest = Register.VALUES[Operands.rd(operands)];
+    final Register src = Register.VALUES[Operands.rs(operands)];
+    code.reg(dest).text(" = CPU.").text(method).text('(').reg(src).text(", ").dec(Operands.value(operands)).text(')').stmt();
+  }
 
-        // THUMB19
-        case BL, BLX -> {
-          final int lower = command.command & 0x7ff;
-          final int upper = command.command >>> 16 & 0x7ff;
-          final int offset = upper << 1 | lower << 12;
-          final int address = command.address + 0x4 + sign(offset, 23);
+  private static void storeReg(final CodeEmitter code, final int size, final long operands) {
+    final Register src = Register.VALUES[Operands.rd(operands)];
+    final Register base = Register.VALUES[Operands.rs(operands)];
+    final Register offset = Register.VALUES[Operands.rn(operands)];
+    code.text("MEMORY.ref(").dec(size).text(", ").reg(base).text(" + ").reg(offset).text(").setu(").reg(src).text(')').stmt();
+  }
 
-          if(address >= firstAddress && address <= lastAddress) {
-            labels.add(address);
-            yield "LAB_%07x;".formatted(address);
-          }
+  private static void loadReg(final CodeEmitter code, final int size, final String getter, final long operands) {
+    final Register dest = Register.VALUES[Operands.rd(operands)];
+    final Register base = Register.VALUES[Operands.rs(operands)];
+    final Register offset = Register.VALUES[Operands.rn(operands)];
+    code.reg(dest).text(" = MEMORY.ref(").dec(size).text(", ").reg(base).text(" + ").reg(offset).text(").").text(getter).text("()").stmt();
+  }
 
-          yield "%s = FUN_%07x();".formatted(Register.R0.fullName(), address);
-        }
+  private static void storeImm(final CodeEmitter code, final int size, final long operands) {
+    final Register src = Register.VALUES[Operands.rd(operands)];
+    final Register base = Register.VALUES[Operands.rs(operands)];
+    code.text("MEMORY.ref(").dec(size).text(", ").reg(base).text(" + ").hex(Operands.value(operands)).text(").setu(").reg(src).text(')').stmt();
+  }
 
-        default -> "//TODO Unsupported operation " + command.op + " at address " + Integer.toHexString(command.address);
-      };
+  private static void loadImm(final CodeEmitter code, final int size, final String getter, final long operands) {
+    final Register dest = Register.VALUES[Operands.rd(operands)];
+    final Register base = Register.VALUES[Operands.rs(operands)];
+    code.reg(dest).text(" = MEMORY.ref(").dec(size).text(", ").reg(base).text(" + ").hex(Operands.value(operands)).text(").").text(getter).text("()").stmt();
+  }
 
-      lines.put(command.address, line);
-    }
+  /** A conditional branch that calls out as a function when the target is outside the translated range */
+  private static void branch(final CodeEmitter code, final String condition, final String comment, final long operands, final int firstAddress, final int lastAddress, final LineSlots lines) {
+    final int jump = Operands.value(operands);
 
-    // Prepend jump destinations
-    for(final int address : labels) {
-      lines.merge(address, "\n//LAB_%07x".formatted(address), (current, added) -> added + '\n' + current);
+    if(jump >= firstAddress && jump <= lastAddress) {
+      branch(code, condition, comment, operands, lines);
+      return;
     }
 
-    // Add code to output
-    return new ArrayList<>(lines.values());
+    code.openIf(condition, comment);
+    code.reg(Register.R0).text(" = FUN_").digits(jump, 7).text("(); //TODO branch");
+    code.closeIf();
   }
 
-  private static int sign(final int value, final int numberOfBits) {
-    if((value & 1 << numberOfBits - 1) != 0) {
-      return value | -(1 << numberOfBits);
-    }
+  private static void branch(final CodeEmitter code, final String condition, final String comment, final long operands, final LineSlots lines) {
+    final int jump = Operands.value(operands);
+    lines.label(jump);
 
-    return value;
+    code.openIf(condition, comment);
+    code.label(jump).stmt();
+    code.closeIf();
   }
 }
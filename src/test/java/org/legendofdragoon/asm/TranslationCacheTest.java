@@ -0,0 +1,62 @@
+package org.legendofdragoon.asm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TranslationCacheTest {
+  private static final String KEY = "0123456789abcdef";
+
+  @Test
+  void streamsStoredOutput() throws IOException {
+    final TranslationCache cache = new TranslationCache(Files.createTempDirectory("cache"), 0x1_0000);
+    cache.put(KEY, "r0 = r1;\n");
+
+    final StringBuilder out = new StringBuilder();
+    assertTrue(cache.stream(KEY, out));
+    assertEquals("r0 = r1;\n", out.toString());
+  }
+
+  @Test
+  void missesOnTruncatedEntry() throws IOException {
+    final Path directory = Files.createTempDirectory("cache");
+    final TranslationCache cache = new TranslationCache(directory, 0x1_0000);
+    cache.put(KEY, "r0 = r1;\n".repeat(100));
+
+    final Path entry = entry(directory);
+    final byte[] bytes = Files.readAllBytes(entry);
+    Files.write(entry, Arrays.copyOf(bytes, bytes.length / 2));
+
+    final StringBuilder out = new StringBuilder();
+    assertFalse(cache.stream(KEY, out));
+    assertEquals("", out.toString());
+    assertFalse(Files.exists(entry));
+  }
+
+  @Test
+  void missesOnCorruptEntry() throws IOException {
+    final Path directory = Files.createTempDirectory("cache");
+    final TranslationCache cache = new TranslationCache(directory, 0x1_0000);
+    cache.put(KEY, "r0 = r1;\n");
+
+    final Path entry = entry(directory);
+    Files.write(entry, new byte[] {0x12, 0x34, 0x56, 0x78});
+
+    assertFalse(cache.stream(KEY, new StringBuilder()));
+    assertFalse(Files.exists(entry));
+  }
+
+  private static Path entry(final Path directory) throws IOException {
+    try(final Stream<Path> files = Files.list(directory)) {
+      return files.findFirst().orElseThrow();
+    }
+  }
+}
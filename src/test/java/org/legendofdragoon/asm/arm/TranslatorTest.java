@@ -0,0 +1,51 @@
+package org.legendofdragoon.asm.arm;
+
+import org.junit.jupiter.api.Test;
+import org.legendofdragoon.asm.Options;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TranslatorTest {
+  private static final int CMP_R0_R1 = 0xe150_0001;
+  private static final int CMP_R3_R3 = 0xe153_0003;
+
+  @Test
+  void fusesCompareIntoCondition() {
+    // addne r2, r2, #0
+    assertTrue(translate(false, CMP_R0_R1, 0x1282_2000, CMP_R3_R3).contains("if(r0 != r1)"));
+    assertTrue(translate(true, CMP_R0_R1, 0x1282_2000, CMP_R3_R3).contains("if(r0 != r1)"));
+  }
+
+  @Test
+  void keepsCompareWhenNextReadsCarry() {
+    final int[] carryReaders = {
+      0x12a2_2000, // adcne r2, r2, #0
+      0x12c2_2000, // sbcne r2, r2, #0
+      0x12e2_2000, // rscne r2, r2, #0
+      0x11a0_2063, // movne r2, r3, rrx
+    };
+
+    for(final int command : carryReaders) {
+      for(final boolean lazyFlags : new boolean[] {false, true}) {
+        final String output = translate(lazyFlags, CMP_R0_R1, command, CMP_R3_R3);
+        assertFalse(output.contains("r0 != r1"), () -> "%08x fused:\n%s".formatted(command, output));
+      }
+    }
+  }
+
+  private static String translate(final boolean lazyFlags, final int... commands) {
+    final ByteBuffer data = ByteBuffer.allocate(commands.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+    for(final int command : commands) {
+      data.putInt(command);
+    }
+
+    final Options options = new Options();
+    options.fuseCompares = true;
+    options.lazyFlags = lazyFlags;
+    return String.join("\n", new Translator(options).translate(Asm.parse(data.flip(), 0x0800_0000, 0, Integer.MAX_VALUE)));
+  }
+}
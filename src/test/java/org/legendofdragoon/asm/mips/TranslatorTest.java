@@ -0,0 +1,39 @@
+package org.legendofdragoon.asm.mips;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TranslatorTest {
+  @Test
+  void translatesEmptyInput() {
+    assertEquals(List.of(), new Translator().translate(Asm.parse("")));
+  }
+
+  @Test
+  void translatesDescendingDump() {
+    final List<String> output = new Translator().translate(Asm.parse(
+      line(0x8001_0004, 0x1480_fffe) + // bne a0, zero, 0x80010000
+      line(0x8001_0000, 0x2484_0001) // addiu a0, a0, 0x1
+    ));
+
+    assertEquals(List.of("long a0;", "\n//LAB_80010000\na0 = a0 + 0x1L;", "if(a0 != 0) {\n  LAB_80010000;\n}"), output);
+  }
+
+  @Test
+  void translatesSparseDump() {
+    final List<String> output = new Translator().translate(Asm.parse(
+      line(0x1f80_0000, 0x2484_0001) + // addiu a0, a0, 0x1
+      line(0x8001_0000, 0x2484_0002) // addiu a0, a0, 0x2
+    ));
+
+    assertEquals(List.of("long a0;", "a0 = a0 + 0x1L;", "a0 = a0 + 0x2L;"), output);
+  }
+
+  /** One line of a hex dump, with the word's bytes in memory order */
+  private static String line(final int address, final int word) {
+    return "      ::%08x %02x  %02x  %02x  %02x    op\n".formatted(address, word & 0xff, word >>> 8 & 0xff, word >>> 16 & 0xff, word >>> 24);
+  }
+}
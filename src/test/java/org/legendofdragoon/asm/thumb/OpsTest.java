@@ -0,0 +1,145 @@
+package org.legendofdragoon.asm.thumb;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** Checks the {@link Ops#get} lookup table against the mask/compare chain it replaced */
+class OpsTest {
+  /** Second halfwords tried with every first one - none, THUMB19 BLX and BL halves, and ones that aren't THUMB19 */
+  private static final int[] SECOND_HALFWORDS = {0x0000, 0xe800, 0xefff, 0xf000, 0xf7ff, 0xf800, 0xffff, 0x0001, 0x1234};
+
+  @Test
+  void matchesChainForEveryHalfword() {
+    for(int first = 0; first < 0x1_0000; first++) {
+      for(final int second : SECOND_HALFWORDS) {
+        final int command = second << 16 | first;
+        final Ops expected = chain(command);
+
+        if(expected != null) {
+          assertEquals(expected, Ops.get(command), () -> "%08x".formatted(command));
+        } else {
+          assertThrows(RuntimeException.class, () -> Ops.get(command), () -> "%08x".formatted(command));
+        }
+      }
+    }
+  }
+
+  @Test
+  void matchesChainForEveryThumb19Pair() {
+    for(int first = 0xf000; first < 0xf800; first++) {
+      for(int second = 0xe800; second < 0x1_0000; second++) {
+        final int command = second << 16 | first;
+        assertEquals(chain(command), Ops.get(command), () -> "%08x".formatted(command));
+      }
+    }
+  }
+
+  @Test
+  void thumb19HalvesOnTheirOwnThrow() {
+    for(int command = 0xe800; command < 0x1_0000; command++) {
+      final int halfword = command;
+      assertThrows(RuntimeException.class, () -> Ops.get(halfword), () -> "%04x".formatted(halfword));
+    }
+  }
+
+  /** {@link Ops#get} as it was before the table, returning null where it threw */
+  private static Ops chain(final int command) {
+    // THUMB2 (must be first)
+    if((command & 0xf800) == 0x1800) {
+      return Ops.VALUES[Ops.ADD_REG.ordinal() + (command >>> 9 & 0x3)];
+    }
+
+    // THUMB1
+    if((command & 0xe000) == 0x0) {
+      return Ops.VALUES[Ops.LSL.ordinal() + (command >>> 11 & 0x3)];
+    }
+
+    // THUMB3
+    if((command & 0xe000) == 0x2000) {
+      return Ops.VALUES[Ops.MOV_IMM.ordinal() + (command >>> 11 & 0x3)];
+    }
+
+    // THUMB4
+    if((command & 0xfc00) == 0x4000) {
+      return Ops.VALUES[Ops.AND_ALU.ordinal() + (command >>> 6 & 0xf)];
+    }
+
+    // THUMB5
+    if((command & 0xfc00) == 0x4400) {
+      return Ops.VALUES[Ops.ADD_HI.ordinal() + (command >>> 8 & 0x3)];
+    }
+
+    // THUMB6
+    if((command & 0xf800) == 0x4800) {
+      return Ops.LDRPC;
+    }
+
+    // THUMB7/8
+    if((command & 0xf000) == 0x5000) {
+      if((command & 0x200) == 0) {
+        return Ops.VALUES[Ops.STR_REG.ordinal() + (command >>> 10 & 0x3)];
+      }
+
+      return Ops.VALUES[Ops.STRH_REG.ordinal() + (command >>> 10 & 0x3)];
+    }
+
+    // THUMB9
+    if((command & 0xe000) == 0x6000) {
+      return Ops.VALUES[Ops.STR_IMM.ordinal() + (command >>> 11 & 0x3)];
+    }
+
+    // THUMB10
+    if((command & 0xf000) == 0x8000) {
+      return Ops.VALUES[Ops.STRH_IMM.ordinal() + (command >>> 11 & 0x1)];
+    }
+
+    // THUMB11
+    if((command & 0xf000) == 0x9000) {
+      return Ops.VALUES[Ops.STR_SP.ordinal() + (command >>> 11 & 0x1)];
+    }
+
+    // THUMB12
+    if((command & 0xf000) == 0xa000) {
+      return Ops.ADDRESS;
+    }
+
+    // THUMB13
+    if((command & 0xff00) == 0xb000) {
+      return Ops.ADD_SP;
+    }
+
+    // THUMB14
+    if((command & 0xf600) == 0xb400) {
+      return (command & 0x800) == 0 ? Ops.PUSH : Ops.POP;
+    }
+
+    // THUMB15
+    if((command & 0xf000) == 0xc000) {
+      return Ops.VALUES[Ops.STMIA.ordinal() + (command >>> 11 & 0x1)];
+    }
+
+    // THUMB17
+    if((command & 0xff00) == 0xdf00) {
+      return Ops.SWI;
+    }
+
+    // THUMB16
+    if((command & 0xf000) == 0xd000) {
+      return Ops.VALUES[Ops.BEQ.ordinal() + (command >>> 8 & 0xf)];
+    }
+
+    // THUMB18
+    if((command & 0xf800) == 0xe000) {
+      return Ops.B;
+    }
+
+    // THUMB19
+    if((command & 0xffff_0000) != 0) {
+      return Ops.VALUES[Ops.BL.ordinal() + (command >>> 28 & 0x1)];
+    }
+
+    return null;
+  }
+}